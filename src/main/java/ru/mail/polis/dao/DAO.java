@@ -23,8 +23,14 @@ import ru.mail.polis.Record;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Storage interface.
@@ -39,6 +45,7 @@ public interface DAO extends Closeable {
      * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
      * N.B. The iterator should be obtained as fast as possible, e.g.
      * one should not "seek" to start point ("from" element) in linear time ;)
+     * An iterator holding the storage may implement {@link Closeable}, close it when it is not read to the end.
      */
     @NotNull
     Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
@@ -65,6 +72,22 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s with keys from "from" (inclusive)
+     * until given "to" key (exclusive), or without upper bound if "to" is null,
+     * in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     * N.B. The default implementation collects the whole range, override it to read the last keys first ;)
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        range(from, to).forEachRemaining(records::add);
+        Collections.reverse(records);
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -85,6 +108,23 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Obtains the values of the keys which have records, in <b>ascending</b> order of the keys.
+     * N.B. The default implementation looks the keys up one by one ;)
+     */
+    @NotNull
+    default SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                values.put(key, get(key));
+            } catch (NoSuchElementException e) {
+                //No record, no entry
+            }
+        }
+        return values;
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -97,6 +137,35 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes the values of the keys from "from" (inclusive) until "to" (exclusive).
+     * N.B. The default implementation removes the keys of the range one by one ;)
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @NotNull ByteBuffer to) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        range(from, to).forEachRemaining(record -> keys.add(record.getKey()));
+        for (final ByteBuffer key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Applies the upserts and removes of the batch in their order.
+     * N.B. The default implementation writes them one by one, so the batch is not atomic ;)
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            final ByteBuffer value = batch.value(i);
+            if (value == null) {
+                remove(batch.key(i));
+            } else {
+                upsert(batch.key(i), value);
+            }
+        }
+    }
+
     /**
      * Perform compaction
      */
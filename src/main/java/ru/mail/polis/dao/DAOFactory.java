@@ -17,6 +17,7 @@
 package ru.mail.polis.dao;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.valaubr.LsmConfig;
 import ru.mail.polis.dao.valaubr.LsmDAO;
 
 import java.io.File;
@@ -54,6 +55,10 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new LsmDAO(data, MAX_HEAP / 32);
+        final LsmConfig config = new LsmConfig();
+        config.flushThreshold = MAX_HEAP / 32;
+        config.rowCacheSize = MAX_HEAP / 16;
+        config.compactionStyle = LsmConfig.CompactionStyle.SIZE_TIERED;
+        return new LsmDAO(data, config);
     }
 }
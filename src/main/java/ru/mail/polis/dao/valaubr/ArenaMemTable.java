@@ -0,0 +1,653 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Arena layout, every record aligned to 8 bytes:
+ *
+ * node: [long value address, int key size, int height, long next address * height, key]
+ * value: [long timestamp, long sequence, long previous value address, int size or -1 for a tombstone, data]
+ *
+ * An address is the chunk index in the high int and the offset in the chunk in the low int,
+ * zero is the null address, the first 8 bytes of chunk 0 are never allocated.
+ */
+
+/**
+ * Memtable keeping the keys and the values in off-heap arena chunks, indexed by a lock-free skip list
+ * whose nodes live in the arena too, so the heap holds only the chunk array.
+ * Nodes are never removed, an update links a new value record to the node of the key,
+ * and the new value links the one it replaces while a snapshot may read it, as {@link MemTable} does.
+ * The size counts the arena bytes of the nodes and of the versions linked, the replaced versions
+ * no snapshot reads stay in the arena till the table is released and count in the allocated bytes only.
+ * The reads copy the keys and the values out of the arena, so once the last reference to the table
+ * is released its chunks go back to the {@link ChunkPool} for the next memtables without walking the entries.
+ */
+@ThreadSafe
+public class ArenaMemTable implements VersionedTable {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    //Records larger than this get a chunk of their own
+    private static final int MAX_SHARED_RECORD = CHUNK_SIZE / 4;
+    private static final int MAX_HEIGHT = 12;
+    private static final long NULL = 0;
+    private static final int TOMBSTONE = -1;
+
+    private static final int NODE_VALUE = 0;
+    private static final int NODE_KEY_SIZE = Long.BYTES;
+    private static final int NODE_HEIGHT = NODE_KEY_SIZE + Integer.BYTES;
+    private static final int NODE_NEXT = NODE_HEIGHT + Integer.BYTES;
+    private static final int VALUE_SEQUENCE = Long.BYTES;
+    private static final int VALUE_PREVIOUS = VALUE_SEQUENCE + Long.BYTES;
+    private static final int VALUE_SIZE = VALUE_PREVIOUS + Long.BYTES;
+    private static final int VALUE_DATA = VALUE_SIZE + Integer.BYTES;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Object chunkLock = new Object();
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private volatile Chunk current;
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicInteger count = new AtomicInteger();
+    //The reference of the owner, dropped by close
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final long head;
+    private final Sequencer sequencer;
+    private final ChunkPool pool;
+
+    /**
+     * Empty memtable numbering its writes on its own, for tables no snapshot reads.
+     */
+    public ArenaMemTable() {
+        this(new Sequencer(), new ChunkPool(0));
+    }
+
+    /**
+     * Empty memtable with its first chunk allocated.
+     *
+     * @param sequencer - numbers of the writes, shared with the snapshots
+     * @param pool - chunks of the released memtables to reuse
+     */
+    ArenaMemTable(
+            @NotNull final Sequencer sequencer,
+            @NotNull final ChunkPool pool) {
+        this.sequencer = sequencer;
+        this.pool = pool;
+        synchronized (chunkLock) {
+            current = newChunk(CHUNK_SIZE);
+        }
+        current.top.set(Long.BYTES);
+        head = allocate(NODE_NEXT + Long.BYTES * MAX_HEIGHT);
+        chunk(head).putInt(offset(head) + NODE_HEIGHT, MAX_HEIGHT);
+        //A reused chunk keeps the bytes of its previous table
+        for (int level = 0; level < MAX_HEIGHT; level++) {
+            setNext(head, level, NULL);
+        }
+    }
+
+    /**
+     * Free chunks of the released memtables, shared by the memtables of a DAO.
+     * It keeps up to the given number of bytes, the chunks over it are left to the garbage collector.
+     */
+    @ThreadSafe
+    static final class ChunkPool {
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final long capacity;
+
+        /**
+         * Pool of at least one chunk.
+         *
+         * @param bytes - bytes of the free chunks to keep
+         */
+        ChunkPool(final long bytes) {
+            this.capacity = Math.max(1, bytes / CHUNK_SIZE);
+        }
+
+        @Nullable
+        ByteBuffer take() {
+            final ByteBuffer chunk = free.poll();
+            if (chunk != null) {
+                size.decrementAndGet();
+            }
+            return chunk;
+        }
+
+        void give(@NotNull final ByteBuffer chunk) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                return;
+            }
+            free.add(chunk);
+        }
+
+        /**
+         * Number of the free chunks.
+         */
+        int size() {
+            return size.get();
+        }
+    }
+
+    private static final class Chunk {
+        private final int index;
+        private final int capacity;
+        private final AtomicInteger top = new AtomicInteger();
+
+        Chunk(final int index, final int capacity) {
+            this.index = index;
+            this.capacity = capacity;
+        }
+    }
+
+    private Chunk newChunk(final int capacity) {
+        ByteBuffer buffer = capacity == CHUNK_SIZE ? pool.take() : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity + Long.BYTES - 1)
+                    .alignedSlice(Long.BYTES)
+                    .order(ByteOrder.nativeOrder());
+        }
+        final ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = buffer;
+        chunks = grown;
+        return new Chunk(chunks.length - 1, capacity);
+    }
+
+    private static long address(final int chunk, final int offset) {
+        return ((long) chunk << Integer.SIZE) | offset;
+    }
+
+    private ByteBuffer chunk(final long address) {
+        return chunks[(int) (address >>> Integer.SIZE)];
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private static int aligned(final int size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    /**
+     * Hands out arena bytes aligned to 8, the chunks may be reused so the caller writes every byte it reads.
+     */
+    private long allocate(final int size) {
+        final int aligned = aligned(size);
+        sizeInBytes.addAndGet(aligned);
+        allocatedBytes.addAndGet(aligned);
+        if (aligned > MAX_SHARED_RECORD) {
+            synchronized (chunkLock) {
+                return address(newChunk(aligned).index, 0);
+            }
+        }
+        while (true) {
+            final Chunk chunk = current;
+            final int offset = chunk.top.getAndAdd(aligned);
+            if (offset <= chunk.capacity - aligned) {
+                return address(chunk.index, offset);
+            }
+            synchronized (chunkLock) {
+                if (current == chunk) {
+                    current = newChunk(CHUNK_SIZE);
+                }
+            }
+        }
+    }
+
+    private long next(final long node, final int level) {
+        return (long) LONGS.getVolatile(chunk(node), offset(node) + NODE_NEXT + level * Long.BYTES);
+    }
+
+    private void setNext(final long node, final int level, final long next) {
+        LONGS.setVolatile(chunk(node), offset(node) + NODE_NEXT + level * Long.BYTES, next);
+    }
+
+    private boolean casNext(final long node, final int level, final long expected, final long next) {
+        return LONGS.compareAndSet(chunk(node), offset(node) + NODE_NEXT + level * Long.BYTES, expected, next);
+    }
+
+    /**
+     * Key of the node in the arena, for the comparisons only.
+     */
+    @NotNull
+    private ByteBuffer key(final long node) {
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        final int keyOffset = offset + NODE_NEXT + chunk.getInt(offset + NODE_HEIGHT) * Long.BYTES;
+        return chunk.duplicate()
+                .position(keyOffset)
+                .limit(keyOffset + chunk.getInt(offset + NODE_KEY_SIZE))
+                .slice();
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer).flip();
+        return copy;
+    }
+
+    private long valueAddress(final long node) {
+        return (long) LONGS.getVolatile(chunk(node), offset(node) + NODE_VALUE);
+    }
+
+    /**
+     * Address of the newest value of the node seen by the snapshot or the null address.
+     */
+    private long valueAddress(
+            final long node,
+            final long snapshot) {
+        return visible(valueAddress(node), snapshot);
+    }
+
+    /**
+     * Address of the first value of the chain from the given one seen by the snapshot or the null address.
+     */
+    private long visible(
+            final long value,
+            final long snapshot) {
+        long address = value;
+        while (address != NULL && chunk(address).getLong(offset(address) + VALUE_SEQUENCE) > snapshot) {
+            address = previous(address);
+        }
+        return address;
+    }
+
+    private long previous(final long value) {
+        return chunk(value).getLong(offset(value) + VALUE_PREVIOUS);
+    }
+
+    private int recordSize(final long value) {
+        return aligned(VALUE_DATA + Math.max(0, chunk(value).getInt(offset(value) + VALUE_SIZE)));
+    }
+
+    @NotNull
+    private Value value(final long address) {
+        final ByteBuffer chunk = chunk(address);
+        final int offset = offset(address);
+        final long timestamp = chunk.getLong(offset);
+        final long sequence = chunk.getLong(offset + VALUE_SEQUENCE);
+        final int size = chunk.getInt(offset + VALUE_SIZE);
+        if (size == TOMBSTONE) {
+            return new Value(timestamp, null, sequence, null);
+        }
+        final ByteBuffer data = chunk.duplicate()
+                .position(offset + VALUE_DATA)
+                .limit(offset + VALUE_DATA + size);
+        return new Value(timestamp, copy(data), sequence, null);
+    }
+
+    /**
+     * Finds the last nodes before the key on every level.
+     *
+     * @return node with the key or the null address
+     */
+    private long find(
+            @NotNull final ByteBuffer key,
+            @Nullable final long[] preds,
+            @Nullable final long[] succs) {
+        long node = head;
+        long found = NULL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NULL) {
+                final int cmp = key(next).compareTo(key);
+                if (cmp >= 0) {
+                    if (cmp == 0) {
+                        found = next;
+                    }
+                    break;
+                }
+                node = next;
+                next = next(node, level);
+            }
+            if (preds != null) {
+                preds[level] = node;
+                succs[level] = next;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * First node with a key not less than the given one.
+     */
+    private long ceiling(@NotNull final ByteBuffer key) {
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NULL && key(next).compareTo(key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return next(node, 0);
+    }
+
+    /**
+     * Nodes of the keys in [from, to), or from the first key not less than from if to is null, in key order.
+     * The nodes link forward only, so a descending walk collects them once and steps back over the array
+     * rather than searching for every previous node from the head.
+     */
+    @NotNull
+    private long[] range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        long[] nodes = new long[16];
+        int count = 0;
+        for (long node = ceiling(from); node != NULL && (to == null || key(node).compareTo(to) < 0);
+                node = next(node, 0)) {
+            if (count == nodes.length) {
+                nodes = Arrays.copyOf(nodes, count * 2);
+            }
+            nodes[count++] = node;
+        }
+        return Arrays.copyOf(nodes, count);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return descendingIterator(from, to, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long snapshot) {
+        final long[] nodes = range(from, to);
+        return new Iterator<>() {
+            int index = nodes.length;
+            long value = seek();
+
+            //Skips the nodes of the keys written after the snapshot, the index goes below zero past the first one
+            private long seek() {
+                while (--index >= 0) {
+                    final long address = valueAddress(nodes[index], snapshot);
+                    if (address != NULL) {
+                        return address;
+                    }
+                }
+                return NULL;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index >= 0;
+            }
+
+            @Override
+            public Cell next() {
+                if (index < 0) {
+                    throw new NoSuchElementException("No more cells in memtable");
+                }
+                final Cell cell = new Cell(copy(key(nodes[index])), value(value));
+                value = seek();
+                return cell;
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long snapshot) {
+        final long first = ceiling(from);
+        return new Iterator<>() {
+            long node = first;
+            long value = seek();
+
+            //Skips the nodes of the keys written after the snapshot
+            private long seek() {
+                while (node != NULL) {
+                    final long address = valueAddress(node, snapshot);
+                    if (address != NULL) {
+                        return address;
+                    }
+                    node = ArenaMemTable.this.next(node, 0);
+                }
+                return NULL;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return node != NULL;
+            }
+
+            @Override
+            public Cell next() {
+                if (node == NULL) {
+                    throw new NoSuchElementException("No more cells in memtable");
+                }
+                final Cell cell = new Cell(copy(key(node)), value(value));
+                node = ArenaMemTable.this.next(node, 0);
+                value = seek();
+                return cell;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final long node = find(key, null, null);
+        return node == NULL ? null : value(valueAddress(node));
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long snapshot) {
+        final long node = find(key, null, null);
+        if (node == NULL) {
+            return null;
+        }
+        final long address = valueAddress(node, snapshot);
+        return address == NULL ? null : value(address);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        put(key, value, System.currentTimeMillis());
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        put(key, null, System.currentTimeMillis());
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long timestamp) {
+        put(key, value, timestamp);
+    }
+
+    @Override
+    public void remove(
+            @NotNull final ByteBuffer key,
+            final long timestamp) {
+        put(key, null, timestamp);
+    }
+
+    private void put(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer data,
+            final long timestamp) {
+        final int size = data == null ? 0 : data.remaining();
+        final long value = allocate(VALUE_DATA + size);
+        final ByteBuffer valueChunk = chunk(value);
+        final int valueOffset = offset(value);
+        valueChunk.putLong(valueOffset, timestamp);
+        if (data == null) {
+            valueChunk.putInt(valueOffset + VALUE_SIZE, TOMBSTONE);
+        } else {
+            valueChunk.putInt(valueOffset + VALUE_SIZE, size);
+            valueChunk.duplicate().position(valueOffset + VALUE_DATA).put(data.duplicate());
+        }
+
+        final long[] preds = new long[MAX_HEIGHT];
+        final long[] succs = new long[MAX_HEIGHT];
+        long node = NULL;
+        int height = 0;
+        while (true) {
+            final long found = find(key, preds, succs);
+            if (found != NULL) {
+                //Lost the race to insert the key or the key was there, the node allocated is left unused
+                if (node != NULL) {
+                    sizeInBytes.addAndGet(-aligned(NODE_NEXT + Long.BYTES * height + key.remaining()));
+                }
+                replace(found, value);
+                return;
+            }
+            valueChunk.putLong(valueOffset + VALUE_SEQUENCE, sequencer.next());
+            valueChunk.putLong(valueOffset + VALUE_PREVIOUS, NULL);
+            if (node == NULL) {
+                height = randomHeight();
+                node = allocate(NODE_NEXT + Long.BYTES * height + key.remaining());
+                final ByteBuffer chunk = chunk(node);
+                final int offset = offset(node);
+                chunk.putLong(offset + NODE_VALUE, value);
+                chunk.putInt(offset + NODE_KEY_SIZE, key.remaining());
+                chunk.putInt(offset + NODE_HEIGHT, height);
+                chunk.duplicate().position(offset + NODE_NEXT + Long.BYTES * height).put(key.duplicate());
+            }
+            setNext(node, 0, succs[0]);
+            if (casNext(preds[0], 0, succs[0], node)) {
+                break;
+            }
+        }
+        count.incrementAndGet();
+        for (int level = 1; level < height; level++) {
+            while (true) {
+                setNext(node, level, succs[level]);
+                if (casNext(preds[level], level, succs[level], node)) {
+                    break;
+                }
+                find(key, preds, succs);
+            }
+        }
+    }
+
+    /**
+     * Makes the value the newest one of the node, numbered after the value it replaces,
+     * and links the newest version the snapshots see, the ones after it are read by no snapshot.
+     */
+    private void replace(
+            final long node,
+            final long value) {
+        final ByteBuffer valueChunk = chunk(value);
+        final int valueOffset = offset(value);
+        while (true) {
+            final long newest = valueAddress(node);
+            //Numbered before the newest snapshot is read, see Sequencer#newestSnapshot
+            valueChunk.putLong(valueOffset + VALUE_SEQUENCE, sequencer.next());
+            final long previous = visible(newest, sequencer.newestSnapshot());
+            valueChunk.putLong(valueOffset + VALUE_PREVIOUS, previous);
+            if (LONGS.compareAndSet(chunk(node), offset(node) + NODE_VALUE, newest, value)) {
+                //Unlinked by this write only, the ones before were unlinked by the writes which skipped them
+                for (long dropped = newest; dropped != previous; dropped = previous(dropped)) {
+                    sizeInBytes.addAndGet(-recordSize(dropped));
+                }
+                return;
+            }
+        }
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Arena bytes of the nodes and of the values linked, the newest ones and the ones kept for the snapshots.
+     */
+    @Override
+    public long getSizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    /**
+     * Arena bytes handed out, the ones of the values no longer linked included.
+     */
+    @Override
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public boolean acquire() {
+        int current = refs.get();
+        while (current > 0) {
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = refs.get();
+        }
+        return false;
+    }
+
+    /**
+     * Drops a reference, the last one hands the chunks over to the pool.
+     */
+    @Override
+    public void release() {
+        if (refs.decrementAndGet() != 0) {
+            return;
+        }
+        final ByteBuffer[] released;
+        synchronized (chunkLock) {
+            released = chunks;
+            //A read after the release fails rather than sees the data of the next table
+            chunks = new ByteBuffer[0];
+        }
+        for (final ByteBuffer chunk : released) {
+            if (chunk.capacity() == CHUNK_SIZE) {
+                pool.give(chunk);
+            }
+        }
+    }
+
+    /**
+     * Drops the reference of the owner, the readers holding the table keep it until they release it.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+}
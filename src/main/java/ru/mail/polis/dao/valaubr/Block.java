@@ -0,0 +1,153 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sorted run of cells followed by the cell offsets and their count.
+ * Every data block of an {@link SSTable} has this layout, as does a whole legacy file.
+ */
+final class Block {
+    static final int TOMBSTONE = -1;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int shift;
+
+    /**
+     * Block over the bytes from the start of data to its limit.
+     *
+     * @param data - block bytes, position must be zero
+     */
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        final int limit = data.limit();
+        this.count = data.getInt(limit - Integer.BYTES);
+        this.shift = limit - Integer.BYTES * (1 + count);
+    }
+
+    int count() {
+        return count;
+    }
+
+    private int getOffset(final int position) {
+        return data.getInt(shift + position * Integer.BYTES);
+    }
+
+    private ByteBuffer slice(final int offset, final int length) {
+        final ByteBuffer duplicate = data.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Compares the key at position with the given one right in the block bytes,
+     * byte order is the same as {@link ByteBuffer#compareTo(ByteBuffer)}.
+     */
+    private int compareKey(final int position, @NotNull final ByteBuffer key) {
+        final int keyOffset = getOffset(position);
+        return compare(data, keyOffset + Integer.BYTES, data.getInt(keyOffset), key);
+    }
+
+    static int compare(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int size,
+            @NotNull final ByteBuffer key) {
+        final int length = Math.min(size, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(buffer.get(offset + i), key.get(key.position() + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return size - key.remaining();
+    }
+
+    /**
+     * Position of the first cell with key not less than the given one.
+     *
+     * @param key - key to look for
+     * @return position in [0, count]
+     */
+    int position(@NotNull final ByteBuffer key) {
+        return position(key, 0);
+    }
+
+    /**
+     * Position of the first cell with key not less than the given one, searched from the given position on.
+     *
+     * @param key - key to look for
+     * @param from - position known to hold a smaller key or to be the first one
+     * @return position in [from, count]
+     */
+    int position(
+            @NotNull final ByteBuffer key,
+            final int from) {
+        int left = from;
+        int right = count - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = compareKey(mid, key);
+
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Value of the cell with exactly the given key.
+     *
+     * @param key - key to look for
+     * @return value or null if the block has no such key
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        return get(key, position(key));
+    }
+
+    /**
+     * Value of the cell at the position if it has exactly the given key.
+     *
+     * @param key - key to look for
+     * @param position - position found by {@link #position(ByteBuffer, int)}
+     * @return value or null if the cell has another key
+     */
+    @Nullable
+    Value get(
+            @NotNull final ByteBuffer key,
+            final int position) {
+        if (position == count || compareKey(position, key) != 0) {
+            return null;
+        }
+        final int keyOffset = getOffset(position);
+        return value(keyOffset + Integer.BYTES + data.getInt(keyOffset));
+    }
+
+    @NotNull
+    Cell cell(final int position) {
+        final int keyOffset = getOffset(position);
+        final int keySize = data.getInt(keyOffset);
+        final ByteBuffer key = slice(keyOffset + Integer.BYTES, keySize);
+        return new Cell(key, value(keyOffset + Integer.BYTES + keySize));
+    }
+
+    @NotNull
+    private Value value(final int elementOffset) {
+        final long timestamp = data.getLong(elementOffset);
+        final int valueSize = data.getInt(elementOffset + Long.BYTES);
+        if (valueSize == TOMBSTONE) {
+            return new Value(timestamp);
+        }
+        return new Value(timestamp, slice(elementOffset + Long.BYTES + Integer.BYTES, valueSize));
+    }
+}
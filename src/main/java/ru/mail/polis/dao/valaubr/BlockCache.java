@@ -0,0 +1,281 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap cache of {@link SSTable} blocks shared by all tables of a {@link LsmDAO}.
+ * Blocks are copied to fixed size slots of a direct slab and evicted by the CLOCK algorithm,
+ * so a block read once goes out before the blocks read again. The slab grows by chunks up to
+ * the capacity and its slots are reused afterwards, so the cache never holds more off-heap memory
+ * than the capacity. Blocks larger than a slot are not cached.
+ * Only point lookups fill the cache, scans read the mapping.
+ * Blocks of deleted tables are never hit again and age out the same way.
+ */
+@ThreadSafe
+public final class BlockCache {
+    static final int SLOT_SIZE = 2 * SSTable.BLOCK_SIZE;
+    private static final int SLOTS_PER_CHUNK = 128;
+
+    private final int slotCount;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final Deque<Entry> clock = new ArrayDeque<>();
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int allocatedSlots;
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Cache holding at most the given number of bytes.
+     *
+     * @param capacity - budget in bytes, less than a slot disables caching
+     */
+    BlockCache(final long capacity) {
+        this.slotCount = (int) Math.min(capacity / SLOT_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Cached block, its slot is not reused until the handle is closed.
+     *
+     * @param table - id of the table
+     * @param offset - offset of the block in the table file
+     * @return pinned block or null on miss
+     */
+    @Nullable
+    Handle get(final long table, final long offset) {
+        final Entry entry = entries.get(new Key(table, offset));
+        if (entry == null || !entry.pin()) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return new Handle(slot(entry.slot, entry.length), entry);
+    }
+
+    /**
+     * Copies the block into a free slot, evicting an unpinned block if there is none.
+     *
+     * @param table - id of the table
+     * @param offset - offset of the block in the table file
+     * @param block - block bytes, left untouched
+     * @return pinned cached copy of the block, or the block itself if it is not cached
+     */
+    @NotNull
+    Handle put(final long table, final long offset, @NotNull final ByteBuffer block) {
+        final int length = block.remaining();
+        if (length > SLOT_SIZE) {
+            return new Handle(block, null);
+        }
+        final int slot;
+        synchronized (clock) {
+            slot = takeSlot();
+        }
+        if (slot < 0) {
+            return new Handle(block, null);
+        }
+        // Nobody else sees the slot until the entry is published
+        final ByteBuffer copy = slot(slot, length);
+        copy.duplicate().put(block.duplicate());
+        final Entry entry = new Entry(new Key(table, offset), slot, length);
+        synchronized (clock) {
+            if (entries.putIfAbsent(entry.key, entry) != null) {
+                freeSlots.push(slot);
+                return new Handle(block, null);
+            }
+            clock.addLast(entry);
+            size += length;
+        }
+        return new Handle(copy, entry);
+    }
+
+    /**
+     * A free slot, a new one while the slab grows, or the slot of an evicted block.
+     *
+     * @return slot index or -1 if all the blocks are pinned
+     */
+    private int takeSlot() {
+        assert Thread.holdsLock(clock);
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.pop();
+        }
+        if (allocatedSlots < slotCount) {
+            if (allocatedSlots % SLOTS_PER_CHUNK == 0) {
+                final int slots = Math.min(SLOTS_PER_CHUNK, slotCount - allocatedSlots);
+                chunks.add(ByteBuffer.allocateDirect(slots * SLOT_SIZE));
+            }
+            return allocatedSlots++;
+        }
+        // Two rounds clear the reference bits of all the blocks once
+        for (int i = 2 * clock.size(); i > 0; i--) {
+            final Entry victim = clock.removeFirst();
+            if (victim.referenced || !victim.retire()) {
+                victim.referenced = false;
+                clock.addLast(victim);
+            } else {
+                entries.remove(victim.key);
+                size -= victim.length;
+                evictions.increment();
+                return victim.slot;
+            }
+        }
+        return -1;
+    }
+
+    @NotNull
+    private ByteBuffer slot(final int slot, final int length) {
+        final ByteBuffer chunk;
+        synchronized (clock) {
+            chunk = chunks.get(slot / SLOTS_PER_CHUNK);
+        }
+        final ByteBuffer duplicate = chunk.duplicate();
+        final int offset = (slot % SLOTS_PER_CHUNK) * SLOT_SIZE;
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Bytes of the cached blocks.
+     */
+    public long getSizeInBytes() {
+        synchronized (clock) {
+            return size;
+        }
+    }
+
+    /**
+     * Off-heap bytes held by the slab.
+     */
+    public long getAllocatedBytes() {
+        synchronized (clock) {
+            return (long) allocatedSlots * SLOT_SIZE;
+        }
+    }
+
+    /**
+     * Block bytes read through the cache, the slot of a cached block is not reused until closed,
+     * so the bytes must not be kept after it.
+     */
+    static final class Handle implements AutoCloseable {
+        private final ByteBuffer data;
+        @Nullable
+        private final Entry entry;
+
+        Handle(@NotNull final ByteBuffer data, @Nullable final Entry entry) {
+            this.data = data;
+            this.entry = entry;
+        }
+
+        @NotNull
+        ByteBuffer data() {
+            return data;
+        }
+
+        /**
+         * Whether the bytes are in a slot of the cache rather than in the table mapping.
+         */
+        boolean isCached() {
+            return entry != null;
+        }
+
+        @Override
+        public void close() {
+            if (entry != null) {
+                entry.unpin();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final long table;
+        private final long offset;
+
+        Key(final long table, final long offset) {
+            this.table = table;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return table == key.table && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(table) * 31 + Long.hashCode(offset);
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final int slot;
+        private final int length;
+        /** Readers of the slot, or -1 once evicted */
+        private final AtomicInteger pins = new AtomicInteger(1);
+        private volatile boolean referenced;
+
+        Entry(
+                @NotNull final Key key,
+                final int slot,
+                final int length) {
+            this.key = key;
+            this.slot = slot;
+            this.length = length;
+        }
+
+        boolean pin() {
+            while (true) {
+                final int current = pins.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (pins.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+
+        boolean retire() {
+            return pins.compareAndSet(0, -1);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.dao.valaubr;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the keys of an {@link SSTable}, bits are kept as big-endian longs.
+ * Probes are derived from a single murmur3 hash by double hashing.
+ */
+final class BloomFilter {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final ByteBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Filter over the stored bits.
+     *
+     * @param bits - filter words, position must be zero
+     * @param hashCount - probes per key
+     */
+    BloomFilter(@NotNull final ByteBuffer bits, final int hashCount) {
+        this.bits = bits;
+        this.bitCount = (long) bits.remaining() * Byte.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    static long hash(@NotNull final ByteBuffer key) {
+        return HASH.hashBytes(key.duplicate()).asLong();
+    }
+
+    static int hashCount(final int bitsPerKey) {
+        return Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    private static long index(final long hash, final int i, final long bitCount) {
+        final long combined = (int) hash + (long) i * (int) (hash >>> 32);
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        if (bitCount == 0) {
+            return true;
+        }
+        final long hash = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            final long index = index(hash, i, bitCount);
+            if ((bits.getLong((int) (index >>> 6) * Long.BYTES) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds filter words for the given key hashes.
+     *
+     * @param hashes - hashes of the keys, see {@link #hash(ByteBuffer)}
+     * @param count - number of hashes to use
+     * @param bitsPerKey - filter size per key
+     * @return filter words, empty if bitsPerKey is zero
+     */
+    @NotNull
+    static long[] build(@NotNull final long[] hashes, final int count, final int bitsPerKey) {
+        if (bitsPerKey <= 0 || count == 0) {
+            return new long[0];
+        }
+        final long minBits = Math.max((long) count * bitsPerKey, Long.SIZE);
+        final long[] words = new long[(int) ((minBits + Long.SIZE - 1) / Long.SIZE)];
+        final long bitCount = (long) words.length * Long.SIZE;
+        final int hashCount = hashCount(bitsPerKey);
+        for (int k = 0; k < count; k++) {
+            for (int i = 0; i < hashCount; i++) {
+                final long index = index(hashes[k], i, bitCount);
+                words[(int) (index >>> 6)] |= 1L << index;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,192 @@
+package ru.mail.polis.dao.valaubr;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Merging of sorted cell iterators.
+ */
+final class Cells {
+    private Cells() {
+        // Not instantiatable
+    }
+
+    /**
+     * Merges sorted iterators into one without equal keys.
+     * Of the cells with equal keys the one with the latest timestamp wins, and of equal timestamps
+     * the one from the earlier iterator, so the iterators must go from the newest table to the oldest one.
+     *
+     * @param iterators - sorted iterators without equal keys, newest first
+     * @return merged iterator
+     */
+    @NotNull
+    static Iterator<Cell> merge(@NotNull final List<? extends Iterator<Cell>> iterators) {
+        return merge(iterators, List.of(), Source.ASCENDING);
+    }
+
+    /**
+     * Merges sorted iterators as {@link #merge(List)} does and drops the cells the range tombstones
+     * of the other iterators hide: the ones with an earlier timestamp, or with the same one from a later iterator.
+     * The cells of an iterator are expected to be resolved against its own range tombstones already.
+     *
+     * @param iterators - sorted iterators without equal keys, newest first
+     * @param ranges - range tombstones of the tables of the iterators by their indexes
+     * @return merged iterator
+     */
+    @NotNull
+    static Iterator<Cell> merge(
+            @NotNull final List<? extends Iterator<Cell>> iterators,
+            @NotNull final List<RangeTombstones> ranges) {
+        return merge(iterators, ranges, Source.ASCENDING);
+    }
+
+    /**
+     * Merges iterators sorted by descending keys into one without equal keys,
+     * of the cells with equal keys the same one wins as in {@link #merge(List)}.
+     *
+     * @param iterators - iterators sorted by descending keys without equal keys, newest first
+     * @return merged iterator
+     */
+    @NotNull
+    static Iterator<Cell> mergeDescending(@NotNull final List<? extends Iterator<Cell>> iterators) {
+        return merge(iterators, List.of(), Source.DESCENDING);
+    }
+
+    /**
+     * Merges iterators sorted by descending keys, hiding the cells as {@link #merge(List, List)} does.
+     *
+     * @param iterators - iterators sorted by descending keys without equal keys, newest first
+     * @param ranges - range tombstones of the tables of the iterators by their indexes
+     * @return merged iterator
+     */
+    @NotNull
+    static Iterator<Cell> mergeDescending(
+            @NotNull final List<? extends Iterator<Cell>> iterators,
+            @NotNull final List<RangeTombstones> ranges) {
+        return merge(iterators, ranges, Source.DESCENDING);
+    }
+
+    @NotNull
+    private static Iterator<Cell> merge(
+            @NotNull final List<? extends Iterator<Cell>> iterators,
+            @NotNull final List<RangeTombstones> ranges,
+            @NotNull final Comparator<Source> order) {
+        final PriorityQueue<Source> sources = new PriorityQueue<>(Math.max(1, iterators.size()), order);
+        for (int i = 0; i < iterators.size(); i++) {
+            final Iterator<Cell> iterator = iterators.get(i);
+            if (iterator.hasNext()) {
+                sources.add(new Source(i, iterator));
+            }
+        }
+        //Indexes of the iterators with range tombstones, none in the common case
+        final int[] hiding = IntStream.range(0, ranges.size())
+                .filter(i -> !ranges.get(i).isEmpty())
+                .toArray();
+        return new Iterator<>() {
+            private Cell next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !sources.isEmpty()) {
+                    final Source top = sources.poll();
+                    final Cell cell = top.head;
+                    advance(top);
+                    while (!sources.isEmpty() && sources.peek().head.getKey().equals(cell.getKey())) {
+                        advance(sources.poll());
+                    }
+                    if (hiding.length == 0 || !hidden(cell, top.index)) {
+                        next = cell;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more cells");
+                }
+                final Cell cell = next;
+                next = null;
+                return cell;
+            }
+
+            private void advance(@NotNull final Source source) {
+                if (source.iterator.hasNext()) {
+                    source.head = source.iterator.next();
+                    sources.add(source);
+                }
+            }
+
+            private boolean hidden(
+                    @NotNull final Cell cell,
+                    final int index) {
+                final long timestamp = cell.getValue().getTimestamp();
+                for (final int i : hiding) {
+                    if (i == index) {
+                        continue;
+                    }
+                    final RangeTombstone range = ranges.get(i).covering(cell.getKey());
+                    if (range != null
+                            && (range.getTimestamp() > timestamp || range.getTimestamp() == timestamp && i < index)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Cells of the iterator with keys less than the given one.
+     */
+    @NotNull
+    static Iterator<Cell> until(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final ByteBuffer to) {
+        final PeekingIterator<Cell> peeking = Iterators.peekingIterator(cells);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return peeking.hasNext() && peeking.peek().getKey().compareTo(to) < 0;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more cells");
+                }
+                return peeking.next();
+            }
+        };
+    }
+
+    private static final class Source {
+        private static final Comparator<Source> ASCENDING =
+                Comparator.<Source, Cell>comparing(source -> source.head, Cell.COMPARATOR)
+                        .thenComparingInt(source -> source.index);
+        private static final Comparator<Source> DESCENDING =
+                Comparator.<Source, ByteBuffer>comparing(source -> source.head.getKey(), Comparator.reverseOrder())
+                        .thenComparing(source -> source.head.getValue())
+                        .thenComparingInt(source -> source.index);
+
+        private final int index;
+        private final Iterator<Cell> iterator;
+        private Cell head;
+
+        Source(final int index, @NotNull final Iterator<Cell> iterator) {
+            this.index = index;
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Tables to merge together and the level the result goes to.
+ */
+final class Compaction {
+    private final List<SSTable> inputs;
+    private final int outputLevel;
+
+    Compaction(@NotNull final List<SSTable> inputs, final int outputLevel) {
+        this.inputs = List.copyOf(inputs);
+        this.outputLevel = outputLevel;
+    }
+
+    @NotNull
+    List<SSTable> getInputs() {
+        return inputs;
+    }
+
+    int getOutputLevel() {
+        return outputLevel;
+    }
+}
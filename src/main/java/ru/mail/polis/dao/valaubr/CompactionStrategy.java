@@ -0,0 +1,44 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides which tables of {@link Levels} to merge.
+ */
+interface CompactionStrategy {
+
+    /**
+     * Picks the next compaction for the background compaction to run.
+     *
+     * @param levels - current tables
+     * @return compaction or null if the tables need none
+     */
+    @Nullable
+    Compaction pick(@NotNull Levels levels);
+
+    /**
+     * Compaction of all the tables into one level, as requested by {@link LsmDAO#compact()}.
+     *
+     * @param levels - current tables
+     * @return compaction of every table
+     */
+    @NotNull
+    default Compaction full(@NotNull final Levels levels) {
+        return new Compaction(levels.all(), 0);
+    }
+
+    @NotNull
+    static CompactionStrategy of(@NotNull final LsmConfig config) {
+        switch (config.compactionStyle) {
+            case SIZE_TIERED:
+                return new SizeTieredCompaction(config);
+            case LEVELED:
+                return new LeveledCompaction(config);
+            case MANUAL:
+                return levels -> null;
+            default:
+                throw new IllegalArgumentException("Unknown compaction style " + config.compactionStyle);
+        }
+    }
+}
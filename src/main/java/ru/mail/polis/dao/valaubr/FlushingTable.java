@@ -2,10 +2,13 @@ package ru.mail.polis.dao.valaubr;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.CompletableFuture;
+
 public class FlushingTable {
     private final Table table;
     private final int gen;
     private final boolean poisonPill;
+    private final CompletableFuture<Void> flushed;
 
     /**
      * Table to flush and we understand isPoisonPill.
@@ -13,13 +16,16 @@ public class FlushingTable {
      * @param table - table to flush
      * @param gen - her generation
      * @param poisonPill - is bad
+     * @param flushed - completed once the table is in an SSTable
      */
     public FlushingTable(@NotNull final Table table,
                          @NotNull final int gen,
-                         @NotNull final boolean poisonPill) {
+                         @NotNull final boolean poisonPill,
+                         @NotNull final CompletableFuture<Void> flushed) {
         this.table = table;
         this.gen = gen;
         this.poisonPill = poisonPill;
+        this.flushed = flushed;
     }
 
     /**
@@ -27,12 +33,12 @@ public class FlushingTable {
      *
      * @param table - table to flush
      * @param gen - her gen
+     * @param flushed - completed once the table is in an SSTable
      */
     public FlushingTable(@NotNull final Table table,
-                         @NotNull final int gen) {
-        this.table = table;
-        this.gen = gen;
-        this.poisonPill = false;
+                         @NotNull final int gen,
+                         @NotNull final CompletableFuture<Void> flushed) {
+        this(table, gen, false, flushed);
     }
 
     public int getGen() {
@@ -46,4 +52,8 @@ public class FlushingTable {
     public boolean isPoisonPill() {
         return poisonPill;
     }
+
+    public CompletableFuture<Void> getFlushed() {
+        return flushed;
+    }
 }
@@ -0,0 +1,95 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Leveled compaction.
+ * Level 0 is merged into level 1 once it has enough tables, and a deeper level over its size budget
+ * merges one table into the overlapping tables of the next one. Each level may be levelSizeRatio times
+ * larger than the previous one, so reads look at one table per level and a cell is rewritten
+ * about levelSizeRatio times per level no matter how large the whole dataset is.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    private final int level0Trigger;
+    private final long levelBaseSize;
+    private final int levelSizeRatio;
+    //Last key of the table compacted last at each level, tables are taken round robin
+    private final Map<Integer, ByteBuffer> pointers = new HashMap<>();
+
+    LeveledCompaction(@NotNull final LsmConfig config) {
+        this.level0Trigger = config.level0CompactionTrigger;
+        this.levelBaseSize = config.levelBaseSize;
+        this.levelSizeRatio = config.levelSizeRatio;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final Levels levels) {
+        final List<SSTable> level0 = levels.level(0);
+        if (level0.size() >= level0Trigger) {
+            return new Compaction(withOverlapping(levels, level0, 1), 1);
+        }
+        long budget = levelBaseSize;
+        for (int level = 1; level < levels.depth(); level++) {
+            if (levels.sizeInBytes(level) > budget) {
+                final SSTable table = next(levels.level(level), pointers.get(level));
+                pointers.put(level, table.getLastKey());
+                return new Compaction(withOverlapping(levels, List.of(table), level + 1), level + 1);
+            }
+            budget *= levelSizeRatio;
+        }
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public Compaction full(@NotNull final Levels levels) {
+        return new Compaction(levels.all(), Math.max(1, levels.depth() - 1));
+    }
+
+    @NotNull
+    private static SSTable next(
+            @NotNull final List<SSTable> level,
+            @Nullable final ByteBuffer pointer) {
+        if (pointer != null) {
+            for (final SSTable table : level) {
+                if (table.getFirstKey().compareTo(pointer) > 0) {
+                    return table;
+                }
+            }
+        }
+        return level.get(0);
+    }
+
+    @NotNull
+    private static List<SSTable> withOverlapping(
+            @NotNull final Levels levels,
+            @NotNull final List<SSTable> tables,
+            final int nextLevel) {
+        ByteBuffer first = null;
+        ByteBuffer last = null;
+        for (final SSTable table : tables) {
+            if (table.getFirstKey() == null) {
+                continue;
+            }
+            if (first == null || table.getFirstKey().compareTo(first) < 0) {
+                first = table.getFirstKey();
+            }
+            if (last == null || table.getLastKey().compareTo(last) > 0) {
+                last = table.getLastKey();
+            }
+        }
+        final List<SSTable> inputs = new ArrayList<>(tables);
+        if (first != null) {
+            inputs.addAll(levels.overlapping(nextLevel, first, last));
+        }
+        return inputs;
+    }
+}
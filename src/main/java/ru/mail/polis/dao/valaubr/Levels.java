@@ -0,0 +1,427 @@
+package ru.mail.polis.dao.valaubr;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable snapshot of the SSTables of a {@link LsmDAO} arranged by levels.
+ * Level 0 holds tables which may overlap, newest generation first.
+ * Deeper levels hold non-empty tables with disjoint key ranges sorted by key,
+ * and every level is older than the ones above it.
+ * A snapshot is reference counted and holds a reference to each of its tables until the last release.
+ * It starts with one reference owned by the DAO while the snapshot is current.
+ */
+final class Levels {
+    private static final Comparator<SSTable> NEWEST_FIRST =
+            Comparator.comparingInt(SSTable::getGeneration).reversed();
+    private static final Comparator<SSTable> BY_KEY = Comparator.comparing(SSTable::getFirstKey);
+
+    private final List<List<SSTable>> levels;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private Levels(@NotNull final List<List<SSTable>> levels) {
+        this.levels = levels;
+        for (final List<SSTable> level : levels) {
+            for (final SSTable table : level) {
+                table.acquire();
+            }
+        }
+    }
+
+    /**
+     * Takes a reference unless the snapshot has already been released for good.
+     *
+     * @return false if the snapshot must not be used anymore
+     */
+    boolean acquire() {
+        int current = refs.get();
+        while (current > 0) {
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = refs.get();
+        }
+        return false;
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            for (final List<SSTable> level : levels) {
+                for (final SSTable table : level) {
+                    table.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Arranges the tables by the levels written in them.
+     * Overlapping tables of a deeper level are left by an interrupted compaction,
+     * they are moved to level 0 where the newer generation wins.
+     *
+     * @param tables - tables loaded from the storage
+     * @return levels of the tables
+     */
+    @NotNull
+    static Levels of(@NotNull final Collection<SSTable> tables) {
+        final List<List<SSTable>> byLevel = new ArrayList<>();
+        byLevel.add(new ArrayList<>());
+        for (final SSTable table : tables) {
+            final int level = table.getFirstKey() == null ? 0 : table.getLevel();
+            while (byLevel.size() <= level) {
+                byLevel.add(new ArrayList<>());
+            }
+            byLevel.get(level).add(table);
+        }
+        final List<SSTable> level0 = byLevel.get(0);
+        for (int level = 1; level < byLevel.size(); level++) {
+            final List<SSTable> sorted = byLevel.get(level);
+            sorted.sort(BY_KEY);
+            final List<SSTable> disjoint = new ArrayList<>(sorted.size());
+            int start = 0;
+            for (int i = 1; i <= sorted.size(); i++) {
+                if (i == sorted.size()
+                        || sorted.get(i).getFirstKey().compareTo(sorted.get(i - 1).getLastKey()) > 0) {
+                    if (i - start == 1) {
+                        disjoint.add(sorted.get(start));
+                    } else {
+                        level0.addAll(sorted.subList(start, i));
+                    }
+                    start = i;
+                }
+            }
+            byLevel.set(level, disjoint);
+        }
+        level0.sort(NEWEST_FIRST);
+        return new Levels(freeze(byLevel));
+    }
+
+    /**
+     * Levels with some tables replaced, the added tables go to the levels written in them.
+     *
+     * @param removed - tables to remove
+     * @param added - tables to add, tables of deeper levels must not overlap the ones left there
+     * @return new levels
+     */
+    @NotNull
+    Levels with(
+            @NotNull final Collection<SSTable> removed,
+            @NotNull final Collection<SSTable> added) {
+        final List<List<SSTable>> byLevel = new ArrayList<>(levels.size());
+        for (final List<SSTable> level : levels) {
+            final List<SSTable> left = new ArrayList<>(level);
+            left.removeAll(removed);
+            byLevel.add(left);
+        }
+        for (final SSTable table : added) {
+            while (byLevel.size() <= table.getLevel()) {
+                byLevel.add(new ArrayList<>());
+            }
+            byLevel.get(table.getLevel()).add(table);
+        }
+        byLevel.get(0).sort(NEWEST_FIRST);
+        for (int level = 1; level < byLevel.size(); level++) {
+            byLevel.get(level).sort(BY_KEY);
+        }
+        while (byLevel.size() > 1 && byLevel.get(byLevel.size() - 1).isEmpty()) {
+            byLevel.remove(byLevel.size() - 1);
+        }
+        return new Levels(freeze(byLevel));
+    }
+
+    @NotNull
+    private static List<List<SSTable>> freeze(@NotNull final List<List<SSTable>> byLevel) {
+        final List<List<SSTable>> frozen = new ArrayList<>(byLevel.size());
+        for (final List<SSTable> level : byLevel) {
+            frozen.add(List.copyOf(level));
+        }
+        return List.copyOf(frozen);
+    }
+
+    /**
+     * Number of levels, at least one.
+     */
+    int depth() {
+        return levels.size();
+    }
+
+    /**
+     * Tables of the level, empty beyond the deepest one.
+     */
+    @NotNull
+    List<SSTable> level(final int level) {
+        return level < levels.size() ? levels.get(level) : List.of();
+    }
+
+    long sizeInBytes(final int level) {
+        long size = 0;
+        for (final SSTable table : level(level)) {
+            size += table.getSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * All the tables from the newest to the oldest one.
+     */
+    @NotNull
+    List<SSTable> all() {
+        final List<SSTable> all = new ArrayList<>();
+        for (final List<SSTable> level : levels) {
+            all.addAll(level);
+        }
+        return all;
+    }
+
+    /**
+     * Tables of the level with keys in [first, last].
+     */
+    @NotNull
+    List<SSTable> overlapping(
+            final int level,
+            @NotNull final ByteBuffer first,
+            @NotNull final ByteBuffer last) {
+        final List<SSTable> overlapping = new ArrayList<>();
+        for (final SSTable table : level(level)) {
+            if (table.getFirstKey() != null
+                    && table.getFirstKey().compareTo(last) <= 0
+                    && table.getLastKey().compareTo(first) >= 0) {
+                overlapping.add(table);
+            }
+        }
+        return overlapping;
+    }
+
+    /**
+     * Whether a table besides the inputs may hold versions of their keys older than the inputs.
+     * Those are the overlapping tables of deeper levels than the output one,
+     * and of level 0 older than the inputs when the output is level 0 too.
+     *
+     * @param inputs - tables merged
+     * @param outputLevel - level the result goes to
+     * @return false if the result covers the bottommost data of its keys
+     */
+    boolean mayHaveOlder(
+            @NotNull final Collection<SSTable> inputs,
+            final int outputLevel) {
+        ByteBuffer first = null;
+        ByteBuffer last = null;
+        int oldest = Integer.MAX_VALUE;
+        for (final SSTable table : inputs) {
+            if (table.getFirstKey() == null) {
+                continue;
+            }
+            if (first == null || table.getFirstKey().compareTo(first) < 0) {
+                first = table.getFirstKey();
+            }
+            if (last == null || table.getLastKey().compareTo(last) > 0) {
+                last = table.getLastKey();
+            }
+            oldest = Math.min(oldest, table.getGeneration());
+        }
+        if (first == null) {
+            return false;
+        }
+        for (int level = outputLevel == 0 ? 0 : outputLevel + 1; level < levels.size(); level++) {
+            for (final SSTable table : overlapping(level, first, last)) {
+                if (!inputs.contains(table) && (level > outputLevel || table.getGeneration() < oldest)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index of the first table of a deeper level whose last key is not less than the given one.
+     */
+    private static int ceiling(
+            @NotNull final List<SSTable> level,
+            @NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = level.size() - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            if (level.get(mid).getLastKey().compareTo(key) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Probes the tables of level 0 and the single table of each deeper level whose key range holds the key,
+     * stopping at the first known value.
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        for (final SSTable table : levels.get(0)) {
+            if (!holds(table, key)) {
+                continue;
+            }
+            final Value value = table.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (int i = 1; i < levels.size(); i++) {
+            final List<SSTable> level = levels.get(i);
+            final int index = ceiling(level, key);
+            if (index < level.size() && level.get(index).getFirstKey().compareTo(key) <= 0) {
+                final Value value = level.get(index).get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the sorted keys, passing once over each table whose key range holds some of them.
+     * The tables are probed from the newest to the oldest one, so a key takes the value of the newest table knowing it.
+     *
+     * @param keys - keys sorted in ascending order without duplicates
+     * @param values - values by the indexes of the keys, only the null ones are looked up and filled
+     */
+    void get(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final Value[] values) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        for (final SSTable table : levels.get(0)) {
+            table.get(keys, values);
+        }
+        final ByteBuffer last = keys.get(keys.size() - 1);
+        for (int i = 1; i < levels.size(); i++) {
+            final List<SSTable> level = levels.get(i);
+            int index = ceiling(level, keys.get(0));
+            while (index < level.size() && level.get(index).getFirstKey().compareTo(last) <= 0) {
+                level.get(index++).get(keys, values);
+            }
+        }
+    }
+
+    private static boolean holds(
+            @NotNull final SSTable table,
+            @NotNull final ByteBuffer key) {
+        return table.getFirstKey() != null
+                && table.getFirstKey().compareTo(key) <= 0
+                && table.getLastKey().compareTo(key) >= 0;
+    }
+
+    /**
+     * Tables read by a scan of [from, to), skipping the tables with keys out of the range:
+     * each table of level 0 alone and the tables of each deeper level together in key order.
+     *
+     * @return groups of tables, newest first
+     */
+    @NotNull
+    private List<List<SSTable>> groups(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final List<List<SSTable>> groups = new ArrayList<>(levels.get(0).size() + levels.size());
+        for (final SSTable table : levels.get(0)) {
+            if (table.overlaps(from, to)) {
+                groups.add(List.of(table));
+            }
+        }
+        for (int i = 1; i < levels.size(); i++) {
+            final List<SSTable> level = levels.get(i);
+            final int start = ceiling(level, from);
+            int end = start;
+            while (end < level.size() && level.get(end).overlaps(from, to)) {
+                end++;
+            }
+            if (end > start) {
+                groups.add(level.subList(start, end));
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Iterators over [from, to), one per table of level 0 and one per deeper level
+     * opening its tables one after another, skipping the tables with keys out of the range.
+     * The iterators may go past the upper bound.
+     *
+     * @param from - first key
+     * @param to - key to stop before, null meaning no bound
+     * @return iterators, newest first
+     */
+    @NotNull
+    List<Iterator<Cell>> iterators(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final List<List<SSTable>> groups = groups(from, to);
+        final List<Iterator<Cell>> iterators = new ArrayList<>(groups.size());
+        for (final List<SSTable> group : groups) {
+            iterators.add(Iterators.concat(
+                    Iterators.transform(group.iterator(), table -> table.iterator(from.duplicate()))));
+        }
+        return iterators;
+    }
+
+    /**
+     * Iterators over [from, to) from the greatest key down, one per table of level 0 and one per deeper level
+     * opening its tables from the last one, skipping the tables with keys out of the range.
+     *
+     * @param from - least key
+     * @param to - key to start below, null meaning no bound
+     * @return iterators, newest first
+     */
+    @NotNull
+    List<Iterator<Cell>> descendingIterators(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final List<List<SSTable>> groups = groups(from, to);
+        final List<Iterator<Cell>> iterators = new ArrayList<>(groups.size());
+        for (final List<SSTable> group : groups) {
+            final Iterator<SSTable> tables = Lists.reverse(group).iterator();
+            iterators.add(Iterators.concat(
+                    Iterators.transform(tables, table -> table.descendingIterator(from, to))));
+        }
+        return iterators;
+    }
+
+    /**
+     * Range tombstones of the tables read by the iterators over [from, to), by the indexes of the iterators
+     * of {@link #iterators(ByteBuffer, ByteBuffer)} and {@link #descendingIterators(ByteBuffer, ByteBuffer)}.
+     *
+     * @param from - first key
+     * @param to - key to stop before, null meaning no bound
+     * @return range tombstones, newest first
+     */
+    @NotNull
+    List<RangeTombstones> rangeTombstones(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final List<List<SSTable>> groups = groups(from, to);
+        final List<RangeTombstones> ranges = new ArrayList<>(groups.size());
+        for (final List<SSTable> group : groups) {
+            if (group.size() == 1) {
+                ranges.add(group.get(0).rangeTombstones());
+                continue;
+            }
+            final List<RangeTombstones> tables = new ArrayList<>(group.size());
+            for (final SSTable table : group) {
+                tables.add(table.rangeTombstones());
+            }
+            ranges.add(RangeTombstones.union(tables));
+        }
+        return ranges;
+    }
+}
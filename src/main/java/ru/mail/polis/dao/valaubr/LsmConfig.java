@@ -0,0 +1,146 @@
+package ru.mail.polis.dao.valaubr;
+
+/**
+ * Tunables of {@link LsmDAO}, fill the fields you need and leave the rest by default.
+ */
+public class LsmConfig {
+    /**
+     * How SSTables get merged besides explicit {@link LsmDAO#compact()} calls.
+     */
+    public enum CompactionStyle {
+        /**
+         * Only {@link LsmDAO#compact()} merges tables.
+         */
+        MANUAL,
+        /**
+         * Flushed tables stay in level 0 and adjacent tables of similar size are merged together,
+         * see the tier fields.
+         */
+        SIZE_TIERED,
+        /**
+         * Flushed tables go to level 0 and are merged down into levels of disjoint tables
+         * growing by levelSizeRatio, see the level fields.
+         */
+        LEVELED
+    }
+
+    /**
+     * When writes logged to the write-ahead log reach the disk.
+     * A crash of the process alone loses nothing in any mode, the log is in the OS cache by then.
+     */
+    public enum Durability {
+        /**
+         * Each write forces the log to the disk before it returns.
+         */
+        SYNC,
+        /**
+         * Each write waits until it is forced to the disk, concurrent writers share one force.
+         */
+        GROUP_COMMIT,
+        /**
+         * Writes return at once and the log is forced every walSyncIntervalMs,
+         * a crash of the machine loses about the last interval.
+         */
+        PERIODIC
+    }
+
+    /**
+     * Memtable size in bytes to flush it at.
+     */
+    public long flushThreshold;
+
+    /**
+     * Bloom filter bits per key in every new SSTable, zero disables the filters.
+     * Ten bits give about one percent of false positives.
+     */
+    public int bloomBitsPerKey = 10;
+
+    /**
+     * Whether memtables keep the data in off-heap arenas, see {@link ArenaMemTable}.
+     * The flush threshold then counts the arena bytes of the versions linked exactly, a memtable also flushes
+     * once its arena holds twice the threshold with the replaced versions. The arenas come from the direct memory
+     * limited by -XX:MaxDirectMemorySize rather than from the heap, and the flushed ones are reused.
+     */
+    public boolean offHeapMemTable;
+
+    /**
+     * Number of shards each memtable is split into by the key hash, see {@link ShardedMemTable}.
+     * More shards spread concurrent writers over more maps, one shard keeps a single map.
+     */
+    public int memTableShards = 1;
+
+    /**
+     * When logged writes reach the disk, see {@link Durability}.
+     * A single writer waits for a whole force per write in the other modes, so they are opt-in.
+     */
+    public Durability durability = Durability.PERIODIC;
+
+    /**
+     * Milliseconds between forces of the write-ahead log, periodic durability only.
+     */
+    public long walSyncIntervalMs = 100;
+
+    /**
+     * Off-heap block cache size in bytes shared by all SSTables, zero disables the cache.
+     * It is direct memory, so it counts against -XX:MaxDirectMemorySize rather than the heap.
+     */
+    public long blockCacheSize = 16L * 1024 * 1024;
+
+    /**
+     * Heap budget in bytes of the cache of resolved values of recently read keys, zero disables the cache.
+     */
+    public long rowCacheSize;
+
+    /**
+     * Background compaction of SSTables, see {@link CompactionStyle}.
+     */
+    public CompactionStyle compactionStyle = CompactionStyle.MANUAL;
+
+    /**
+     * Number of similar-sized tables to merge them at, size-tiered compaction only.
+     */
+    public int tierCompactionThreshold = 4;
+
+    /**
+     * Maximum number of tables merged at once, size-tiered compaction only.
+     */
+    public int tierMaxTables = 32;
+
+    /**
+     * Tables smaller than this size in bytes all fall into the smallest tier, size-tiered compaction only.
+     */
+    public long tierMinTableSize = 16L * 1024 * 1024;
+
+    /**
+     * Number of level 0 tables to merge them into level 1 at, leveled compaction only.
+     */
+    public int level0CompactionTrigger = 4;
+
+    /**
+     * Size budget in bytes of level 1, leveled compaction only.
+     */
+    public long levelBaseSize = 64L * 1024 * 1024;
+
+    /**
+     * How many times each next level may be larger than the previous one, leveled compaction only.
+     */
+    public int levelSizeRatio = 10;
+
+    /**
+     * Size in bytes to split compaction results of levels below 0 into tables at.
+     */
+    public long targetTableSize = 16L * 1024 * 1024;
+
+    /**
+     * Milliseconds a tombstone is kept for after the removal, then a compaction which holds
+     * all the older versions of the key drops it together with them.
+     */
+    public long tombstoneGracePeriodMs = 24L * 60 * 60 * 1000;
+
+    /**
+     * Maximum number of key ranges a compaction into levels below 0 is split into and merged in parallel.
+     * Each range gets at least targetTableSize of input, one of them is merged by the compacting thread
+     * and the rest by the threads of the DAO executor, which has two spare threads.
+     */
+    public int subcompactions = 3;
+}
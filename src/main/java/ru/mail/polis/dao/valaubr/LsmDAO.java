@@ -1,31 +1,52 @@
 package ru.mail.polis.dao.valaubr;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
 import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -41,19 +62,34 @@ public class LsmDAO implements DAO {
 
     private static final String FILE_POSTFIX = ".dat";
     private static final String TEMP_FILE_POSTFIX = ".tmp";
-    private static final String LSM_TEMP_FILE = "temp.tmp";
     private static final int POOL_SIZE = 2;
-    private static final int NUMBER_OF_THREADS = 4;
+    //Memtables written at once, each on a thread of the executor
+    private static final int MAX_FLUSHES = 2;
+    //The flushing loop, the compaction loop, the flushes and the two spare threads of subcompactions
+    private static final int NUMBER_OF_THREADS = 4 + MAX_FLUSHES;
 
     @NotNull
     private final File storage;
-    private final NavigableMap<Integer, Table> ssTables;
+    private final LsmConfig config;
+    private final CompactionStrategy compactionStrategy;
+    private volatile Levels levels;
+    private final Lock levelsLock = new ReentrantLock();
+    private final Lock compactionLock = new ReentrantLock();
+    private final BlockCache blockCache;
+    private final RowCache rowCache;
     private final Pattern pattern = Pattern.compile("^\\d+$");
     private final TablesPool memTablePool;
+    private final WriteAheadLog wal;
+    private final Manifest manifest;
     private final ExecutorService executorService;
-    private final ReadWriteLock readWriteLock;
     private final Logger log = LoggerFactory.getLogger(LsmDAO.class);
     private final AtomicInteger generation = new AtomicInteger(0);
+    private final Sequencer sequencer = new Sequencer();
+    private final AtomicBoolean compactionRequested = new AtomicBoolean();
+    private final AtomicBoolean compactionRunning = new AtomicBoolean();
+    private final Semaphore flushPermits = new Semaphore(MAX_FLUSHES);
+    private final LongAdder purgedTombstones = new LongAdder();
+    private final LongAdder purgedVersions = new LongAdder();
 
     /**
      * DAO constructor for storage file with size limit.
@@ -65,9 +101,71 @@ public class LsmDAO implements DAO {
     public LsmDAO(
             @NotNull final File storage,
             final long flushThreshold) throws IOException {
-        assert flushThreshold > 0L;
+        this(storage, config(flushThreshold));
+    }
+
+    /**
+     * DAO constructor for storage file with the given tunables.
+     *
+     * @param storage the path to the file where the files will be stored
+     * @param config  storage tunables
+     * @throws IOException file work exception
+     */
+    public LsmDAO(
+            @NotNull final File storage,
+            @NotNull final LsmConfig config) throws IOException {
+        assert config.flushThreshold > 0L;
         this.storage = storage;
-        this.ssTables = new ConcurrentSkipListMap<>();
+        this.config = config;
+        this.blockCache = new BlockCache(config.blockCacheSize);
+        this.rowCache = new RowCache(config.rowCacheSize);
+        this.compactionStrategy = CompactionStrategy.of(config);
+        final List<SSTable> loaded = Manifest.load(storage, blockCache);
+        final List<SSTable> ssTables = loaded == null ? scan() : loaded;
+        for (final SSTable table : ssTables) {
+            generation.set(Math.max(generation.get(), Math.max(number(table.getFile()), table.getGeneration())));
+        }
+        final List<File> segments = WriteAheadLog.segments(storage);
+        for (final File segment : segments) {
+            final SSTable table = replay(segment);
+            if (table != null) {
+                ssTables.add(table);
+            }
+        }
+        deleteGarbage(ssTables);
+        this.manifest = new Manifest(storage, ssTables);
+        for (final File segment : segments) {
+            Files.delete(segment.toPath());
+        }
+        this.levels = Levels.of(ssTables);
+        generation.addAndGet(1);
+        final int memTableGeneration = generation.addAndGet(1);
+        //Keeps the chunks of about two full memtables for the next ones
+        final ArenaMemTable.ChunkPool chunks = new ArenaMemTable.ChunkPool(2 * config.flushThreshold);
+        final Supplier<VersionedTable> memTables = config.offHeapMemTable
+                ? () -> new ArenaMemTable(sequencer, chunks)
+                : () -> new MemTable(sequencer);
+        final Supplier<VersionedTable> points = config.memTableShards > 1
+                ? () -> new ShardedMemTable(config.memTableShards, memTables)
+                : memTables;
+        this.wal = new WriteAheadLog(storage, config, memTableGeneration);
+        this.memTablePool = new TablesPool(
+                config.flushThreshold,
+                memTableGeneration,
+                POOL_SIZE,
+                wal,
+                () -> new RangeTombstoneMemTable(points.get(), sequencer),
+                sequencer);
+        this.executorService = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        this.executorService.execute(this::flushingHelper);
+    }
+
+    /**
+     * Opens every table file of a storage written before the manifest, reading their levels and key ranges.
+     */
+    @NotNull
+    private List<SSTable> scan() throws IOException {
+        final List<SSTable> ssTables = new ArrayList<>();
         try (Stream<Path> files = Files.list(storage.toPath())) {
             files.filter(file -> !file.toFile().isDirectory() && file.toString().endsWith(FILE_POSTFIX))
                     .forEach(file -> {
@@ -75,66 +173,335 @@ public class LsmDAO implements DAO {
                         try {
                             if (pattern.matcher(fileName.substring(0, fileName.indexOf(FILE_POSTFIX))).find()) {
                                 final int gen = Integer.parseInt(fileName.substring(0, fileName.indexOf(FILE_POSTFIX)));
-                                if (gen > generation.get()) {
-                                    generation.set(gen);
-                                }
-                                ssTables.put(gen, new SSTable(file.toFile()));
+                                ssTables.add(new SSTable(file.toFile(), gen, blockCache));
                             }
                         } catch (IOException e) {
                             throw new UncheckedIOException(e);
                         }
                     });
-            generation.addAndGet(1);
-            this.readWriteLock = new ReentrantReadWriteLock();
-            this.memTablePool = new TablesPool(flushThreshold, generation.addAndGet(1), POOL_SIZE);
-            this.executorService = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
-            this.executorService.execute(this::flushingHelper);
         }
+        return ssTables;
     }
 
+    /**
+     * Deletes the table files not in the manifest, left by writes interrupted before their edit was logged.
+     */
+    private void deleteGarbage(@NotNull final Collection<SSTable> tables) throws IOException {
+        final Set<String> live = new HashSet<>();
+        for (final SSTable table : tables) {
+            live.add(table.getFile().getName());
+        }
+        try (Stream<Path> files = Files.list(storage.toPath())) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                final String fileName = file.getFileName().toString();
+                final int dot = fileName.indexOf('.');
+                if (dot < 0 || !pattern.matcher(fileName.substring(0, dot)).find() || live.contains(fileName)) {
+                    continue;
+                }
+                final String postfix = fileName.substring(dot);
+                if ((postfix.equals(FILE_POSTFIX) || postfix.equals(TEMP_FILE_POSTFIX)) && Files.isRegularFile(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static int number(@NotNull final File file) {
+        final String fileName = file.getName();
+        return Integer.parseInt(fileName.substring(0, fileName.indexOf('.')));
+    }
+
+    private static LsmConfig config(final long flushThreshold) {
+        final LsmConfig config = new LsmConfig();
+        config.flushThreshold = flushThreshold;
+        return config;
+    }
+
+    /**
+     * Records of a snapshot taken for the iterator alone. The iterator is {@link java.io.Closeable}:
+     * it holds the tables until it is read to the end or closed.
+     */
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        readWriteLock.readLock().lock();
+        return cellIterator(from, null).map(LsmDAO::records);
+    }
+
+    /**
+     * Same as the default range, but skips the tables whose keys are all out of the range.
+     * The iterator is closeable as the one of {@link #iterator(ByteBuffer)}.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return cellIterator(from, to).map(cells -> records(Cells.until(cells, to)));
+    }
+
+    /**
+     * Reads a snapshot taken for the iterator alone, walking every table from its last key in the range down.
+     * The iterator is closeable as the one of {@link #iterator(ByteBuffer)}.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.descendingRange(from, to);
+        }
+    }
+
+    @NotNull
+    static Iterator<Record> records(@NotNull final Iterator<Cell> cells) {
+        final Iterator<Cell> alive = Iterators.filter(cells,
+                cell -> !requireNonNull(cell).getValue().isTombstone());
+        return Iterators.transform(alive, cell ->
+                Record.of(requireNonNull(cell).getKey(),
+                        cell.getValue().getData()));
+    }
+
+    /**
+     * Cells of a snapshot taken for the iterator alone, so a long scan sees the data as of its start.
+     */
+    @NotNull
+    private SnapshotIterator<Cell> cellIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.cells(from, to);
+        }
+    }
+
+    /**
+     * Opens a point-in-time view of the data, which later writes, flushes and compactions do not change.
+     * It holds its SSTables on the disk and the versions of the keys it may read in the memtables until closed,
+     * so a long-living snapshot delays the space reclamation.
+     *
+     * @return snapshot to close once done
+     */
+    @NotNull
+    public Snapshot snapshot() {
+        while (true) {
+            //The levels must not change while the snapshot is assembled: the SSTables flushed
+            //before the number is taken hold only the writes it sees, and a memtable flushed after
+            //the memtables are listed has to stay among them
+            final Levels expected = levels;
+            final long sequence = sequencer.open();
+            final Levels snapshot = acquireLevels();
+            final List<VersionedTable> memTables = memTablePool.acquireTables();
+            if (snapshot == expected && levels == expected) {
+                return new Snapshot(sequence, memTables, snapshot, sequencer);
+            }
+            TablesPool.release(memTables);
+            snapshot.release();
+            sequencer.close(sequence);
+        }
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        Value value = rowCache.get(key);
+        if (value == null) {
+            value = lookupAndCache(key);
+        }
+        if (value == null || value.isTombstone()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
+    }
+
+    /**
+     * Probes the row cache and the memtables key by key, then passes over the SSTables with all the keys left sorted,
+     * see {@link Levels#get(List, Value[])}.
+     */
+    @NotNull
+    @Override
+    public SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) {
+        final List<ByteBuffer> sorted = new ArrayList<>(new TreeSet<>(keys));
+        final Value[] values = new Value[sorted.size()];
+        final long[] versions = new long[sorted.size()];
+        final boolean[] cached = new boolean[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            final ByteBuffer key = sorted.get(i);
+            values[i] = rowCache.get(key);
+            if (values[i] == null) {
+                versions[i] = rowCache.version();
+                values[i] = memTablePool.get(key);
+            } else {
+                cached[i] = true;
+            }
+        }
+        //Acquired after the memtables are probed, so a memtable flushed meanwhile is found among the SSTables
+        final Levels snapshot = acquireLevels();
         try {
-            final Iterator<Cell> alive = Iterators.filter(cellIterator(from),
-                    cell -> !requireNonNull(cell).getValue().isTombstone());
-            return Iterators.transform(alive, cell ->
-                    Record.of(requireNonNull(cell).getKey(),
-                            cell.getValue().getData()));
+            snapshot.get(sorted, values);
         } finally {
-            readWriteLock.readLock().unlock();
+            snapshot.release();
+        }
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            final Value value = values[i];
+            if (value == null) {
+                continue;
+            }
+            if (!cached[i] && rowCache.isEnabled()) {
+                rowCache.put(sorted.get(i), value, versions[i]);
+            }
+            if (!value.isTombstone()) {
+                result.put(sorted.get(i), value.getData());
+            }
         }
+        return result;
     }
 
-    private Iterator<Cell> cellIterator(@NotNull final ByteBuffer from) {
-        final List<Iterator<Cell>> iters = new ArrayList<>(ssTables.size() + 1);
+    @Nullable
+    private Value lookupAndCache(@NotNull final ByteBuffer key) {
+        final long version = rowCache.version();
+        final Value value = lookup(key);
+        if (value != null && rowCache.isEnabled()) {
+            rowCache.put(key, value, version);
+        }
+        return value;
+    }
+
+    /**
+     * Probes the tables from the newest to the oldest one and stops at the first known value.
+     */
+    @Nullable
+    private Value lookup(@NotNull final ByteBuffer key) {
+        final Value value = memTablePool.get(key);
+        if (value != null) {
+            return value;
+        }
+        final Levels snapshot = acquireLevels();
         try {
-            iters.add(memTablePool.iterator(from));
-        } catch (IOException e) {
-            log.error("Bad iterator from memTablePool:", e);
-            throw new UncheckedIOException(e);
+            return snapshot.get(key);
+        } finally {
+            snapshot.release();
         }
-        ssTables.descendingMap().values().forEach(table -> {
+    }
+
+    /**
+     * Current tables, which stay readable until released even if a compaction replaces them.
+     */
+    @NotNull
+    private Levels acquireLevels() {
+        while (true) {
+            final Levels current = levels;
+            if (current.acquire()) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Logs the change to the manifest and makes the levels current,
+     * the tables merged away are deleted once the last reader releases them.
+     *
+     * @param removed - tables to remove
+     * @param added - tables to add
+     */
+    private void replaceTables(
+            @NotNull final Collection<SSTable> removed,
+            @NotNull final Collection<SSTable> added) throws IOException {
+        final Levels old;
+        levelsLock.lock();
+        try {
+            old = levels;
+            final Levels next = old.with(removed, added);
             try {
-                iters.add(table.iterator(from));
+                manifest.log(removed, added, next.all());
             } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                next.release();
+                throw e;
             }
-        });
-        final Iterator<Cell> merged = Iterators.mergeSorted(iters, Cell.COMPARATOR);
+            levels = next;
+        } finally {
+            levelsLock.unlock();
+        }
+        for (final SSTable table : removed) {
+            table.markObsolete();
+        }
+        old.release();
+    }
 
-        return Iters.collapseEquals(merged, Cell::getKey);
+    /**
+     * Block cache shared by the SSTables, useful for its hit, miss and eviction counters.
+     */
+    @NotNull
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Tombstones dropped by compactions after their grace period.
+     */
+    public long getPurgedTombstones() {
+        return purgedTombstones.sum();
+    }
+
+    /**
+     * Shadowed versions dropped by compactions.
+     */
+    public long getPurgedVersions() {
+        return purgedVersions.sum();
     }
 
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         memTablePool.upsert(key, value.asReadOnlyBuffer());
+        if (rowCache.isEnabled()) {
+            rowCache.invalidate(key);
+        }
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
         memTablePool.remove(key);
+        if (rowCache.isEnabled()) {
+            rowCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Removes the keys in [from, to) with a single range tombstone, whatever the number of the keys.
+     * It hides the versions written before it in every table and is dropped by a compaction
+     * like a tombstone, together with all it hides.
+     */
+    @Override
+    public void removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        memTablePool.removeRange(from, to);
+        if (rowCache.isEnabled()) {
+            rowCache.invalidateRange(from, to);
+        }
+    }
+
+    /**
+     * Applies the batch atomically: it is logged as a single record and goes to a single memtable,
+     * and snapshots and scans see all of its writes or none.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        memTablePool.write(batch);
+        if (rowCache.isEnabled()) {
+            for (int i = 0; i < batch.size(); i++) {
+                rowCache.invalidate(batch.key(i));
+            }
+        }
     }
 
     @Override
@@ -148,66 +515,468 @@ public class LsmDAO implements DAO {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        try {
+            wal.close();
+        } catch (IOException e) {
+            log.error("Error while closing write-ahead log", e);
+        }
+        try {
+            manifest.close();
+        } catch (IOException e) {
+            log.error("Error while closing manifest", e);
+        }
     }
 
+    /**
+     * Takes the memtables to flush in their order and writes up to MAX_FLUSHES of them in parallel.
+     * The generations are assigned here in the order of the memtables and the tables are installed
+     * in the same order, so a table never shadows a newer one installed before it
+     * and the log segments are deleted oldest first.
+     * A failed flush stops the installs and the writes, see {@link TablesPool#flushFailed(IOException)},
+     * the memtables left are replayed from the log on the next start.
+     */
     private void flushingHelper() {
+        CompletableFuture<Void> installed = CompletableFuture.completedFuture(null);
         boolean poisonReceived = false;
         while (!poisonReceived && !Thread.currentThread().isInterrupted()) {
-            FlushingTable flushingTable;
             try {
-                flushingTable = this.memTablePool.takeToFlash();
+                final FlushingTable flushingTable = this.memTablePool.takeToFlash();
                 poisonReceived = flushingTable.isPoisonPill();
-                flush(flushingTable);
-                memTablePool.flushed(flushingTable.getGen());
+                flushPermits.acquire();
+                final int tableGeneration = generation.incrementAndGet();
+                final CompletableFuture<SSTable> written = CompletableFuture.supplyAsync(
+                        () -> flush(flushingTable, tableGeneration),
+                        this::executeFlush);
+                installed = installed
+                        .thenCombine(written, (previous, table) -> install(flushingTable, table))
+                        .whenComplete((result, e) -> {
+                            flushPermits.release();
+                            if (e == null) {
+                                flushingTable.getFlushed().complete(null);
+                            } else {
+                                memTablePool.flushFailed(flushFailure(e));
+                                flushingTable.getFlushed().completeExceptionally(e);
+                            }
+                        });
             } catch (InterruptedException e) {
                 log.error("Interrupt while creating table", e);
                 Thread.currentThread().interrupt();
-            } catch (IOException e) {
-                log.error("Error while creating table", e);
             }
         }
+        try {
+            installed.join();
+        } catch (CompletionException e) {
+            // Logged where it happened
+        }
     }
 
-    private void flush(@NotNull final FlushingTable flushingTable) throws IOException {
-        readWriteLock.writeLock().lock();
+    /**
+     * IOException behind a failed flush or install.
+     */
+    @NotNull
+    private static IOException flushFailure(@NotNull final Throwable e) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException("Flush failed", cause);
+    }
+
+    private void executeFlush(@NotNull final Runnable flush) {
         try {
-            final File file = new File(storage, generation + TEMP_FILE_POSTFIX);
-            file.createNewFile();
-            SSTable.serialize(file, flushingTable.getTable().iterator(ByteBuffer.allocate(0)));
-            final File dst = new File(storage, generation + FILE_POSTFIX);
-            Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
-            generation.addAndGet(1);
-            ssTables.put(generation.get(), new SSTable(dst));
+            executorService.execute(flush);
+        } catch (RejectedExecutionException e) {
+            //The DAO is closing, flush on this thread
+            flush.run();
+        }
+    }
+
+    @Nullable
+    private SSTable flush(
+            @NotNull final FlushingTable flushingTable,
+            final int tableGeneration) {
+        final IOException failure = memTablePool.getFlushFailure();
+        if (failure != null) {
+            //Would never be installed after the failed one
+            throw new UncheckedIOException("Skipped after a failed flush", failure);
+        }
+        try {
+            final Table table = flushingTable.getTable();
+            return write(
+                    table.iterator(ByteBuffer.allocate(0)),
+                    table.rangeTombstones(),
+                    tableGeneration,
+                    0,
+                    Long.MAX_VALUE);
+        } catch (IOException e) {
+            log.error("Error while creating table", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Nullable
+    private Void install(
+            @NotNull final FlushingTable flushingTable,
+            @Nullable final SSTable table) {
+        try {
+            if (table != null) {
+                replaceTables(List.of(), List.of(table));
+            }
+            memTablePool.flushed(flushingTable.getGen());
+        } catch (IOException e) {
+            log.error("Error while installing table", e);
+            throw new UncheckedIOException(e);
+        }
+        scheduleCompaction();
+        return null;
+    }
+
+    /**
+     * Runs the compactions picked by the strategy on the executor, one batch at a time.
+     */
+    private void scheduleCompaction() {
+        compactionRequested.set(true);
+        if (!compactionRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executorService.execute(this::compactionHelper);
+        } catch (RejectedExecutionException e) {
+            // The DAO is closing, the tables will be compacted after the next start
+            compactionRunning.set(false);
+        }
+    }
+
+    private void compactionHelper() {
+        try {
+            while (compactionRequested.getAndSet(false)) {
+                compactIfNeeded();
+            }
+        } catch (IOException e) {
+            log.error("Error while compacting tables", e);
         } finally {
-            readWriteLock.writeLock().unlock();
+            compactionRunning.set(false);
+        }
+        if (compactionRequested.get()) {
+            scheduleCompaction();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        compactionLock.lock();
+        try {
+            for (Compaction compaction = compactionStrategy.pick(levels);
+                    compaction != null;
+                    compaction = compactionStrategy.pick(levels)) {
+                compact(compaction);
+            }
+        } finally {
+            compactionLock.unlock();
         }
     }
 
+    /**
+     * Flushes the memtable and merges all the tables, so the writes made before the call
+     * end up in the compacted tables.
+     */
     @Override
     public void compact() throws IOException {
-        readWriteLock.writeLock().lock();
-        try {
-            final File tempFile = new File(storage, LSM_TEMP_FILE);
-            tempFile.createNewFile();
-            SSTable.serialize(
-                    tempFile,
-                    requireNonNull(cellIterator(ByteBuffer.allocate(0)))
-            );
-            for (int i = 1; i < generation.get(); i++) {
-                final File deletingFile = new File(storage, i + FILE_POSTFIX);
-                if (deletingFile.exists()) {
-                    Files.delete(deletingFile.toPath());
+        try {
+            memTablePool.flush().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing the memtable");
+        } catch (ExecutionException e) {
+            throw new IOException("Can't flush the memtable", e.getCause());
+        }
+        compactionLock.lock();
+        try {
+            compact(compactionStrategy.full(levels));
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the input tables into tables of the output level and swaps them in.
+     * A level 0 result takes the generation of the newest input to keep its place in level 0,
+     * results of deeper levels get new generations and are split by the target table size.
+     * The inputs are read without locking, only the compaction removes tables from the levels.
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        final List<SSTable> inputs = compaction.getInputs();
+        if (inputs.isEmpty()) {
+            return;
+        }
+        final int level = compaction.getOutputLevel();
+        final long purgeBefore = purgeBefore(inputs, level);
+        final LongAdder purged = new LongAdder();
+        final Predicate<Cell> kept = cell -> {
+            final Value value = cell.getValue();
+            if (value.isTombstone() && value.getTimestamp() < purgeBefore) {
+                purged.increment();
+                return false;
+            }
+            return true;
+        };
+        final List<RangeTombstones> inputRanges = new ArrayList<>(inputs.size());
+        for (final SSTable table : inputs) {
+            inputRanges.add(table.rangeTombstones());
+        }
+        final RangeTombstones union = RangeTombstones.union(inputRanges);
+        final RangeTombstones ranges = union.purge(purgeBefore);
+        final List<SSTable> outputs = new ArrayList<>();
+        if (level == 0) {
+            int newest = 0;
+            for (final SSTable table : inputs) {
+                newest = Math.max(newest, table.getGeneration());
+            }
+            final SSTable table = write(
+                    merge(inputs, null, null, kept),
+                    ranges,
+                    generation.incrementAndGet(),
+                    newest,
+                    level,
+                    Long.MAX_VALUE);
+            if (table != null) {
+                outputs.add(table);
+            }
+        } else {
+            outputs.addAll(compactRanges(inputs, ranges, level, kept));
+        }
+        replaceTables(inputs, outputs);
+        long dropped = 0;
+        for (final SSTable table : inputs) {
+            dropped += table.size();
+        }
+        for (final SSTable table : outputs) {
+            dropped -= table.size();
+        }
+        purgedTombstones.add(purged.sum() + union.size() - ranges.size());
+        purgedVersions.add(dropped - purged.sum());
+    }
+
+    /**
+     * Timestamp the tombstones and the range tombstones of the compaction older than which are dropped
+     * with all they shadow.
+     * That is only safe when no table besides the inputs may hold older versions of their keys.
+     *
+     * @return time before the grace period or the minimum long if nothing may be purged
+     */
+    private long purgeBefore(
+            @NotNull final List<SSTable> inputs,
+            final int level) {
+        int tombstones = 0;
+        for (final SSTable table : inputs) {
+            tombstones += table.getTombstoneCount();
+        }
+        if (tombstones == 0 || levels.mayHaveOlder(inputs, level)) {
+            return Long.MIN_VALUE;
+        }
+        return System.currentTimeMillis() - config.tombstoneGracePeriodMs;
+    }
+
+    /**
+     * Merges the inputs into tables of a deeper level by disjoint key ranges in parallel,
+     * the first range on the calling thread and the others on the executor.
+     * Each range takes the part of the range tombstones inside it.
+     */
+    @NotNull
+    private List<SSTable> compactRanges(
+            @NotNull final List<SSTable> inputs,
+            @NotNull final RangeTombstones ranges,
+            final int level,
+            @NotNull final Predicate<Cell> kept) throws IOException {
+        final List<ByteBuffer> bounds = splitKeys(inputs, config.subcompactions, config.targetTableSize);
+        final List<Future<List<SSTable>>> futures = new ArrayList<>(bounds.size());
+        for (int i = 0; i < bounds.size(); i++) {
+            final ByteBuffer from = bounds.get(i);
+            final ByteBuffer to = i + 1 < bounds.size() ? bounds.get(i + 1) : null;
+            final Callable<List<SSTable>> task =
+                    () -> writeLevel(merge(inputs, from, to, kept), ranges.clip(from, to), level);
+            try {
+                futures.add(executorService.submit(task));
+            } catch (RejectedExecutionException e) {
+                //The DAO is closing, finish the compaction on this thread
+                futures.add(CompletableFuture.completedFuture(
+                        writeLevel(merge(inputs, from, to, kept), ranges.clip(from, to), level)));
+            }
+        }
+        final List<SSTable> outputs = new ArrayList<>();
+        IOException failure = null;
+        final ByteBuffer firstEnd = bounds.isEmpty() ? null : bounds.get(0);
+        try {
+            outputs.addAll(writeLevel(merge(inputs, null, firstEnd, kept), ranges.clip(null, firstEnd), level));
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (final Future<List<SSTable>> future : futures) {
+            try {
+                outputs.addAll(getUninterruptibly(future));
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
                 }
             }
-            generation.set(1);
-            final File dst = new File(storage, 1 + FILE_POSTFIX);
-            dst.createNewFile();
-            Files.move(tempFile.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
-            ssTables.clear();
-            ssTables.put(generation.addAndGet(1), new SSTable(dst));
-        } finally {
-            readWriteLock.writeLock().unlock();
         }
+        if (failure != null) {
+            throw failure;
+        }
+        return outputs;
     }
-}
 
+    /**
+     * Keys splitting the inputs into ranges of about the same size, picked from the block keys of the inputs.
+     * A range starts right after a sampled key, so the tables of the range before end with a key
+     * they hold even when a range tombstone is cut there.
+     *
+     * @param inputs - tables to split
+     * @param subcompactions - maximum number of ranges
+     * @param targetTableSize - minimum size of the input of a range
+     * @return ascending starts of the ranges after the first one
+     */
+    @NotNull
+    static List<ByteBuffer> splitKeys(
+            @NotNull final List<SSTable> inputs,
+            final int subcompactions,
+            final long targetTableSize) {
+        long size = 0;
+        for (final SSTable table : inputs) {
+            size += table.getSizeInBytes();
+        }
+        final long ranges = Math.min(subcompactions, size / Math.max(1, targetTableSize));
+        if (ranges < 2) {
+            return List.of();
+        }
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final SSTable table : inputs) {
+            samples.addAll(table.getBlockKeys());
+        }
+        samples.sort(null);
+        final List<ByteBuffer> bounds = new ArrayList<>();
+        for (int i = 1; i < ranges; i++) {
+            final ByteBuffer bound = RangeTombstones.successor(samples.get((int) (samples.size() * i / ranges)));
+            if (bound.compareTo(bounds.isEmpty() ? samples.get(0) : bounds.get(bounds.size() - 1)) > 0) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Merged cells of the tables with keys in [from, to), null meaning no bound, which pass the filter.
+     * The cells hidden by the range tombstones of the other tables are dropped.
+     */
+    @NotNull
+    private static Iterator<Cell> merge(
+            @NotNull final List<SSTable> tables,
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            @NotNull final Predicate<Cell> kept) {
+        final List<Iterator<Cell>> iters = new ArrayList<>(tables.size());
+        final List<RangeTombstones> ranges = new ArrayList<>(tables.size());
+        for (final SSTable table : tables) {
+            iters.add(table.iterator(from == null ? ByteBuffer.allocate(0) : from.duplicate()));
+            ranges.add(table.rangeTombstones());
+        }
+        final Iterator<Cell> cells = Cells.merge(iters, ranges);
+        return Iterators.filter(to == null ? cells : Cells.until(cells, to), kept::test);
+    }
+
+    /**
+     * Writes the cells to tables of the level cut at the target size, each table takes the range tombstones
+     * up to its last cell and the last one takes the rest.
+     */
+    @NotNull
+    private List<SSTable> writeLevel(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final RangeTombstones ranges,
+            final int level) throws IOException {
+        final List<SSTable> outputs = new ArrayList<>();
+        RangeTombstones left = ranges;
+        do {
+            final SSTable table = write(cells, left, generation.incrementAndGet(), level, config.targetTableSize);
+            if (table != null) {
+                outputs.add(table);
+                left = left.clip(RangeTombstones.successor(table.getLastKey()), null);
+            }
+        } while (cells.hasNext());
+        return outputs;
+    }
+
+    @NotNull
+    private static <T> T getUninterruptibly(@NotNull final Future<T> future) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            Throwables.throwIfInstanceOf(cause, IOException.class);
+            Throwables.throwIfUnchecked(cause);
+            throw new IOException("Subcompaction failed", cause);
+        }
+    }
+
+    /**
+     * Writes the memtable left in a write-ahead log segment by a crash to a level 0 table,
+     * it is newer than all the tables written before.
+     *
+     * @return the table or null if the segment had no writes
+     */
+    @Nullable
+    private SSTable replay(@NotNull final File segment) throws IOException {
+        final Sequencer numbers = new Sequencer();
+        final RangeTombstoneMemTable memTable = new RangeTombstoneMemTable(new MemTable(numbers), numbers);
+        final int count = WriteAheadLog.replay(segment, memTable);
+        log.info("Replayed {} records from {}", count, segment);
+        return write(
+                memTable.iterator(ByteBuffer.allocate(0)),
+                memTable.rangeTombstones(),
+                generation.incrementAndGet(),
+                0,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the cells and the range tombstones to a new table, which is empty or cut at maxSize.
+     *
+     * @return the table or null if there were no cells or range tombstones to write
+     */
+    @Nullable
+    private SSTable write(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final RangeTombstones ranges,
+            final int gen,
+            final int level,
+            final long maxSize) throws IOException {
+        return write(cells, ranges, gen, gen, level, maxSize);
+    }
+
+    /**
+     * Writes the cells to a new table named by the file number, which may differ from the generation.
+     */
+    @Nullable
+    private SSTable write(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final RangeTombstones ranges,
+            final int fileNumber,
+            final int gen,
+            final int level,
+            final long maxSize) throws IOException {
+        final File file = new File(storage, fileNumber + TEMP_FILE_POSTFIX);
+        file.createNewFile();
+        if (SSTable.serialize(file, cells, ranges, config.bloomBitsPerKey, level, maxSize) == 0) {
+            Files.delete(file.toPath());
+            return null;
+        }
+        final File dst = new File(storage, fileNumber + FILE_POSTFIX);
+        Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        //The manifest names the table next, the name must be on the disk before that
+        Manifest.syncDirectory(storage);
+        return new SSTable(dst, gen, blockCache);
+    }
+}
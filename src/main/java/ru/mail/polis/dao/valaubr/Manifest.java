@@ -0,0 +1,273 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * File layout:
+ *
+ * [edit 0] ... [edit n - 1]
+ * edit: [int payload size, int crc32 of the payload,
+ *        payload: int removed count, removed file names,
+ *                 int added count, added tables]
+ * file name: [int size, UTF-8 bytes]
+ * table: [file name, int generation, int level, long file size,
+ *         int first key size or -1 for an empty table, first key, int last key size, last key]
+ *
+ * An edit is a single record, so a torn or corrupted tail drops the whole last edit.
+ */
+
+/**
+ * Append-only log of the changes of the set of SSTables of a {@link LsmDAO}.
+ * A flush or a compaction first logs its edit and only then changes the levels, so after a crash
+ * the tables are either all the inputs or all the outputs. Files written but not logged are garbage.
+ * The log is rewritten as a single edit with all the tables on startup and once it grows long.
+ */
+@ThreadSafe
+final class Manifest implements Closeable {
+    static final String FILE_NAME = "MANIFEST";
+
+    private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int NO_KEY = -1;
+    private static final int MAX_EDITS = 1024;
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    private final File storage;
+    private FileChannel channel;
+    private int edits;
+
+    /**
+     * Creates a manifest with the given tables, replacing the old one.
+     *
+     * @param storage - directory of the tables
+     * @param tables - all the tables
+     */
+    Manifest(
+            @NotNull final File storage,
+            @NotNull final Collection<SSTable> tables) throws IOException {
+        this.storage = storage;
+        rewrite(tables);
+    }
+
+    /**
+     * Reads the tables recorded in the manifest, their files are opened on first access.
+     *
+     * @param storage - directory of the tables
+     * @param blockCache - cache for the tables
+     * @return tables or null if there is no manifest
+     */
+    @Nullable
+    static List<SSTable> load(
+            @NotNull final File storage,
+            @NotNull final BlockCache blockCache) throws IOException {
+        final File file = new File(storage, FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        final Map<String, SSTable> tables = new LinkedHashMap<>();
+        int count = 0;
+        try (InputStream stream = Files.newInputStream(file.toPath());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            while (true) {
+                final byte[] payload;
+                final int checksum;
+                try {
+                    final int payloadSize = in.readInt();
+                    checksum = in.readInt();
+                    if (payloadSize < Integer.BYTES * 2) {
+                        break;
+                    }
+                    payload = new byte[payloadSize];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Manifest {} is corrupted after {} edits", file, count);
+                    break;
+                }
+                final ByteBuffer edit = ByteBuffer.wrap(payload);
+                final int removed = edit.getInt();
+                for (int i = 0; i < removed; i++) {
+                    tables.remove(name(edit));
+                }
+                final int added = edit.getInt();
+                for (int i = 0; i < added; i++) {
+                    final String name = name(edit);
+                    final int generation = edit.getInt();
+                    final int level = edit.getInt();
+                    final long fileSize = edit.getLong();
+                    final ByteBuffer firstKey = key(edit);
+                    final ByteBuffer lastKey = firstKey == null ? null : key(edit);
+                    tables.put(name, new SSTable(
+                            new File(storage, name),
+                            generation,
+                            level,
+                            fileSize,
+                            firstKey,
+                            lastKey,
+                            blockCache));
+                }
+                count++;
+            }
+        }
+        return new ArrayList<>(tables.values());
+    }
+
+    @NotNull
+    private static String name(@NotNull final ByteBuffer edit) {
+        final byte[] name = new byte[edit.getInt()];
+        edit.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static ByteBuffer key(@NotNull final ByteBuffer edit) {
+        final int size = edit.getInt();
+        if (size == NO_KEY) {
+            return null;
+        }
+        final ByteBuffer key = edit.slice().limit(size);
+        edit.position(edit.position() + size);
+        return key;
+    }
+
+    /**
+     * Durably logs the edit, rewriting the manifest from the tables after it once it grows long.
+     *
+     * @param removed - tables removed
+     * @param added - tables added
+     * @param tables - all the tables after the edit
+     */
+    synchronized void log(
+            @NotNull final Collection<SSTable> removed,
+            @NotNull final Collection<SSTable> added,
+            @NotNull final Collection<SSTable> tables) throws IOException {
+        if (edits >= MAX_EDITS) {
+            rewrite(tables);
+            return;
+        }
+        write(channel, edit(removed, added));
+        channel.force(false);
+        edits++;
+    }
+
+    private synchronized void rewrite(@NotNull final Collection<SSTable> tables) throws IOException {
+        final File temp = new File(storage, TEMP_FILE_NAME);
+        try (FileChannel out = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            write(out, edit(List.of(), tables));
+            out.force(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        final File file = new File(storage, FILE_NAME);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(storage);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        edits = 1;
+    }
+
+    /**
+     * Forces the entries of the directory, so a file renamed into it is there after a crash.
+     * Forcing the file itself does not cover its name.
+     */
+    static void syncDirectory(@NotNull final File directory) throws IOException {
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+
+    private static void write(
+            @NotNull final FileChannel out,
+            @NotNull final ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer edit(
+            @NotNull final Collection<SSTable> removed,
+            @NotNull final Collection<SSTable> added) {
+        int payloadSize = Integer.BYTES * 2;
+        for (final SSTable table : removed) {
+            payloadSize += Integer.BYTES + nameBytes(table).length;
+        }
+        for (final SSTable table : added) {
+            payloadSize += Integer.BYTES + nameBytes(table).length + Integer.BYTES * 2 + Long.BYTES
+                    + Integer.BYTES;
+            if (table.getFirstKey() != null) {
+                payloadSize += table.getFirstKey().remaining() + Integer.BYTES + table.getLastKey().remaining();
+            }
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.putInt(removed.size());
+        for (final SSTable table : removed) {
+            final byte[] name = nameBytes(table);
+            record.putInt(name.length).put(name);
+        }
+        record.putInt(added.size());
+        for (final SSTable table : added) {
+            final byte[] name = nameBytes(table);
+            record.putInt(name.length).put(name);
+            record.putInt(table.getGeneration());
+            record.putInt(table.getLevel());
+            record.putLong(table.getSizeInBytes());
+            final ByteBuffer firstKey = table.getFirstKey();
+            if (firstKey == null) {
+                record.putInt(NO_KEY);
+            } else {
+                final ByteBuffer lastKey = table.getLastKey();
+                record.putInt(firstKey.remaining()).put(firstKey.duplicate());
+                record.putInt(lastKey.remaining()).put(lastKey.duplicate());
+            }
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record.flip().position(HEADER_SIZE));
+        record.rewind();
+        record.putInt(payloadSize).putInt((int) crc.getValue()).rewind();
+        return record;
+    }
+
+    @NotNull
+    private static byte[] nameBytes(@NotNull final SSTable table) {
+        return table.getFile().getName().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,16 +1,19 @@
 package ru.mail.polis.dao.valaubr;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 @ThreadSafe
-public class MemTable implements Table {
+public class MemTable implements VersionedTable {
     /*
      * ByteBuffer [link - 2 bytes
      * + bytes in the buffer - n bytes
@@ -37,12 +40,25 @@ public class MemTable implements Table {
     private static final int OVAS = 39;
     //KEY_ADDITIONAL_SIZE
     private static final int KAS = 15;
-    private final SortedMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
 
     private final AtomicLong sizeInBytes = new AtomicLong();
+    private final Sequencer sequencer;
 
+    /**
+     * Memtable numbering its writes on its own, for tables no snapshot reads.
+     */
     public MemTable() {
-        sizeInBytes.set(0);
+        this(new Sequencer());
+    }
+
+    /**
+     * Memtable numbering its writes by the sequencer shared with the snapshots.
+     *
+     * @param sequencer - numbers of the writes
+     */
+    MemTable(@NotNull final Sequencer sequencer) {
+        this.sequencer = sequencer;
     }
 
     @NotNull
@@ -55,26 +71,121 @@ public class MemTable implements Table {
                 .iterator();
     }
 
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value val = map.put(key, new Value(System.currentTimeMillis(), value.duplicate()));
-        if (val == null) {
-            sizeInBytes.addAndGet(key.remaining() + value.remaining() + NVAS);
-        } else {
-            sizeInBytes.addAndGet(value.remaining() + OVAS);
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long snapshot) {
+        return map.tailMap(from)
+                .entrySet()
+                .stream()
+                .map(entry -> {
+                    final Value value = entry.getValue().visibleAt(snapshot);
+                    return value == null ? null : new Cell(entry.getKey(), value);
+                })
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return descendingIterator(from, to, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long snapshot) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return Collections.emptyIterator();
         }
+        final ConcurrentNavigableMap<ByteBuffer, Value> range = to == null ? map.tailMap(from) : map.subMap(from, to);
+        return range.descendingMap()
+                .entrySet()
+                .stream()
+                .map(entry -> {
+                    final Value value = entry.getValue().visibleAt(snapshot);
+                    return value == null ? null : new Cell(entry.getKey(), value);
+                })
+                .filter(Objects::nonNull)
+                .iterator();
     }
 
+    @Nullable
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        final Value val = map.put(key, new Value(System.currentTimeMillis()));
-        if (val == null) {
-            sizeInBytes.addAndGet(key.remaining() + KAS);
-        } else if (!val.isTombstone()) {
-            sizeInBytes.addAndGet(-val.getData().remaining());
+    public Value get(@NotNull final ByteBuffer key) {
+        return map.get(key);
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long snapshot) {
+        final Value value = map.get(key);
+        return value == null ? null : value.visibleAt(snapshot);
+    }
+
+    /**
+     * Makes a new version of the key the newest one, numbered after the version it replaces,
+     * and counts the versions linked: the ones no snapshot reads any longer are left to the garbage collector.
+     */
+    private void put(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer data,
+            final long timestamp) {
+        final Value[] replaced = new Value[2];
+        map.compute(key, (k, newest) -> {
+            //Retried on a race, so the number is taken after the replaced version is known
+            replaced[0] = newest;
+            final long sequence = sequencer.next();
+            final Value previous = newest == null ? null : newest.visibleAt(sequencer.newestSnapshot());
+            replaced[1] = previous;
+            return new Value(timestamp, data, sequence, previous);
+        });
+        final int size = data == null ? 0 : data.remaining();
+        if (replaced[0] == null) {
+            sizeInBytes.addAndGet(key.remaining() + (data == null ? KAS : size + NVAS));
+            return;
+        }
+        long change = size + OVAS;
+        for (Value dropped = replaced[0]; dropped != replaced[1]; dropped = dropped.getPrevious()) {
+            change -= versionSize(dropped);
         }
+        sizeInBytes.addAndGet(change);
+    }
+
+    private static long versionSize(@NotNull final Value value) {
+        return (value.isTombstone() ? 0 : value.getData().remaining()) + OVAS;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        upsert(key, value, System.currentTimeMillis());
     }
 
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long timestamp) {
+        put(key, value.duplicate(), timestamp);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        remove(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public void remove(
+            @NotNull final ByteBuffer key,
+            final long timestamp) {
+        put(key, null, timestamp);
+    }
+
+    /**
+     * Estimated heap bytes of the keys and of the versions linked, the newest ones and the ones kept for the snapshots.
+     */
     @Override
     public long getSizeInBytes() {
         return sizeInBytes.get();
@@ -85,9 +196,11 @@ public class MemTable implements Table {
         return map.size();
     }
 
+    /**
+     * Leaves the entries to the garbage collector, the snapshots may still read the table after its flush.
+     */
     @Override
     public void close() {
-        map.clear();
-        sizeInBytes.set(0);
+        // Nothing to free
     }
 }
@@ -0,0 +1,73 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removal of the keys in [from, to) at the timestamp.
+ * In a memtable it is numbered by the {@link Sequencer} like the point writes,
+ * the tombstones read from SSTables are numbered {@link Sequencer#PERSISTED}.
+ */
+final class RangeTombstone {
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long timestamp;
+    private final long sequence;
+
+    RangeTombstone(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to,
+            final long timestamp) {
+        this(from, to, timestamp, Sequencer.PERSISTED);
+    }
+
+    /**
+     * Range tombstone numbered by a sequencer.
+     *
+     * @param from - first key removed
+     * @param to - key to stop before, greater than the first one
+     * @param timestamp - time of the removal in milliseconds
+     * @param sequence - number of the removal
+     */
+    RangeTombstone(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to,
+            final long timestamp,
+            final long sequence) {
+        this.from = from;
+        this.to = to;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+    }
+
+    @NotNull
+    ByteBuffer getFrom() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer getTo() {
+        return to.asReadOnlyBuffer();
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Where the key is relative to the range.
+     *
+     * @return negative if the key is below the range, positive if it is past the range, zero if the range covers it
+     */
+    int locate(@NotNull final ByteBuffer key) {
+        if (from.compareTo(key) > 0) {
+            return -1;
+        }
+        return to.compareTo(key) > 0 ? 0 : 1;
+    }
+}
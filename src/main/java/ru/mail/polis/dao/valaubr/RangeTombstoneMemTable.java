@@ -0,0 +1,278 @@
+package ru.mail.polis.dao.valaubr;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Memtable keeping the range tombstones in front of a memtable of the point writes.
+ * The tombstones are numbered by the same {@link Sequencer} as the point writes, so a point version
+ * is hidden by the tombstones numbered after it and survives the ones numbered before.
+ * The cells and the values read are resolved against the tombstones, which are left to hide the older tables.
+ */
+@ThreadSafe
+final class RangeTombstoneMemTable implements VersionedTable {
+    //RangeTombstone object, its buffers and the queue node
+    private static final int RANGE_ADDITIONAL_SIZE = 96;
+
+    private final VersionedTable points;
+    private final Sequencer sequencer;
+    private final Queue<RangeTombstone> tombstones = new ConcurrentLinkedQueue<>();
+    //Counted after the tombstone is queued, so the fragments built of fewer tombstones are known stale
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private volatile Fragments newest = new Fragments(RangeTombstones.EMPTY, 0, Sequencer.PERSISTED);
+
+    /**
+     * Memtable of the range tombstones over the given one.
+     *
+     * @param points - memtable of the point writes, numbered by the sequencer
+     * @param sequencer - numbers of the writes
+     */
+    RangeTombstoneMemTable(
+            @NotNull final VersionedTable points,
+            @NotNull final Sequencer sequencer) {
+        this.points = points;
+        this.sequencer = sequencer;
+    }
+
+    /**
+     * Fragments of the tombstones queued when they were built.
+     */
+    private static final class Fragments {
+        private final RangeTombstones ranges;
+        private final int count;
+        private final long sequence;
+
+        Fragments(
+                @NotNull final RangeTombstones ranges,
+                final int count,
+                final long sequence) {
+            this.ranges = ranges;
+            this.count = count;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Fragments of all the tombstones, rebuilt by the first read after a removal.
+     */
+    @NotNull
+    private Fragments newest() {
+        final Fragments cached = newest;
+        if (cached.count == count.get()) {
+            return cached;
+        }
+        final List<RangeTombstone> all = new ArrayList<>(tombstones);
+        long sequence = Sequencer.PERSISTED;
+        for (final RangeTombstone tombstone : all) {
+            sequence = Math.max(sequence, tombstone.getSequence());
+        }
+        final Fragments built = new Fragments(RangeTombstones.of(all), all.size(), sequence);
+        newest = built;
+        return built;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return newest().ranges;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones(final long snapshot) {
+        if (count.get() == 0) {
+            return RangeTombstones.EMPTY;
+        }
+        final Fragments all = newest();
+        if (all.sequence <= snapshot) {
+            return all.ranges;
+        }
+        final List<RangeTombstone> seen = new ArrayList<>();
+        for (final RangeTombstone tombstone : tombstones) {
+            if (tombstone.getSequence() <= snapshot) {
+                seen.add(tombstone);
+            }
+        }
+        return RangeTombstones.of(seen);
+    }
+
+    /**
+     * Whether a tombstone numbered after the cell covers it.
+     */
+    private static boolean hidden(
+            @NotNull final RangeTombstones ranges,
+            @NotNull final Cell cell) {
+        final RangeTombstone range = ranges.covering(cell.getKey());
+        return range != null && range.getSequence() > cell.getValue().getSequence();
+    }
+
+    @NotNull
+    private static Iterator<Cell> visible(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final RangeTombstones ranges) {
+        return ranges.isEmpty() ? cells : Iterators.filter(cells, cell -> !hidden(ranges, cell));
+    }
+
+    /**
+     * Value of the point write unless a tombstone numbered after it covers the key.
+     */
+    @Nullable
+    private static Value resolve(
+            @NotNull final ByteBuffer key,
+            @Nullable final Value value,
+            @NotNull final RangeTombstones ranges) {
+        if (ranges.isEmpty()) {
+            return value;
+        }
+        final Value range = ranges.get(key);
+        if (range == null || value != null && value.getSequence() > range.getSequence()) {
+            return value;
+        }
+        return range;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return visible(points.iterator(from), rangeTombstones());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long snapshot) {
+        return visible(points.iterator(from, snapshot), rangeTombstones(snapshot));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return visible(points.descendingIterator(from, to), rangeTombstones());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long snapshot) {
+        return visible(points.descendingIterator(from, to, snapshot), rangeTombstones(snapshot));
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        return resolve(key, points.get(key), rangeTombstones());
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long snapshot) {
+        return resolve(key, points.get(key, snapshot), rangeTombstones(snapshot));
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        points.upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        points.remove(key);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long timestamp) throws IOException {
+        points.upsert(key, value, timestamp);
+    }
+
+    @Override
+    public void remove(
+            @NotNull final ByteBuffer key,
+            final long timestamp) throws IOException {
+        points.remove(key, timestamp);
+    }
+
+    /**
+     * Removes the keys in [from, to), including the ones written to the older tables.
+     * Numbers and queues the tombstone under the batch lock, so the snapshot numbered after it sees it at once.
+     *
+     * @param from - first key to remove
+     * @param to - key to stop before
+     * @param timestamp - time of the removal in milliseconds
+     */
+    void removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to,
+            final long timestamp) {
+        final ByteBuffer start = copy(from);
+        final ByteBuffer end = copy(to);
+        final Lock snapshots = sequencer.batchLock();
+        snapshots.lock();
+        try {
+            tombstones.add(new RangeTombstone(start, end, timestamp, sequencer.next()));
+            count.incrementAndGet();
+        } finally {
+            snapshots.unlock();
+        }
+        sizeInBytes.addAndGet(start.remaining() + end.remaining() + RANGE_ADDITIONAL_SIZE);
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return points.getSizeInBytes() + sizeInBytes.get();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return points.getAllocatedBytes() + sizeInBytes.get();
+    }
+
+    @Override
+    public int size() {
+        return points.size();
+    }
+
+    @Override
+    public boolean acquire() {
+        return points.acquire();
+    }
+
+    @Override
+    public void release() {
+        points.release();
+    }
+
+    /**
+     * Closes the point memtable, the tombstones stay for the snapshots still reading the table.
+     */
+    @Override
+    public void close() {
+        points.close();
+    }
+}
@@ -0,0 +1,260 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Immutable set of range tombstones split into sorted disjoint fragments.
+ * A fragment takes the latest timestamp and the greatest number of the tombstones covering it,
+ * so a key is looked up by a binary search however the tombstones overlapped.
+ */
+final class RangeTombstones implements Iterable<RangeTombstone> {
+    static final RangeTombstones EMPTY = new RangeTombstones(List.of());
+
+    private static final Comparator<RangeTombstone> BY_FROM = Comparator.comparing(RangeTombstone::getFrom);
+
+    private final List<RangeTombstone> fragments;
+
+    private RangeTombstones(@NotNull final List<RangeTombstone> fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Fragments of the tombstones, empty ranges are skipped.
+     *
+     * @param tombstones - tombstones in any order, possibly overlapping
+     * @return fragments of the tombstones
+     */
+    @NotNull
+    static RangeTombstones of(@NotNull final Collection<RangeTombstone> tombstones) {
+        final List<RangeTombstone> sorted = new ArrayList<>(tombstones.size());
+        final TreeSet<ByteBuffer> bounds = new TreeSet<>();
+        for (final RangeTombstone tombstone : tombstones) {
+            if (tombstone.getFrom().compareTo(tombstone.getTo()) < 0) {
+                sorted.add(tombstone);
+                bounds.add(tombstone.getFrom());
+                bounds.add(tombstone.getTo());
+            }
+        }
+        if (sorted.isEmpty()) {
+            return EMPTY;
+        }
+        sorted.sort(BY_FROM);
+        //Tombstones started so far, the ones ended are dropped once they come up
+        final PriorityQueue<RangeTombstone> latest = new PriorityQueue<>(
+                Comparator.comparingLong(RangeTombstone::getTimestamp).reversed());
+        final PriorityQueue<RangeTombstone> greatest = new PriorityQueue<>(
+                Comparator.comparingLong(RangeTombstone::getSequence).reversed());
+        final List<RangeTombstone> fragments = new ArrayList<>();
+        int next = 0;
+        ByteBuffer from = null;
+        for (final ByteBuffer bound : bounds) {
+            if (from != null) {
+                dropEnded(latest, from);
+                dropEnded(greatest, from);
+                if (!latest.isEmpty()) {
+                    add(fragments, new RangeTombstone(
+                            from,
+                            bound,
+                            latest.peek().getTimestamp(),
+                            greatest.peek().getSequence()));
+                }
+            }
+            while (next < sorted.size() && sorted.get(next).getFrom().compareTo(bound) <= 0) {
+                latest.add(sorted.get(next));
+                greatest.add(sorted.get(next));
+                next++;
+            }
+            from = bound;
+        }
+        return new RangeTombstones(List.copyOf(fragments));
+    }
+
+    private static void dropEnded(
+            @NotNull final PriorityQueue<RangeTombstone> active,
+            @NotNull final ByteBuffer key) {
+        while (!active.isEmpty() && active.peek().getTo().compareTo(key) <= 0) {
+            active.poll();
+        }
+    }
+
+    /**
+     * Appends the fragment, joining it to the previous one if they touch and are the same.
+     */
+    private static void add(
+            @NotNull final List<RangeTombstone> fragments,
+            @NotNull final RangeTombstone fragment) {
+        if (!fragments.isEmpty()) {
+            final RangeTombstone last = fragments.get(fragments.size() - 1);
+            if (last.getTo().equals(fragment.getFrom())
+                    && last.getTimestamp() == fragment.getTimestamp()
+                    && last.getSequence() == fragment.getSequence()) {
+                fragments.set(fragments.size() - 1, new RangeTombstone(
+                        last.getFrom(),
+                        fragment.getTo(),
+                        last.getTimestamp(),
+                        last.getSequence()));
+                return;
+            }
+        }
+        fragments.add(fragment);
+    }
+
+    /**
+     * Fragments of all the sets together.
+     */
+    @NotNull
+    static RangeTombstones union(@NotNull final List<RangeTombstones> sets) {
+        final List<RangeTombstone> all = new ArrayList<>();
+        for (final RangeTombstones set : sets) {
+            all.addAll(set.fragments);
+        }
+        return of(all);
+    }
+
+    boolean isEmpty() {
+        return fragments.isEmpty();
+    }
+
+    /**
+     * Number of fragments.
+     */
+    int size() {
+        return fragments.size();
+    }
+
+    /**
+     * Fragment covering the key.
+     *
+     * @return fragment or null if no tombstone covers the key
+     */
+    @Nullable
+    RangeTombstone covering(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = fragments.size() - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final RangeTombstone fragment = fragments.get(mid);
+            final int location = fragment.locate(key);
+            if (location < 0) {
+                right = mid - 1;
+            } else if (location > 0) {
+                left = mid + 1;
+            } else {
+                return fragment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tombstone value of the key.
+     *
+     * @return tombstone or null if no tombstone covers the key
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        final RangeTombstone fragment = covering(key);
+        return fragment == null ? null : new Value(fragment.getTimestamp(), null, fragment.getSequence(), null);
+    }
+
+    /**
+     * Fragments cut to [from, to).
+     *
+     * @param from - first key, null meaning no bound
+     * @param to - key to stop before, null meaning no bound
+     */
+    @NotNull
+    RangeTombstones clip(
+            @Nullable final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (from == null && to == null || fragments.isEmpty()) {
+            return this;
+        }
+        final List<RangeTombstone> clipped = new ArrayList<>();
+        boolean cut = false;
+        for (final RangeTombstone fragment : fragments) {
+            final boolean cutFrom = from != null && fragment.getFrom().compareTo(from) < 0;
+            final boolean cutTo = to != null && fragment.getTo().compareTo(to) > 0;
+            if (!cutFrom && !cutTo) {
+                clipped.add(fragment);
+                continue;
+            }
+            cut = true;
+            final ByteBuffer start = cutFrom ? from : fragment.getFrom();
+            final ByteBuffer end = cutTo ? to : fragment.getTo();
+            if (start.compareTo(end) < 0) {
+                clipped.add(new RangeTombstone(start, end, fragment.getTimestamp(), fragment.getSequence()));
+            }
+        }
+        return cut ? new RangeTombstones(List.copyOf(clipped)) : this;
+    }
+
+    /**
+     * Fragments without the ones older than the timestamp.
+     */
+    @NotNull
+    RangeTombstones purge(final long before) {
+        final List<RangeTombstone> left = new ArrayList<>(fragments.size());
+        for (final RangeTombstone fragment : fragments) {
+            if (fragment.getTimestamp() >= before) {
+                left.add(fragment);
+            }
+        }
+        return left.size() == fragments.size() ? this : new RangeTombstones(List.copyOf(left));
+    }
+
+    /**
+     * First key covered.
+     */
+    @NotNull
+    ByteBuffer first() {
+        return fragments.get(0).getFrom();
+    }
+
+    /**
+     * Key the last fragment stops before.
+     */
+    @NotNull
+    ByteBuffer end() {
+        return fragments.get(fragments.size() - 1).getTo();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<RangeTombstone> iterator() {
+        return Collections.unmodifiableList(fragments).iterator();
+    }
+
+    /**
+     * Least key greater than the given one: the bytes are compared signed, so it is the key followed by -128.
+     */
+    @NotNull
+    static ByteBuffer successor(@NotNull final ByteBuffer key) {
+        final ByteBuffer successor = ByteBuffer.allocate(key.remaining() + 1);
+        successor.put(key.duplicate()).put(Byte.MIN_VALUE).flip();
+        return successor;
+    }
+
+    /**
+     * Key not less than every key below the given one: its predecessor if it ends with -128,
+     * or the key itself otherwise, since a key has no greatest one below it then.
+     */
+    @NotNull
+    static ByteBuffer lastCovered(@NotNull final ByteBuffer end) {
+        if (end.remaining() > 0 && end.get(end.limit() - 1) == Byte.MIN_VALUE) {
+            return end.duplicate().limit(end.limit() - 1).slice();
+        }
+        return end;
+    }
+}
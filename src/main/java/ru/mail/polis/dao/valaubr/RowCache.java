@@ -0,0 +1,219 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of resolved values, tombstones included, of recently read keys in front of all the tables.
+ * Every invalidation takes the next number, a read takes the number of the last one before resolving the value
+ * and its value is not put if a later invalidation covers its key, so a read that raced with a write
+ * does not put the value it resolved before the write. A write records its number in the stripe of its key,
+ * a range tombstone drops the entries of its range and stays in a short list of recent ranges.
+ * Entries are evicted by the CLOCK algorithm.
+ */
+@ThreadSafe
+final class RowCache {
+    private static final int STRIPES = 64;
+    //Map node, entry, key and value objects
+    static final int ENTRY_OVERHEAD = 128;
+    static final int RANGES = 16;
+
+    private final long capacity;
+    //Sorted, so a range tombstone finds its keys without a pass over the whole cache
+    private final ConcurrentSkipListMap<ByteBuffer, Entry> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final Lock[] stripes = new Lock[STRIPES];
+    //Guarded by the lock of the stripe, the number of the last write to a key of it
+    private final long[] versions = new long[STRIPES];
+    //Written under the locks of all the stripes, so read under the lock of any of them
+    private final RemovedRange[] ranges = new RemovedRange[RANGES];
+    private int nextRange;
+    //Number of the last range gone from the list, the values resolved before it are not put
+    private long forgotten;
+    private final Deque<Entry> clock = new ArrayDeque<>();
+    private long size;
+
+    /**
+     * Cache holding at most about the given number of bytes.
+     *
+     * @param capacity - budget in bytes, zero disables caching
+     */
+    RowCache(final long capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.referenced = true;
+        return entry.value;
+    }
+
+    /**
+     * Version to pass to {@link #put(ByteBuffer, Value, long)}, must be taken before resolving the value.
+     */
+    long version() {
+        return invalidations.get();
+    }
+
+    /**
+     * Caches the copies of the key and the value unless the key was written or removed by a range tombstone
+     * since the version was taken.
+     *
+     * @param key - key read
+     * @param value - value resolved for the key
+     * @param version - version of the key before the value was resolved
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value, final long version) {
+        final ByteBuffer keyCopy = copy(key);
+        final Value valueCopy = value.isTombstone()
+                ? value
+                : new Value(value.getTimestamp(), copy(value.getData()));
+        final Entry entry = new Entry(keyCopy, valueCopy);
+        if (entry.size > capacity) {
+            return;
+        }
+        final int stripe = stripe(keyCopy);
+        final Lock lock = stripes[stripe];
+        lock.lock();
+        try {
+            if (isStale(keyCopy, stripe, version) || entries.putIfAbsent(keyCopy, entry) != null) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        synchronized (clock) {
+            //Room is made before the entry joins the clock, so the sweep does not take it for an unread one
+            while (size + entry.size > capacity) {
+                final Entry victim = clock.removeFirst();
+                if (victim.referenced && entries.get(victim.key) == victim) {
+                    victim.referenced = false;
+                    clock.addLast(victim);
+                } else {
+                    entries.remove(victim.key, victim);
+                    size -= victim.size;
+                }
+            }
+            clock.addLast(entry);
+            size += entry.size;
+        }
+    }
+
+    private boolean isStale(
+            @NotNull final ByteBuffer key,
+            final int stripe,
+            final long version) {
+        if (versions[stripe] > version || forgotten > version) {
+            return true;
+        }
+        for (final RemovedRange range : ranges) {
+            if (range != null && range.number > version && range.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the key after it has been written, the entry leaves the clock on its next sweep.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        final int stripe = stripe(key);
+        final Lock lock = stripes[stripe];
+        lock.lock();
+        try {
+            versions[stripe] = invalidations.incrementAndGet();
+            entries.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the keys in [from, to) after a range tombstone has been written, the entries leave the clock
+     * on its next sweeps. The keys of the range may fall into any stripe, so the range is recorded
+     * under the locks of all of them and the keys of the other ranges stay cached.
+     *
+     * @param from - first key removed
+     * @param to - key after the last one removed
+     */
+    void invalidateRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        final RemovedRange range = new RemovedRange(copy(from), copy(to));
+        for (final Lock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            range.number = invalidations.incrementAndGet();
+            final RemovedRange oldest = ranges[nextRange];
+            if (oldest != null) {
+                forgotten = oldest.number;
+            }
+            ranges[nextRange] = range;
+            nextRange = (nextRange + 1) % RANGES;
+            entries.subMap(range.from, range.to).clear();
+        } finally {
+            for (final Lock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    private static final class RemovedRange {
+        private final ByteBuffer from;
+        private final ByteBuffer to;
+        private long number;
+
+        RemovedRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean contains(@NotNull final ByteBuffer key) {
+            return from.compareTo(key) <= 0 && key.compareTo(to) < 0;
+        }
+    }
+
+    private static final class Entry {
+        private final ByteBuffer key;
+        private final Value value;
+        private final long size;
+        private volatile boolean referenced;
+
+        Entry(@NotNull final ByteBuffer key, @NotNull final Value value) {
+            this.key = key;
+            this.value = value;
+            this.size = ENTRY_OVERHEAD + key.remaining() + (value.isTombstone() ? 0 : value.getData().remaining());
+        }
+    }
+}
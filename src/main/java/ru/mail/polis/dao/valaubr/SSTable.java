@@ -1,6 +1,10 @@
 package ru.mail.polis.dao.valaubr;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.Iters;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
@@ -8,151 +12,608 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * File layout, format version 6:
+ *
+ * [block 0] ... [block n - 1]
+ * [index: for each block - long offset, int key size, first key]
+ * [bloom filter: long words]
+ * [stats: int min key size, min key, int max key size, max key,
+ *         long min timestamp, long max timestamp, int tombstone count]
+ * [range tombstones: int count, for each fragment - int from size, from, int to size, to, long timestamp]
+ * [footer: long range tombstones offset, long stats offset, int level, long bloom offset, int bloom hash count,
+ *          long index offset, int block count, int cell count, int version, long magic]
+ *
+ * Each block is laid out as described in Block. The range tombstones are sorted disjoint fragments,
+ * the stats count them among the tombstones and take their keys and timestamps into account.
+ * Newer versions prepend their fields to the footer, so version 5 files end with the same fields
+ * but have no range tombstones, version 4 files have no stats either, version 3 files have no level
+ * either and live at level 0, version 2 files have no bloom filter either.
+ * Version 1 files have no index and no footer, the whole file is a single block.
+ *
+ * File offsets are longs and cell offsets are relative to their block, so the blocks are mapped
+ * in segments of whole blocks each below 2 GiB, and a table is not limited by the size of one mapping.
+ */
 @ThreadSafe
 public class SSTable implements Table {
+    static final int BLOCK_SIZE = 4 * 1024;
+    static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private static final int BLOCK_VERSION = 2;
+    private static final int BLOOM_VERSION = 3;
+    private static final int LEVEL_VERSION = 4;
+    private static final int STATS_VERSION = 5;
+    private static final int RANGE_VERSION = 6;
+    private static final int VERSION = RANGE_VERSION;
+    private static final long MAGIC = 0x4C534D5353544142L;
+    private static final int FOOTER_SIZE = Long.BYTES * 2 + Integer.BYTES * 3;
+    private static final int BLOOM_FOOTER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int LEVEL_FOOTER_SIZE = Integer.BYTES;
+    private static final int STATS_FOOTER_SIZE = Long.BYTES;
+    private static final int RANGE_FOOTER_SIZE = Long.BYTES;
+    private static final BloomFilter NO_FILTER = new BloomFilter(ByteBuffer.allocate(0), 0);
+    private static final AtomicLong IDS = new AtomicLong();
+    private static final Logger log = LoggerFactory.getLogger(SSTable.class);
+
+    private final long id = IDS.incrementAndGet();
+    private final File file;
+    private final int generation;
+    private final BlockCache blockCache;
+    private final long fileSize;
+    private final int level;
+    private final ByteBuffer firstKey;
+    private final ByteBuffer lastKey;
+    private final Object openLock = new Object();
+    private volatile Contents contents;
+    //Number of Levels snapshots holding the table
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean obsolete;
+
+    /**
+     * Opens the table file at once and reads the description of the table from it.
+     *
+     * @param file - table file
+     * @param generation - generation ordering the table among the tables of level 0
+     * @param blockCache - cache of the blocks read by point lookups
+     */
+    SSTable(
+            @NotNull final File file,
+            final int generation,
+            @NotNull final BlockCache blockCache) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.blockCache = blockCache;
+        final Contents opened = new Contents(file);
+        this.contents = opened;
+        this.fileSize = opened.fileSize;
+        this.level = opened.level;
+        final boolean empty = opened.size == 0 && opened.ranges.isEmpty();
+        this.firstKey = empty ? null : opened.firstKey();
+        this.lastKey = empty ? null : opened.lastKey();
+    }
+
+    /**
+     * Table described by the manifest, the file is opened on first access.
+     */
+    SSTable(
+            @NotNull final File file,
+            final int generation,
+            final int level,
+            final long fileSize,
+            @Nullable final ByteBuffer firstKey,
+            @Nullable final ByteBuffer lastKey,
+            @NotNull final BlockCache blockCache) {
+        this.file = file;
+        this.generation = generation;
+        this.level = level;
+        this.fileSize = fileSize;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.blockCache = blockCache;
+    }
+
+    @NotNull
+    private Contents contents() {
+        Contents opened = contents;
+        if (opened == null) {
+            synchronized (openLock) {
+                opened = contents;
+                if (opened == null) {
+                    try {
+                        opened = new Contents(file);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Can't open SSTable " + file, e);
+                    }
+                    contents = opened;
+                }
+            }
+        }
+        return opened;
+    }
+
+    private static void readFully(
+            @NotNull final FileChannel fileChannel,
+            @NotNull final ByteBuffer dst,
+            final long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (fileChannel.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Unexpected end of SSTable");
+            }
+        }
+    }
+
+    private static ByteBuffer map(
+            @NotNull final FileChannel fileChannel,
+            final long offset,
+            final long length) throws IOException {
+        if (length > MAX_SEGMENT_SIZE) {
+            throw new IOException("SSTable region of " + length + " bytes is too large to map");
+        }
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
 
-    private final FileChannel fileChannel;
+    /**
+     * Generation ordering the table among the tables of level 0, a compacted table takes the one of
+     * its newest input, so it may differ from the number in the file name.
+     */
+    int getGeneration() {
+        return generation;
+    }
 
-    private final int size;
-    private final int shift;
+    int getLevel() {
+        return level;
+    }
+
+    void acquire() {
+        refs.incrementAndGet();
+    }
 
-    SSTable(@NotNull final File file) throws IOException {
-        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        final int fileSize = (int) fileChannel.size();
+    /**
+     * Drops a reference, the file of an obsolete table is deleted with the last one.
+     */
+    void release() {
+        if (refs.decrementAndGet() == 0 && obsolete) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                log.error("Can't delete obsolete table {}", file, e);
+            }
+        }
+    }
 
-        final ByteBuffer offsetBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(offsetBuf, fileSize - Integer.BYTES);
-        size = offsetBuf.flip().getInt();
+    /**
+     * Marks the table merged away, must be called before the last snapshot holding it is released.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
 
-        shift = fileSize - Integer.BYTES * (1 + size);
+    /**
+     * Smallest key of the table or of its range tombstones, null if the table is empty.
+     */
+    @Nullable
+    ByteBuffer getFirstKey() {
+        return firstKey;
     }
 
+    /**
+     * Largest key of the table or of its range tombstones, null if the table is empty.
+     * The range tombstones make it the end of the last one, which may be past the greatest key covered.
+     */
+    @Nullable
+    ByteBuffer getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * First keys of the blocks in key order, samples splitting the table into parts of about the block size.
+     */
     @NotNull
+    List<ByteBuffer> getBlockKeys() {
+        final ByteBuffer[] firstKeys = contents().firstKeys;
+        final List<ByteBuffer> keys = new ArrayList<>(firstKeys.length);
+        for (final ByteBuffer key : firstKeys) {
+            keys.add(key.duplicate());
+        }
+        return keys;
+    }
+
+    /**
+     * Smallest timestamp of the cells, zero for tables written before the stats.
+     */
+    long getMinTimestamp() {
+        return contents().minTimestamp;
+    }
+
+    /**
+     * Largest timestamp of the cells, the maximum long for tables written before the stats.
+     */
+    long getMaxTimestamp() {
+        return contents().maxTimestamp;
+    }
+
+    /**
+     * Number of tombstones and range tombstone fragments, all the cells for tables written before the stats.
+     */
+    int getTombstoneCount() {
+        return contents().tombstoneCount;
+    }
+
+    /**
+     * Whether the table may hold keys in [from, to), null meaning no upper bound.
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return firstKey != null
+                && lastKey.compareTo(from) >= 0
+                && (to == null || firstKey.compareTo(to) < 0);
+    }
+
+    /**
+     * Looks up the key in the only block that may hold it, unless the bloom filter rules it out,
+     * and falls back to the range tombstones. A cell wins over the range tombstones of its own table.
+     */
+    @Nullable
     @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+    public Value get(@NotNull final ByteBuffer key) {
+        final Contents contents = contents();
+        if (contents.firstKeys.length == 0 || !contents.bloomFilter.mightContain(key)) {
+            return contents.ranges.get(key);
+        }
+        try (BlockCache.Handle block = cachedBlock(contents, contents.blockIndex(key))) {
+            final Value value = new Block(block.data()).get(key);
+            return value == null ? contents.ranges.get(key) : detached(value, block);
+        }
+    }
+
+    /**
+     * Looks up the sorted keys in a single pass: the searches of the block index and of the blocks
+     * start where the previous key was found, and a block is read once for all the keys it may hold.
+     *
+     * @param keys - keys sorted in ascending order without duplicates
+     * @param values - values by the indexes of the keys, only the null ones are looked up and filled
+     */
+    void get(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final Value[] values) {
+        if (firstKey == null) {
+            return;
+        }
+        final int first = firstAtLeast(keys, firstKey);
+        if (first == keys.size() || keys.get(first).compareTo(lastKey) > 0) {
+            return;
+        }
+        final Contents contents = contents();
+        int index = -1;
+        BlockCache.Handle handle = null;
+        Block block = null;
+        int position = 0;
+        try {
+            for (int i = first; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                if (key.compareTo(lastKey) > 0) {
+                    return;
+                }
+                if (values[i] != null) {
+                    continue;
+                }
+                if (contents.firstKeys.length == 0 || !contents.bloomFilter.mightContain(key)) {
+                    values[i] = contents.ranges.get(key);
+                    continue;
+                }
+                final int next = contents.blockIndex(key, Math.max(index, 0));
+                if (next != index) {
+                    if (handle != null) {
+                        handle.close();
+                    }
+                    index = next;
+                    handle = cachedBlock(contents, index);
+                    block = new Block(handle.data());
+                    position = 0;
+                }
+                position = block.position(key, position);
+                final Value value = block.get(key, position);
+                values[i] = value == null ? contents.ranges.get(key) : detached(value, handle);
+            }
+        } finally {
+            if (handle != null) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the value out of a cached block, whose slot may be reused once the handle is closed.
+     */
+    @NotNull
+    private static Value detached(
+            @NotNull final Value value,
+            @NotNull final BlockCache.Handle block) {
+        if (!block.isCached() || value.isTombstone()) {
+            return value;
+        }
+        final ByteBuffer data = value.getData();
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        return new Value(value.getTimestamp(), copy);
+    }
+
+    private static int firstAtLeast(
+            @NotNull final List<ByteBuffer> keys,
+            @NotNull final ByteBuffer key) {
+        final int index = Collections.binarySearch(keys, key);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return contents().ranges;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final Contents contents = contents();
+        if (contents.firstKeys.length == 0) {
+            return Iters.empty();
+        }
+        final ByteBuffer key = from.rewind();
+        final int first = contents.blockIndex(key);
+        final Block firstBlock = contents.block(first);
         return new Iterator<>() {
-            int pos = getPosition(from.rewind());
+            int index = first;
+            Block block = firstBlock;
+            int pos = firstBlock.position(key);
 
             @Override
             public boolean hasNext() {
-                return pos < size;
+                while (pos == block.count() && index + 1 < contents.firstKeys.length) {
+                    block = contents.block(++index);
+                    pos = 0;
+                }
+                return pos < block.count();
             }
 
             @Override
             public Cell next() {
-                try {
-                    return getCell(pos++);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more cells in SSTable");
                 }
+                return block.cell(pos++);
             }
         };
     }
 
-    static void serialize(
-            final File file,
-            final Iterator<Cell> iterator) throws IOException {
-        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
-            final List<Integer> offsets = new ArrayList<>();
-            int offset = 0;
-            while (iterator.hasNext()) {
-                final Cell cell = iterator.next();
-                final ByteBuffer key = cell.getKey();
-                final Value value = cell.getValue();
-                final int keySize = key.remaining();
-                offsets.add(offset);
-                offset += keySize + Integer.BYTES * 2 + Long.BYTES;
-
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(keySize).flip());
-
-                fileChannel.write(key);
-
-                fileChannel.write(ByteBuffer.allocate(Long.BYTES).putLong(value.getTimestamp()).flip());
+    /**
+     * Walks the blocks backwards from the last cell below the upper bound to the first cell of the range,
+     * both found by the block index.
+     */
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final Contents contents = contents();
+        if (contents.firstKeys.length == 0 || to != null && from.compareTo(to) >= 0) {
+            return Iters.empty();
+        }
+        final int firstIndex = contents.blockIndex(from);
+        final int firstPos = contents.block(firstIndex).position(from);
+        final int lastIndex = to == null ? contents.firstKeys.length - 1 : contents.blockIndex(to);
+        final Block lastBlock = contents.block(lastIndex);
+        final int lastPos = (to == null ? lastBlock.count() : lastBlock.position(to)) - 1;
+        return new Iterator<>() {
+            int index = lastIndex;
+            Block block = lastBlock;
+            int pos = lastPos;
 
-                if (value.isTombstone()) {
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(-1).flip());
-                } else {
-                    final ByteBuffer valueBuffer = value.getData();
-                    final int valueSize = valueBuffer.remaining();
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(valueSize).flip());
-                    fileChannel.write(valueBuffer);
-                    offset += valueSize;
+            @Override
+            public boolean hasNext() {
+                while (pos < 0 && index > firstIndex) {
+                    block = contents.block(--index);
+                    pos = block.count() - 1;
                 }
+                return pos >= 0 && (index > firstIndex || pos >= firstPos);
             }
 
-            for (final Integer i : offsets) {
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(i).flip());
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more cells in SSTable");
+                }
+                return block.cell(pos--);
             }
-            fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(offsets.size()).flip());
-        }
+        };
     }
 
-    private int getOffset(final int position) throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(buffer, shift + position * Integer.BYTES);
-        return buffer.flip().getInt();
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
     }
 
-    private ByteBuffer getKey(final int position) throws IOException {
-        final int keyLengthOffset = getOffset(position);
-
-        final ByteBuffer keySizeBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(keySizeBuf, keyLengthOffset);
-
-        final ByteBuffer keyBuf = ByteBuffer.allocate(keySizeBuf.flip().getInt());
-        fileChannel.read(keyBuf, keyLengthOffset + Integer.BYTES);
-
-        return keyBuf.flip();
+    @NotNull
+    private BlockCache.Handle cachedBlock(
+            @NotNull final Contents contents,
+            final int index) {
+        final long offset = contents.blockOffsets[index];
+        final BlockCache.Handle cached = blockCache.get(id, offset);
+        return cached == null ? blockCache.put(id, offset, contents.blockData(index)) : cached;
     }
 
-    private int getPosition(final ByteBuffer key) throws IOException {
-        int left = 0;
-        int right = size - 1;
-        while (left <= right) {
-            final int mid = (left + right) / 2;
-            final ByteBuffer midValue = getKey(mid);
-            final int cmp = midValue.compareTo(key);
+    /**
+     * Writes cells of the iterator to the file until it ends or the file grows to maxSize,
+     * the last cell may exceed the limit. The range tombstones go along up to the last cell written,
+     * or all of them once the iterator ends.
+     *
+     * @param file - file to write to
+     * @param iterator - sorted cells without equal keys
+     * @param ranges - range tombstones, the cells are resolved against them
+     * @param bloomBitsPerKey - bloom filter size per key
+     * @param level - level the table belongs to
+     * @param maxSize - size in bytes to stop at
+     * @return number of cells and range tombstone fragments written
+     */
+    static int serialize(
+            @NotNull final File file,
+            @NotNull final Iterator<Cell> iterator,
+            @NotNull final RangeTombstones ranges,
+            final int bloomBitsPerKey,
+            final int level,
+            final long maxSize) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(file)) {
+            final List<ByteBuffer> firstKeys = new ArrayList<>();
+            long[] blockOffsets = new long[BLOCK_SIZE / Long.BYTES];
+            int[] offsets = new int[BLOCK_SIZE / Integer.BYTES];
+            long[] hashes = new long[BLOCK_SIZE];
+            long blockOffset = 0;
+            int blockCells = 0;
+            int cellCount = 0;
+            ByteBuffer lastKey = ByteBuffer.allocate(0);
+            long minTimestamp = Long.MAX_VALUE;
+            long maxTimestamp = Long.MIN_VALUE;
+            int tombstoneCount = 0;
+            while (iterator.hasNext() && writer.position() < maxSize) {
+                final Cell cell = iterator.next();
+                final ByteBuffer key = cell.getKey();
+                final Value value = cell.getValue();
+                if (blockCells == 0) {
+                    blockOffset = writer.position();
+                    if (firstKeys.size() == blockOffsets.length) {
+                        blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+                    }
+                    blockOffsets[firstKeys.size()] = blockOffset;
+                    firstKeys.add(key.duplicate());
+                }
+                if (blockCells == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, blockCells * 2);
+                }
+                offsets[blockCells++] = (int) (writer.position() - blockOffset);
+                if (cellCount == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, cellCount * 2);
+                }
+                hashes[cellCount++] = BloomFilter.hash(key);
+                lastKey = key.duplicate();
+                minTimestamp = Math.min(minTimestamp, value.getTimestamp());
+                maxTimestamp = Math.max(maxTimestamp, value.getTimestamp());
+
+                writer.putInt(key.remaining());
+                writer.put(key);
+                writer.putLong(value.getTimestamp());
+                if (value.isTombstone()) {
+                    writer.putInt(Block.TOMBSTONE);
+                    tombstoneCount++;
+                } else {
+                    final ByteBuffer data = value.getData();
+                    writer.putInt(data.remaining());
+                    writer.put(data);
+                }
 
-            if (cmp < 0) {
-                left = mid + 1;
-            } else if (cmp > 0) {
-                right = mid - 1;
-            } else {
-                return mid;
+                if (writer.position() - blockOffset >= BLOCK_SIZE) {
+                    writeTrailer(writer, offsets, blockCells);
+                    blockCells = 0;
+                }
+            }
+            if (blockCells > 0) {
+                writeTrailer(writer, offsets, blockCells);
             }
-        }
-        return left;
-    }
-
-    private Cell getCell(final int position) throws IOException {
 
-        int elementOffset = getOffset(position);
+            final RangeTombstones written = iterator.hasNext()
+                    ? ranges.clip(null, RangeTombstones.successor(lastKey))
+                    : ranges;
+            ByteBuffer firstKey = firstKeys.isEmpty() ? ByteBuffer.allocate(0) : firstKeys.get(0).duplicate();
+            if (!written.isEmpty()) {
+                final ByteBuffer lastCovered = RangeTombstones.lastCovered(written.end());
+                if (cellCount == 0 || written.first().compareTo(firstKey) < 0) {
+                    firstKey = written.first();
+                }
+                if (cellCount == 0 || lastCovered.compareTo(lastKey) > 0) {
+                    lastKey = lastCovered;
+                }
+                for (final RangeTombstone fragment : written) {
+                    minTimestamp = Math.min(minTimestamp, fragment.getTimestamp());
+                    maxTimestamp = Math.max(maxTimestamp, fragment.getTimestamp());
+                }
+                tombstoneCount += written.size();
+            }
+            final long indexOffset = writer.position();
+            for (int i = 0; i < firstKeys.size(); i++) {
+                final ByteBuffer key = firstKeys.get(i);
+                writer.putLong(blockOffsets[i]);
+                writer.putInt(key.remaining());
+                writer.put(key);
+            }
 
-        final ByteBuffer key = getKey(position);
+            final long bloomOffset = writer.position();
+            for (final long word : BloomFilter.build(hashes, cellCount, bloomBitsPerKey)) {
+                writer.putLong(word);
+            }
 
-        elementOffset += Integer.BYTES + key.remaining();
-        final ByteBuffer timestampBuf = ByteBuffer.allocate(Long.BYTES);
-        fileChannel.read(timestampBuf, elementOffset);
+            final long statsOffset = writer.position();
+            writer.putInt(firstKey.remaining());
+            writer.put(firstKey);
+            writer.putInt(lastKey.remaining());
+            writer.put(lastKey);
+            writer.putLong(minTimestamp);
+            writer.putLong(maxTimestamp);
+            writer.putInt(tombstoneCount);
+
+            final long rangesOffset = writer.position();
+            writer.putInt(written.size());
+            for (final RangeTombstone fragment : written) {
+                final ByteBuffer from = fragment.getFrom();
+                final ByteBuffer to = fragment.getTo();
+                writer.putInt(from.remaining());
+                writer.put(from);
+                writer.putInt(to.remaining());
+                writer.put(to);
+                writer.putLong(fragment.getTimestamp());
+            }
 
-        final ByteBuffer valueSizeBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(valueSizeBuf, elementOffset + Long.BYTES);
-        final int valueSize = valueSizeBuf.flip().getInt();
+            writer.putLong(rangesOffset);
+            writer.putLong(statsOffset);
+            writer.putInt(level);
+            writer.putLong(bloomOffset);
+            writer.putInt(BloomFilter.hashCount(bloomBitsPerKey));
+            writer.putLong(indexOffset);
+            writer.putInt(firstKeys.size());
+            writer.putInt(cellCount);
+            writer.putInt(VERSION);
+            writer.putLong(MAGIC);
+            return cellCount + written.size();
+        }
+    }
 
-        final Value value;
-        if (valueSize == -1) {
-            value = new Value(timestampBuf.flip().getLong());
-        } else {
-            final ByteBuffer valueBuf = ByteBuffer.allocate(valueSize);
-            fileChannel.read(valueBuf, elementOffset + Long.BYTES + Integer.BYTES);
-            valueBuf.flip();
-            value = new Value(timestampBuf.flip().getLong(), valueBuf);
+    private static void writeTrailer(
+            @NotNull final SSTableWriter writer,
+            @NotNull final int[] offsets,
+            final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            writer.putInt(offsets[i]);
         }
-        return new Cell(key, value);
+        writer.putInt(count);
     }
 
     @Override
@@ -167,24 +628,219 @@ public class SSTable implements Table {
 
     @Override
     public long getSizeInBytes() {
-        try {
-            return fileChannel.size();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        return fileSize;
     }
 
     @Override
     public int size() {
-        return size;
+        return contents().size;
     }
 
     @Override
     public void close() {
-        try {
-            fileChannel.close();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        // The mapping is released together with the last view of it
+    }
+
+    /**
+     * Index, bloom filter and mapping of an open table file.
+     */
+    private static final class Contents {
+        private final long fileSize;
+        private final int level;
+        private final int size;
+        private final long[] blockOffsets;
+        private final ByteBuffer[] firstKeys;
+        private final BloomFilter bloomFilter;
+        private final ByteBuffer[] segments;
+        private final long[] segmentOffsets;
+        private final int[] blockSegments;
+        private final ByteBuffer minKey;
+        private final ByteBuffer maxKey;
+        private final long minTimestamp;
+        private final long maxTimestamp;
+        private final int tombstoneCount;
+        private final RangeTombstones ranges;
+
+        Contents(@NotNull final File file) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                fileSize = fileChannel.size();
+                final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                if (fileSize >= FOOTER_SIZE) {
+                    readFully(fileChannel, footer, fileSize - FOOTER_SIZE);
+                }
+                if (fileSize >= FOOTER_SIZE && footer.getLong(FOOTER_SIZE - Long.BYTES) == MAGIC) {
+                    final int version = footer.getInt(Long.BYTES + Integer.BYTES * 2);
+                    if (version < BLOCK_VERSION || version > VERSION) {
+                        throw new IOException("Unknown SSTable version " + version + " in " + file);
+                    }
+                    final long indexOffset = footer.getLong(0);
+                    final int blockCount = footer.getInt(Long.BYTES);
+                    size = footer.getInt(Long.BYTES + Integer.BYTES);
+                    final ByteBuffer tail = map(fileChannel, indexOffset, fileSize - indexOffset);
+                    blockOffsets = new long[blockCount + 1];
+                    firstKeys = new ByteBuffer[blockCount];
+                    int entry = 0;
+                    for (int i = 0; i < blockCount; i++) {
+                        blockOffsets[i] = tail.getLong(entry);
+                        final int keySize = tail.getInt(entry + Long.BYTES);
+                        entry += Long.BYTES + Integer.BYTES;
+                        firstKeys[i] = slice(tail, entry, keySize);
+                        entry += keySize;
+                    }
+                    blockOffsets[blockCount] = indexOffset;
+                    final int bloomFooter = tail.limit() - FOOTER_SIZE - BLOOM_FOOTER_SIZE;
+                    final int levelFooter = bloomFooter - LEVEL_FOOTER_SIZE;
+                    final int statsFooter = levelFooter - STATS_FOOTER_SIZE;
+                    final int rangeFooter = statsFooter - RANGE_FOOTER_SIZE;
+                    if (version >= LEVEL_VERSION) {
+                        level = tail.getInt(levelFooter);
+                    } else {
+                        level = 0;
+                    }
+                    final int bloomEnd;
+                    if (version >= STATS_VERSION) {
+                        int stats = (int) (tail.getLong(statsFooter) - indexOffset);
+                        bloomEnd = stats;
+                        final int minKeySize = tail.getInt(stats);
+                        minKey = slice(tail, stats + Integer.BYTES, minKeySize);
+                        stats += Integer.BYTES + minKeySize;
+                        final int maxKeySize = tail.getInt(stats);
+                        maxKey = slice(tail, stats + Integer.BYTES, maxKeySize);
+                        stats += Integer.BYTES + maxKeySize;
+                        minTimestamp = tail.getLong(stats);
+                        maxTimestamp = tail.getLong(stats + Long.BYTES);
+                        tombstoneCount = tail.getInt(stats + Long.BYTES * 2);
+                    } else {
+                        bloomEnd = version >= LEVEL_VERSION ? levelFooter : bloomFooter;
+                        minKey = null;
+                        maxKey = null;
+                        minTimestamp = 0;
+                        maxTimestamp = Long.MAX_VALUE;
+                        tombstoneCount = size;
+                    }
+                    if (version >= RANGE_VERSION) {
+                        ranges = readRanges(tail, (int) (tail.getLong(rangeFooter) - indexOffset));
+                    } else {
+                        ranges = RangeTombstones.EMPTY;
+                    }
+                    if (version >= BLOOM_VERSION) {
+                        final int bloomOffset = (int) (tail.getLong(bloomFooter) - indexOffset);
+                        bloomFilter = new BloomFilter(
+                                slice(tail, bloomOffset, bloomEnd - bloomOffset),
+                                tail.getInt(bloomFooter + Long.BYTES));
+                    } else {
+                        bloomFilter = NO_FILTER;
+                    }
+                } else {
+                    final ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+                    readFully(fileChannel, count, fileSize - Integer.BYTES);
+                    size = count.getInt(0);
+                    blockOffsets = new long[]{0, fileSize};
+                    firstKeys = new ByteBuffer[]{ByteBuffer.allocate(0)};
+                    bloomFilter = NO_FILTER;
+                    level = 0;
+                    minKey = null;
+                    maxKey = null;
+                    minTimestamp = 0;
+                    maxTimestamp = Long.MAX_VALUE;
+                    tombstoneCount = size;
+                    ranges = RangeTombstones.EMPTY;
+                }
+
+                blockSegments = new int[firstKeys.length];
+                final List<Long> starts = new ArrayList<>();
+                for (int i = 0; i < firstKeys.length; i++) {
+                    if (starts.isEmpty() || blockOffsets[i + 1] - starts.get(starts.size() - 1) > MAX_SEGMENT_SIZE) {
+                        starts.add(blockOffsets[i]);
+                    }
+                    blockSegments[i] = starts.size() - 1;
+                }
+                segments = new ByteBuffer[starts.size()];
+                segmentOffsets = new long[starts.size()];
+                for (int i = 0; i < segments.length; i++) {
+                    segmentOffsets[i] = starts.get(i);
+                    final long end = i + 1 < segments.length ? starts.get(i + 1) : blockOffsets[firstKeys.length];
+                    segments[i] = map(fileChannel, segmentOffsets[i], end - segmentOffsets[i]);
+                }
+            }
+        }
+
+        @NotNull
+        private static RangeTombstones readRanges(
+                @NotNull final ByteBuffer tail,
+                final int offset) {
+            final int count = tail.getInt(offset);
+            final List<RangeTombstone> fragments = new ArrayList<>(count);
+            int entry = offset + Integer.BYTES;
+            for (int i = 0; i < count; i++) {
+                final int fromSize = tail.getInt(entry);
+                final ByteBuffer from = slice(tail, entry + Integer.BYTES, fromSize);
+                entry += Integer.BYTES + fromSize;
+                final int toSize = tail.getInt(entry);
+                final ByteBuffer to = slice(tail, entry + Integer.BYTES, toSize);
+                entry += Integer.BYTES + toSize;
+                fragments.add(new RangeTombstone(from, to, tail.getLong(entry)));
+                entry += Long.BYTES;
+            }
+            return RangeTombstones.of(fragments);
+        }
+
+        @NotNull
+        private ByteBuffer firstKey() {
+            if (minKey != null) {
+                return minKey;
+            }
+            return block(0).cell(0).getKey();
+        }
+
+        @NotNull
+        private ByteBuffer lastKey() {
+            if (maxKey != null) {
+                return maxKey;
+            }
+            final Block block = block(firstKeys.length - 1);
+            return block.cell(block.count() - 1).getKey();
+        }
+
+        /**
+         * Index of the last block starting with a key not greater than the given one.
+         */
+        private int blockIndex(@NotNull final ByteBuffer key) {
+            return blockIndex(key, 0);
+        }
+
+        /**
+         * Index of the last block starting with a key not greater than the given one,
+         * searched from the given block on.
+         */
+        private int blockIndex(
+                @NotNull final ByteBuffer key,
+                final int from) {
+            int left = from + 1;
+            int right = firstKeys.length - 1;
+            while (left <= right) {
+                final int mid = (left + right) >>> 1;
+                final int cmp = firstKeys[mid].compareTo(key);
+
+                if (cmp < 0) {
+                    left = mid + 1;
+                } else if (cmp > 0) {
+                    right = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return left - 1;
+        }
+
+        private ByteBuffer blockData(final int index) {
+            final int segment = blockSegments[index];
+            final int offset = (int) (blockOffsets[index] - segmentOffsets[segment]);
+            return slice(segments[segment], offset, (int) (blockOffsets[index + 1] - blockOffsets[index]));
+        }
+
+        private Block block(final int index) {
+            return new Block(blockData(index));
         }
     }
 }
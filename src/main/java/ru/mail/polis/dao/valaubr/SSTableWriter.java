@@ -0,0 +1,96 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential writer of an {@link SSTable} file.
+ * Everything goes through a large direct buffer, which is reused by the next writer on the same thread,
+ * so the channel sees few big writes instead of one per field.
+ * The file is forced to the disk on close, the write-ahead log of its memtable is deleted after that.
+ */
+final class SSTableWriter implements Closeable {
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final FileChannel fileChannel;
+    private final ByteBuffer buffer;
+    private long position;
+
+    SSTableWriter(@NotNull final File file) throws IOException {
+        //A temporary file left by a crash may have the same name, its tail must not outlive the new table
+        this.fileChannel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = BUFFERS.get();
+        this.buffer.clear();
+    }
+
+    /**
+     * Offset in the file the next byte will be written at.
+     */
+    long position() {
+        return position;
+    }
+
+    void putInt(final int value) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+        position += Integer.BYTES;
+    }
+
+    void putLong(final long value) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(value);
+        position += Long.BYTES;
+    }
+
+    /**
+     * Writes the remaining bytes of src and consumes them.
+     */
+    void put(@NotNull final ByteBuffer src) throws IOException {
+        final int size = src.remaining();
+        if (size > buffer.capacity()) {
+            flush();
+            while (src.hasRemaining()) {
+                fileChannel.write(src);
+            }
+        } else {
+            ensure(size);
+            buffer.put(src);
+        }
+        position += size;
+    }
+
+    private void ensure(final int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            fileChannel.force(false);
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Numbers of the memtable writes and of the open snapshots.
+ * Every write takes the next number and a snapshot sees the writes numbered up to the last one taken
+ * when it was opened. A memtable keeps a version replaced by a write only while an open snapshot may read it.
+ * Snapshots are not opened while batches are being applied, so a snapshot sees all the writes of a batch or none.
+ */
+@ThreadSafe
+final class Sequencer {
+    /**
+     * Number of the values read from SSTables or replayed, seen by every snapshot.
+     */
+    static final long PERSISTED = 0;
+
+    /**
+     * Number below all the numbers of the values, no version is seen by it.
+     */
+    static final long NONE = -1;
+
+    private final AtomicLong last = new AtomicLong(PERSISTED);
+    private final AtomicInteger opening = new AtomicInteger();
+    //Open snapshots by their numbers, with the counts of each number
+    private final ConcurrentNavigableMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+    //Shared by the batches being applied, exclusive while a snapshot takes its number
+    private final ReadWriteLock batches = new ReentrantReadWriteLock();
+
+    /**
+     * Number of a new write.
+     */
+    long next() {
+        return last.incrementAndGet();
+    }
+
+    /**
+     * Number of the newest open snapshot, the versions replaced by a write which are newer than it
+     * are read by no snapshot. The caller must have taken the number of the write already: a snapshot
+     * opened after this call gets a number not less than it and needs none of the replaced versions.
+     *
+     * @return number of the snapshot or {@link #NONE} if there are no snapshots open
+     */
+    long newestSnapshot() {
+        if (opening.get() > 0) {
+            return Long.MAX_VALUE;
+        }
+        final Map.Entry<Long, Integer> newest = snapshots.lastEntry();
+        return newest == null ? NONE : newest.getKey();
+    }
+
+    /**
+     * Registers a snapshot of the writes made so far.
+     *
+     * @return number of the snapshot, to be passed to {@link #close(long)}
+     */
+    long open() {
+        //Announced before the number is read, so writers numbered after it keep the versions they replace
+        opening.incrementAndGet();
+        batches.writeLock().lock();
+        try {
+            final long sequence = last.get();
+            snapshots.merge(sequence, 1, Integer::sum);
+            return sequence;
+        } finally {
+            batches.writeLock().unlock();
+            opening.decrementAndGet();
+        }
+    }
+
+    /**
+     * Lock to hold while the writes of a batch are numbered and applied, many batches may hold it at once.
+     */
+    @NotNull
+    Lock batchLock() {
+        return batches.readLock();
+    }
+
+    /**
+     * Unregisters a snapshot.
+     */
+    void close(final long sequence) {
+        snapshots.computeIfPresent(sequence, (key, count) -> count == 1 ? null : count - 1);
+    }
+}
@@ -0,0 +1,178 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Memtable split into shards by the hash of the key, so concurrent writers of different keys
+ * mostly touch different maps and size counters.
+ * A key always falls into the same shard, so the shards hold disjoint keys and iterate
+ * as one table by a merge, a flush writes them into a single SSTable.
+ */
+@ThreadSafe
+final class ShardedMemTable implements VersionedTable {
+    private final VersionedTable[] shards;
+
+    /**
+     * Memtable of empty shards.
+     *
+     * @param count - number of shards
+     * @param memTables - factory of the shards
+     */
+    ShardedMemTable(
+            final int count,
+            @NotNull final Supplier<VersionedTable> memTables) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Bad number of shards: " + count);
+        }
+        this.shards = new VersionedTable[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = memTables.get();
+        }
+    }
+
+    @NotNull
+    private VersionedTable shard(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(shards.length);
+        for (final Table shard : shards) {
+            iterators.add(shard.iterator(from));
+        }
+        return Cells.merge(iterators);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long snapshot) {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(shards.length);
+        for (final VersionedTable shard : shards) {
+            iterators.add(shard.iterator(from, snapshot));
+        }
+        return Cells.merge(iterators);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return descendingIterator(from, to, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long snapshot) {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(shards.length);
+        for (final VersionedTable shard : shards) {
+            iterators.add(shard.descendingIterator(from, to, snapshot));
+        }
+        return Cells.mergeDescending(iterators);
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        return shard(key).get(key);
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long snapshot) {
+        return shard(key).get(key, snapshot);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        shard(key).upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        shard(key).remove(key);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long timestamp) throws IOException {
+        shard(key).upsert(key, value, timestamp);
+    }
+
+    @Override
+    public void remove(
+            @NotNull final ByteBuffer key,
+            final long timestamp) throws IOException {
+        shard(key).remove(key, timestamp);
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        long size = 0;
+        for (final Table shard : shards) {
+            size += shard.getSizeInBytes();
+        }
+        return size;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        long size = 0;
+        for (final VersionedTable shard : shards) {
+            size += shard.getAllocatedBytes();
+        }
+        return size;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (final Table shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean acquire() {
+        for (int i = 0; i < shards.length; i++) {
+            if (!shards[i].acquire()) {
+                //Closed one by one, so the shards before this one may still be held
+                for (int j = 0; j < i; j++) {
+                    shards[j].release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        for (final VersionedTable shard : shards) {
+            shard.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (final Table shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Size-tiered compaction.
+ * Level 0 tables of similar size are merged once there are enough of them, so a table takes part
+ * in a merge about once per tier and the number of tables grows logarithmically with the data.
+ * Only tables adjacent in generation order are merged together, because a point lookup trusts
+ * the first table that knows the key, and the result takes the place of its inputs.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final long minTableSize;
+
+    SizeTieredCompaction(@NotNull final LsmConfig config) {
+        this.minThreshold = config.tierCompactionThreshold;
+        this.maxThreshold = config.tierMaxTables;
+        this.minTableSize = config.tierMinTableSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final Levels levels) {
+        final List<SSTable> tables = levels.level(0);
+        int start = 0;
+        while (start + minThreshold <= tables.size()) {
+            double average = size(tables.get(start));
+            int end = start + 1;
+            while (end < tables.size() && end - start < maxThreshold) {
+                final long size = size(tables.get(end));
+                if (size < average * BUCKET_LOW || size > average * BUCKET_HIGH) {
+                    break;
+                }
+                average += (size - average) / (end - start + 1);
+                end++;
+            }
+            if (end - start >= minThreshold) {
+                return new Compaction(tables.subList(start, end), 0);
+            }
+            start = end;
+        }
+        return null;
+    }
+
+    /**
+     * Size of the table for bucketing, tables below the minimum are all in the smallest tier.
+     */
+    private long size(@NotNull final SSTable table) {
+        return Math.max(table.getSizeInBytes(), minTableSize);
+    }
+}
@@ -0,0 +1,198 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.Iters;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Point-in-time view of a {@link LsmDAO}, see {@link LsmDAO#snapshot()}.
+ * It sees the writes numbered up to its number, in the memtables and the SSTables it holds,
+ * so later writes, flushes and compactions do not change it and reading it takes no lock.
+ * The iterators opened hold it until they are exhausted or closed, even after it is closed,
+ * or garbage collected if left halfway.
+ */
+@ThreadSafe
+public final class Snapshot implements Closeable {
+    private final long sequence;
+    private final List<VersionedTable> memTables;
+    private final Levels levels;
+    private final Sequencer sequencer;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Snapshot taking over the references to the tables.
+     *
+     * @param sequence - number of the snapshot registered in the sequencer
+     * @param memTables - acquired memtables, newest first
+     * @param levels - acquired SSTables
+     * @param sequencer - sequencer to unregister the snapshot from
+     */
+    Snapshot(
+            final long sequence,
+            @NotNull final List<VersionedTable> memTables,
+            @NotNull final Levels levels,
+            @NotNull final Sequencer sequencer) {
+        this.sequence = sequence;
+        this.memTables = memTables;
+        this.levels = levels;
+        this.sequencer = sequencer;
+    }
+
+    /**
+     * Number of the last write seen by the snapshot.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Records of the snapshot starting at the key, see {@link ru.mail.polis.dao.DAO#iterator(ByteBuffer)}.
+     */
+    @NotNull
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+        return cells(from, null).map(LsmDAO::records);
+    }
+
+    /**
+     * Records of the snapshot in the key range, see {@link ru.mail.polis.dao.DAO#range(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return cells(from, to).map(cells -> LsmDAO.records(Cells.until(cells, to)));
+    }
+
+    /**
+     * Records of the snapshot in the key range from the greatest key down,
+     * see {@link ru.mail.polis.dao.DAO#descendingRange(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    public Iterator<Record> descendingRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return descendingCells(from, to).map(LsmDAO::records);
+    }
+
+    /**
+     * Value of the key in the snapshot.
+     *
+     * @throws NoSuchElementException if the key had no value
+     */
+    @NotNull
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        final Value value = lookup(key);
+        if (value == null || value.isTombstone()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
+    }
+
+    @Nullable
+    private Value lookup(@NotNull final ByteBuffer key) {
+        acquireOpen();
+        try {
+            for (final VersionedTable table : memTables) {
+                final Value value = table.get(key, sequence);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return levels.get(key);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Cells of the snapshot from the key, tombstones included, holding the snapshot until they are read.
+     */
+    @NotNull
+    SnapshotIterator<Cell> cells(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        acquireOpen();
+        final List<Iterator<Cell>> iterators = new ArrayList<>(memTables.size() + 1);
+        final List<RangeTombstones> ranges = new ArrayList<>(memTables.size() + 1);
+        for (final VersionedTable table : memTables) {
+            iterators.add(table.iterator(from, sequence));
+            ranges.add(table.rangeTombstones(sequence));
+        }
+        iterators.addAll(levels.iterators(from, to));
+        ranges.addAll(levels.rangeTombstones(from, to));
+        return new SnapshotIterator<>(Cells.merge(iterators, ranges), this::release);
+    }
+
+    /**
+     * Cells of the snapshot in [from, to) from the greatest key down, tombstones included,
+     * holding the snapshot until they are read.
+     */
+    @NotNull
+    SnapshotIterator<Cell> descendingCells(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        acquireOpen();
+        final List<Iterator<Cell>> iterators = new ArrayList<>(memTables.size() + 1);
+        final List<RangeTombstones> ranges = new ArrayList<>(memTables.size() + 1);
+        for (final VersionedTable table : memTables) {
+            iterators.add(table.descendingIterator(from, to, sequence));
+            ranges.add(table.rangeTombstones(sequence));
+        }
+        iterators.addAll(levels.descendingIterators(from, to));
+        ranges.addAll(levels.rangeTombstones(from, to));
+        return new SnapshotIterator<>(Cells.mergeDescending(iterators, ranges), this::release);
+    }
+
+    private void acquireOpen() {
+        if (closed.get() || !acquire()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    private boolean acquire() {
+        int current = refs.get();
+        while (current > 0) {
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = refs.get();
+        }
+        return false;
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            TablesPool.release(memTables);
+            levels.release();
+            sequencer.close(sequence);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Iterator over the tables of a {@link Snapshot}, or over memtables, which holds them until the iterator
+ * is exhausted or closed, or garbage collected if the reader leaves it halfway.
+ *
+ * @param <T> - cells or what they are made into, see {@link #map(Function)}
+ */
+final class SnapshotIterator<T> implements Iterator<T>, Closeable {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<T> delegate;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Iterator running the release once.
+     *
+     * @param delegate - elements read from the tables
+     * @param release - releases the tables, must not refer to the iterator
+     */
+    SnapshotIterator(@NotNull final Iterator<T> delegate, @NotNull final Runnable release) {
+        this.delegate = delegate;
+        this.cleanable = CLEANER.register(this, release);
+    }
+
+    private SnapshotIterator(@NotNull final Iterator<T> delegate, @NotNull final Cleaner.Cleanable cleanable) {
+        this.delegate = delegate;
+        this.cleanable = cleanable;
+    }
+
+    /**
+     * Iterator over the view of this one, releasing the same tables. It reaches this one,
+     * so this one is not garbage collected before it.
+     *
+     * @param view - makes the elements of the new iterator of the ones of this one
+     */
+    @NotNull
+    <R> SnapshotIterator<R> map(@NotNull final Function<Iterator<T>, Iterator<R>> view) {
+        return new SnapshotIterator<>(view.apply(this), cleanable);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (delegate.hasNext()) {
+            return true;
+        }
+        cleanable.clean();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more elements");
+        }
+        return delegate.next();
+    }
+
+    /**
+     * Releases the tables, the iterator must not be read after that.
+     */
+    @Override
+    public void close() {
+        cleanable.clean();
+    }
+}
@@ -1,6 +1,7 @@
 package ru.mail.polis.dao.valaubr;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -11,10 +12,37 @@ public interface Table {
     @NotNull
     Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Cells with keys in [from, to) from the greatest key down.
+     *
+     * @param from - least key
+     * @param to - key to start below, null meaning no bound
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Looks up the latest value of the key in this table.
+     *
+     * @param key - key to look up
+     * @return value, possibly a tombstone, or null if the table knows nothing about the key
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key);
+
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
 
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Range tombstones of the table. They hide the versions of the keys they cover in the older tables,
+     * the cells of the table itself are already resolved against them.
+     */
+    @NotNull
+    default RangeTombstones rangeTombstones() {
+        return RangeTombstones.EMPTY;
+    }
+
     long getSizeInBytes();
 
     int size();
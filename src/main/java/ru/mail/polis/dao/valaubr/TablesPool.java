@@ -1,33 +1,51 @@
 package ru.mail.polis.dao.valaubr;
 
-import com.google.common.collect.Iterators;
-import com.google.common.collect.UnmodifiableIterator;
 import org.jetbrains.annotations.NotNull;
-import ru.mail.polis.dao.Iters;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.WriteBatch;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NavigableMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
+/**
+ * Memtables of a {@link LsmDAO}: the current one taking the writes and the full ones waiting for a flush.
+ * A writer registers in the current memtable and writes to it and to its log segment,
+ * the one which finds it full swaps in a new memtable and hands the full one over to the flush queue
+ * once its writers are gone. Only the handoffs are ordered by a lock, so the tables are flushed in order.
+ * A write takes its timestamp, goes to the log and to the memtable under the lock of the stripe of its key,
+ * so the log replays the writes of a key in the order they took effect. The log takes no lock of its own,
+ * the writes of the other stripes go on meanwhile, and the force of a write waits until the stripe is unlocked.
+ */
 public class TablesPool implements Table {
+    private static final int STRIPES = 64;
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final NavigableMap<Integer, Table> writingFlushTables;
+    private final Lock handoffLock = new ReentrantLock();
+    private final Lock[] stripes = new Lock[STRIPES];
+    private final NavigableMap<Integer, VersionedTable> writingFlushTables;
     private final BlockingQueue<FlushingTable> flushQueue;
     private final long memFlushThreshold;
     private final AtomicBoolean stopFlag = new AtomicBoolean();
-    private MemTable current;
-    private int generation;
+    private final WriteAheadLog wal;
+    private final Supplier<RangeTombstoneMemTable> memTables;
+    private final Sequencer sequencer;
+    private volatile MemTableRef current;
+    //Set by the first failed flush, the writes stop then
+    private volatile IOException flushFailure;
 
     /**
      * Pool of tables to multiThreading work.
@@ -35,50 +53,152 @@ public class TablesPool implements Table {
      * @param memFlushThreshold - size to flush
      * @param startGeneration - first generation
      * @param flushTablePool - flush pool size
+     * @param wal - log of the writes, it has a segment of the start generation
+     * @param memTables - factory of empty memtables
+     * @param sequencer - numbers of the writes of the memtables
      */
-    public TablesPool(final long memFlushThreshold, final int startGeneration, final int flushTablePool) {
+    public TablesPool(
+            final long memFlushThreshold,
+            final int startGeneration,
+            final int flushTablePool,
+            @NotNull final WriteAheadLog wal,
+            @NotNull final Supplier<RangeTombstoneMemTable> memTables,
+            @NotNull final Sequencer sequencer) {
         this.memFlushThreshold = memFlushThreshold;
-        this.current = new MemTable();
-        this.generation = startGeneration;
+        this.sequencer = sequencer;
+        this.wal = wal;
+        this.memTables = memTables;
+        this.current = new MemTableRef(memTables.get(), startGeneration);
         this.writingFlushTables = new ConcurrentSkipListMap<>();
         this.flushQueue = new ArrayBlockingQueue<>(flushTablePool);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Memtable with the writers still writing to it.
+     */
+    private static final class MemTableRef {
+        private final RangeTombstoneMemTable table;
+        private final int generation;
+        private final AtomicInteger writers = new AtomicInteger();
+        //Set by the only thread which swaps the memtable out
+        private final AtomicBoolean frozen = new AtomicBoolean();
+        private final CompletableFuture<Void> flushed = new CompletableFuture<>();
+
+        MemTableRef(@NotNull final RangeTombstoneMemTable table, final int generation) {
+            this.table = table;
+            this.generation = generation;
+        }
+
+        void awaitWriters() {
+            while (writers.get() != 0) {
+                Thread.yield();
+            }
+        }
     }
 
+    /**
+     * Cells of the current and the flushing memtables, tombstones included so they hide the older tables,
+     * and without the cells hidden by the range tombstones of the newer memtables.
+     * A memtable is put among the flushing ones before it stops being current and leaves them
+     * only after its SSTable is in place, so no cell is missed while the memtables rotate.
+     * The memtables are held until the cells are read.
+     */
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Cell>> iterators;
-        lock.readLock().lock();
-        try {
-            iterators = new ArrayList<>(writingFlushTables.size() + 1);
-            iterators.add(current.iterator(from));
-            for (final Table table : writingFlushTables.values()) {
-                iterators.add(table.iterator(from));
+        final List<VersionedTable> tables = acquireTables();
+        final List<Iterator<Cell>> iterators = new ArrayList<>(tables.size());
+        final List<RangeTombstones> ranges = new ArrayList<>(tables.size());
+        for (final Table table : tables) {
+            iterators.add(table.iterator(from));
+            ranges.add(table.rangeTombstones());
+        }
+        return new SnapshotIterator<>(Cells.merge(iterators, ranges), () -> release(tables));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        final List<VersionedTable> tables = acquireTables();
+        final List<Iterator<Cell>> iterators = new ArrayList<>(tables.size());
+        final List<RangeTombstones> ranges = new ArrayList<>(tables.size());
+        for (final Table table : tables) {
+            iterators.add(table.descendingIterator(from, to));
+            ranges.add(table.rangeTombstones());
+        }
+        return new SnapshotIterator<>(Cells.mergeDescending(iterators, ranges), () -> release(tables));
+    }
+
+    /**
+     * Current and flushing memtables, newest first, each acquired to be released by the caller.
+     * A memtable released meanwhile is left out: its SSTable was installed before it left the flushing ones.
+     */
+    @NotNull
+    List<VersionedTable> acquireTables() {
+        final List<VersionedTable> tables = new ArrayList<>(writingFlushTables.size() + 1);
+        final VersionedTable newest = current.table;
+        if (newest.acquire()) {
+            tables.add(newest);
+        }
+        for (final VersionedTable table : writingFlushTables.descendingMap().values()) {
+            if (table.acquire()) {
+                tables.add(table);
             }
-        } finally {
-            lock.readLock().unlock();
         }
-        final UnmodifiableIterator<Cell> merged = Iterators.mergeSorted(iterators, Cell.COMPARATOR);
-        final Iterator<Cell> withoutEquals = Iters.collapseEquals(merged, Cell::getKey);
-        return Iterators.filter(withoutEquals,
-                cell -> {
-                    assert cell != null;
-                    return !cell.getValue().isTombstone();
-                });
+        return tables;
+    }
+
+    static void release(@NotNull final List<VersionedTable> tables) {
+        for (final VersionedTable table : tables) {
+            table.release();
+        }
     }
 
+    @Nullable
     @Override
-    public long getSizeInBytes() {
-        lock.readLock().lock();
-        try {
-            long size = current.getSizeInBytes();
-            for (final Map.Entry<Integer, Table> table : writingFlushTables.entrySet()) {
-                size += table.getValue().getSizeInBytes();
+    public Value get(@NotNull final ByteBuffer key) {
+        final Value value = get(current.table, key);
+        if (value != null) {
+            return value;
+        }
+        for (final VersionedTable table : writingFlushTables.descendingMap().values()) {
+            final Value flushing = get(table, key);
+            if (flushing != null) {
+                return flushing;
             }
-            return size;
+        }
+        return null;
+    }
+
+    /**
+     * Value of the key in the memtable unless it is released, its SSTable is read after the memtables then.
+     */
+    @Nullable
+    private static Value get(
+            @NotNull final VersionedTable table,
+            @NotNull final ByteBuffer key) {
+        if (!table.acquire()) {
+            return null;
+        }
+        try {
+            return table.get(key);
         } finally {
-            lock.readLock().unlock();
+            table.release();
+        }
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        long size = current.table.getSizeInBytes();
+        for (final Table table : writingFlushTables.values()) {
+            size += table.getSizeInBytes();
         }
+        return size;
     }
 
     @Override
@@ -91,81 +211,292 @@ public class TablesPool implements Table {
         if (!stopFlag.compareAndSet(false, true)) {
             return;
         }
-        FlushingTable flushingTable;
-        lock.writeLock().lock();
+        final MemTableRef last = freeze();
+        handoffLock.lock();
         try {
-            flushingTable = new FlushingTable(current, generation, true);
-            writingFlushTables.put(flushingTable.getGen(), flushingTable.getTable());
-        } finally {
-            lock.writeLock().unlock();
-        }
-        try {
-            flushQueue.put(flushingTable);
+            writingFlushTables.put(last.generation, last.table);
+            last.awaitWriters();
+            flushQueue.put(new FlushingTable(last.table, last.generation, true, last.flushed));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } finally {
+            handoffLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the swapping of the current memtable over from a writer which may be swapping it.
+     */
+    @NotNull
+    private MemTableRef freeze() {
+        while (true) {
+            final MemTableRef table = current;
+            if (table.frozen.compareAndSet(false, true)) {
+                return table;
+            }
+            Thread.yield();
         }
     }
 
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        if (stopFlag.get()) {
-            throw new IllegalStateException("Already stopped");
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        write(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        write(key, null);
+    }
+
+    private void write(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) throws IOException {
+        checkWritable();
+        final Lock stripe = stripes[stripe(key)];
+        final MemTableRef table;
+        final WriteAheadLog.Mark mark;
+        stripe.lock();
+        try {
+            table = acquire();
+            try {
+                final long timestamp = System.currentTimeMillis();
+                mark = wal.append(table.generation, timestamp, key, value);
+                if (value == null) {
+                    table.table.remove(key.duplicate(), timestamp);
+                } else {
+                    table.table.upsert(key.duplicate(), value.duplicate(), timestamp);
+                }
+            } finally {
+                table.writers.decrementAndGet();
+            }
+        } finally {
+            stripe.unlock();
         }
-        lock.readLock().lock();
+        wal.sync(mark);
+        if (isFull(table.table)) {
+            putIntoFlushQueue(table);
+        }
+    }
+
+    /**
+     * Logs and applies a range tombstone to the current memtable, under the locks of all the stripes
+     * as the range may hold any key.
+     *
+     * @param from - first key to remove
+     * @param to - key to stop before
+     */
+    void removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        checkWritable();
+        final List<Lock> locked = Arrays.asList(stripes);
+        final MemTableRef table;
+        final WriteAheadLog.Mark mark;
+        lock(locked);
         try {
-            current.upsert(key.duplicate(), value.duplicate());
+            table = acquire();
+            try {
+                final long timestamp = System.currentTimeMillis();
+                mark = wal.appendRange(table.generation, timestamp, from, to);
+                table.table.removeRange(from, to, timestamp);
+            } finally {
+                table.writers.decrementAndGet();
+            }
         } finally {
-            lock.readLock().unlock();
+            unlock(locked);
+        }
+        wal.sync(mark);
+        if (isFull(table.table)) {
+            putIntoFlushQueue(table);
         }
-        putIntoFlushQueue();
     }
 
-    @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        if (stopFlag.get()) {
-            throw new IllegalStateException("Already stopped");
+    /**
+     * Applies the writes of the batch to a single memtable after logging them as one record,
+     * the snapshots see all of them or none.
+     */
+    void write(@NotNull final WriteBatch batch) throws IOException {
+        checkWritable();
+        if (batch.isEmpty()) {
+            return;
         }
-        lock.readLock().lock();
+        final List<Lock> locked = stripes(batch);
+        final MemTableRef table;
+        final WriteAheadLog.Mark mark;
+        final Lock snapshots = sequencer.batchLock();
+        lock(locked);
+        table = acquire();
         try {
-            current.remove(key.duplicate());
+            //One timestamp for the batch, so the merges of the tables pick all of its writes or none
+            final long timestamp = System.currentTimeMillis();
+            mark = wal.append(table.generation, timestamp, batch);
+            snapshots.lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    final ByteBuffer value = batch.value(i);
+                    if (value == null) {
+                        table.table.remove(batch.key(i), timestamp);
+                    } else {
+                        table.table.upsert(batch.key(i), value, timestamp);
+                    }
+                }
+            } finally {
+                snapshots.unlock();
+            }
         } finally {
-            lock.readLock().unlock();
+            table.writers.decrementAndGet();
+            unlock(locked);
+        }
+        wal.sync(mark);
+        if (isFull(table.table)) {
+            putIntoFlushQueue(table);
+        }
+    }
+
+    /**
+     * Whether the memtable is due for a flush: its data reached the threshold,
+     * or its memory did twice over with the versions it replaced.
+     */
+    private boolean isFull(@NotNull final VersionedTable table) {
+        return table.getSizeInBytes() > memFlushThreshold || table.getAllocatedBytes() > 2 * memFlushThreshold;
+    }
+
+    /**
+     * Refuses a write once the pool is stopped or a flush failed.
+     *
+     * @throws IOException carrying the failure of the flush
+     */
+    private void checkWritable() throws IOException {
+        if (stopFlag.get()) {
+            throw new IllegalStateException("Already stopped");
+        }
+        final IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Writes are stopped after a failed flush", failure);
+        }
+    }
+
+    /**
+     * Stops the writes after a flush or an install failed. The tables are installed in order,
+     * so the memtables behind the failed one would never leave the pool and would pile up.
+     * They stay readable and their log segments are replayed on the next start.
+     *
+     * @param failure - cause of the failure, the first one is kept
+     */
+    void flushFailed(@NotNull final IOException failure) {
+        if (flushFailure == null) {
+            flushFailure = failure;
+        }
+    }
+
+    /**
+     * Failure which stopped the writes or null.
+     */
+    @Nullable
+    IOException getFlushFailure() {
+        return flushFailure;
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    /**
+     * Locks of the stripes of the keys of the batch in ascending order, the order all the writers take them in.
+     */
+    @NotNull
+    private List<Lock> stripes(@NotNull final WriteBatch batch) {
+        final BitSet used = new BitSet(STRIPES);
+        for (int i = 0; i < batch.size(); i++) {
+            used.set(stripe(batch.key(i)));
+        }
+        final List<Lock> locks = new ArrayList<>(used.cardinality());
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            locks.add(stripes[i]);
+        }
+        return locks;
+    }
+
+    private static void lock(@NotNull final List<Lock> locks) {
+        for (final Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private static void unlock(@NotNull final List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
         }
-        putIntoFlushQueue();
+    }
+
+    /**
+     * Registers a writer in the current memtable. The swapper switches the memtable before it waits
+     * for the writers, so a writer counted after the switch sees it and moves on to the new memtable.
+     */
+    @NotNull
+    private MemTableRef acquire() {
+        while (true) {
+            final MemTableRef table = current;
+            table.writers.incrementAndGet();
+            if (table == current) {
+                return table;
+            }
+            table.writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Hands the current memtable over to the flush queue even if it is not full.
+     * The tables are installed in order, so the memtables flushing before it are in place too
+     * once it is.
+     *
+     * @return completed once the memtable is in an SSTable
+     */
+    @NotNull
+    CompletableFuture<Void> flush() throws IOException {
+        checkWritable();
+        final MemTableRef table = current;
+        putIntoFlushQueue(table);
+        return table.flushed;
     }
 
     FlushingTable takeToFlash() throws InterruptedException {
         return flushQueue.take();
     }
 
-    void flushed(final int generation) {
-        lock.writeLock().lock();
-        try {
-            writingFlushTables.remove(generation);
-        } finally {
-            lock.writeLock().unlock();
+    /**
+     * Drops the memtable once its SSTable is installed, the readers still holding it keep it readable.
+     */
+    void flushed(final int generation) throws IOException {
+        final VersionedTable table = writingFlushTables.remove(generation);
+        if (table != null) {
+            table.close();
         }
+        wal.remove(generation);
     }
 
-    private void putIntoFlushQueue() {
-        FlushingTable tableToFlush = null;
-        lock.writeLock().lock();
+    private void putIntoFlushQueue(@NotNull final MemTableRef full) throws IOException {
+        if (!full.frozen.compareAndSet(false, true)) {
+            return;
+        }
+        final int generation = full.generation + 1;
         try {
-            if (current.getSizeInBytes() > memFlushThreshold) {
-                tableToFlush = new FlushingTable(current, generation);
-                writingFlushTables.put(generation, current);
-                generation++;
-                current = new MemTable();
-            }
-        } finally {
-            lock.writeLock().unlock();
+            wal.rotate(generation);
+        } catch (IOException e) {
+            full.frozen.set(false);
+            throw e;
         }
-        if (tableToFlush != null) {
-            try {
-                flushQueue.put(tableToFlush);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+        final MemTableRef next = new MemTableRef(memTables.get(), generation);
+        writingFlushTables.put(full.generation, full.table);
+        handoffLock.lock();
+        try {
+            current = next;
+            full.awaitWriters();
+            flushQueue.put(new FlushingTable(full.table, full.generation, full.flushed));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            handoffLock.unlock();
         }
     }
 }
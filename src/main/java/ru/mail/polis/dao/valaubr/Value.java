@@ -1,23 +1,43 @@
 package ru.mail.polis.dao.valaubr;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 
 public class Value implements Comparable<Value> {
     private final long timestamp;
     private final ByteBuffer data;
+    private final long sequence;
+    @Nullable
+    private final Value previous;
 
     Value(final long timestamp, final ByteBuffer data) {
-        assert timestamp > 0L;
-        this.timestamp = timestamp;
-        this.data = data;
+        this(timestamp, data, Sequencer.PERSISTED, null);
     }
 
     Value(final long timestamp) {
+        this(timestamp, null, Sequencer.PERSISTED, null);
+    }
+
+    /**
+     * Version of a key written to a memtable.
+     *
+     * @param timestamp - time of the write
+     * @param data - value or null for a tombstone
+     * @param sequence - number of the write
+     * @param previous - newest of the replaced versions which open snapshots may still read
+     */
+    Value(
+            final long timestamp,
+            @Nullable final ByteBuffer data,
+            final long sequence,
+            @Nullable final Value previous) {
         assert timestamp > 0L;
         this.timestamp = timestamp;
-        this.data = null;
+        this.data = data;
+        this.sequence = sequence;
+        this.previous = previous;
     }
 
     boolean isTombstone() {
@@ -33,6 +53,32 @@ public class Value implements Comparable<Value> {
         return timestamp;
     }
 
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Newest of the replaced versions kept for the snapshots or null.
+     */
+    @Nullable
+    Value getPrevious() {
+        return previous;
+    }
+
+    /**
+     * Newest of this and the older versions kept which is seen by the snapshot with the given number.
+     *
+     * @return version or null if the key did not exist for the snapshot as far as this table knows
+     */
+    @Nullable
+    Value visibleAt(final long snapshot) {
+        Value version = this;
+        while (version != null && version.sequence > snapshot) {
+            version = version.previous;
+        }
+        return version;
+    }
+
     @Override
     public int compareTo(@NotNull final Value o) {
         return -Long.compare(timestamp, o.timestamp);
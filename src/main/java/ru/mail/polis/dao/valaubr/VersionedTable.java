@@ -0,0 +1,95 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Memtable numbering its writes by a {@link Sequencer}, readable as of a {@link Snapshot}.
+ * The plain reads of {@link Table} see the newest versions.
+ */
+interface VersionedTable extends Table {
+
+    /**
+     * Cells seen by the snapshot, the newest version of each key numbered not above its number.
+     *
+     * @param from - first key
+     * @param snapshot - number of the snapshot
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, long snapshot);
+
+    /**
+     * Looks up the value of the key seen by the snapshot.
+     *
+     * @param key - key to look up
+     * @param snapshot - number of the snapshot
+     * @return value, possibly a tombstone, or null if the table knows nothing about the key for the snapshot
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key, long snapshot);
+
+    /**
+     * Cells seen by the snapshot with keys in [from, to) from the greatest key down.
+     *
+     * @param from - least key
+     * @param to - key to start below, null meaning no bound
+     * @param snapshot - number of the snapshot
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to, long snapshot);
+
+    /**
+     * Upserts with the timestamp given, so the writes of a batch share one.
+     *
+     * @param key - key to write
+     * @param value - value to write
+     * @param timestamp - time of the write in milliseconds
+     */
+    void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value, long timestamp) throws IOException;
+
+    /**
+     * Removes with the timestamp given, so the writes of a batch share one.
+     *
+     * @param key - key to remove
+     * @param timestamp - time of the write in milliseconds
+     */
+    void remove(@NotNull ByteBuffer key, long timestamp) throws IOException;
+
+    /**
+     * Range tombstones seen by the snapshot, see {@link #rangeTombstones()}.
+     *
+     * @param snapshot - number of the snapshot
+     */
+    @NotNull
+    default RangeTombstones rangeTombstones(final long snapshot) {
+        return RangeTombstones.EMPTY;
+    }
+
+    /**
+     * Memory the table holds, at least its size: the versions it replaced may stay until it is released.
+     */
+    default long getAllocatedBytes() {
+        return getSizeInBytes();
+    }
+
+    /**
+     * Takes a reference to the table, which keeps its data readable after the owner closes it.
+     * The tables freeing memory on {@link #close()} count the references, the rest are always readable.
+     *
+     * @return false if the table is released already
+     */
+    default boolean acquire() {
+        return true;
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire()}.
+     */
+    default void release() {
+        // Nothing to free
+    }
+}
@@ -0,0 +1,452 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.WriteBatch;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+ * Segment layout, one segment per memtable generation:
+ *
+ * [record 0] ... [record n - 1]
+ * record: [int payload size, int crc32 of the payload,
+ *          payload: long timestamp, entry 0 ... entry k - 1]
+ * entry: [int key size, key, int value size or -1 for a tombstone, value]
+ *     or [int from size, from, -2, int to size, to] for a range tombstone
+ *
+ * A record holds a single write or a whole batch, all of them with the timestamp of the record.
+ * A torn or corrupted record ends the segment on replay, it was never acknowledged.
+ */
+
+/**
+ * Write-ahead log of the memtables of a {@link TablesPool}.
+ * Each write is appended to the segment of its memtable before it goes to the memtable,
+ * and the segment is deleted once its memtable is flushed to an SSTable.
+ * The writes are logged with their timestamps, so the replay restores them as they were.
+ * How the writes reach the disk is set by {@link LsmConfig.Durability}.
+ */
+@ThreadSafe
+final class WriteAheadLog implements Closeable {
+    static final String FILE_POSTFIX = ".wal";
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int MIN_PAYLOAD_SIZE = Long.BYTES + Integer.BYTES * 2;
+    private static final int TOMBSTONE = -1;
+    private static final int RANGE_TOMBSTONE = -2;
+    private static final Pattern NAME = Pattern.compile("^\\d+" + Pattern.quote(FILE_POSTFIX) + "$");
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private final File storage;
+    private final LsmConfig.Durability durability;
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    @Nullable
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Log starting with an empty segment.
+     *
+     * @param storage - directory of the segments
+     * @param config - durability settings
+     * @param generation - generation of the current memtable
+     */
+    WriteAheadLog(
+            @NotNull final File storage,
+            @NotNull final LsmConfig config,
+            final int generation) throws IOException {
+        this.storage = storage;
+        this.durability = config.durability;
+        open(generation);
+        if (durability == LsmConfig.Durability.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor();
+            this.syncer.scheduleWithFixedDelay(
+                    this::syncAll,
+                    config.walSyncIntervalMs,
+                    config.walSyncIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    private void open(final int generation) throws IOException {
+        final File file = new File(storage, generation + FILE_POSTFIX);
+        final FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        final Segment segment = new Segment(file, channel);
+        segments.put(generation, segment);
+    }
+
+    /**
+     * Appends the write to the segment of the memtable it goes to, the caller must keep the memtable
+     * from being flushed until the write is in it.
+     *
+     * @param generation - generation of the memtable
+     * @param timestamp - time of the write
+     * @param key - key written
+     * @param value - value written or null for a removal
+     * @return mark to wait for with {@link #sync(Mark)}
+     */
+    @NotNull
+    Mark append(
+            final int generation,
+            final long timestamp,
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) throws IOException {
+        final int payloadSize = Long.BYTES + entrySize(key, value);
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.putLong(timestamp);
+        putEntry(record, key, value);
+        return append(generation, record, payloadSize);
+    }
+
+    /**
+     * Appends the writes of the batch as a single record, so a crash keeps all of them or none.
+     *
+     * @param generation - generation of the memtable
+     * @param timestamp - time of the writes
+     * @param batch - writes
+     * @return mark to wait for with {@link #sync(Mark)}
+     */
+    @NotNull
+    Mark append(
+            final int generation,
+            final long timestamp,
+            @NotNull final WriteBatch batch) throws IOException {
+        int payloadSize = Long.BYTES;
+        for (int i = 0; i < batch.size(); i++) {
+            payloadSize += entrySize(batch.key(i), batch.value(i));
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.putLong(timestamp);
+        for (int i = 0; i < batch.size(); i++) {
+            putEntry(record, batch.key(i), batch.value(i));
+        }
+        return append(generation, record, payloadSize);
+    }
+
+    /**
+     * Appends the removal of the keys in [from, to) as a single record.
+     *
+     * @param generation - generation of the memtable
+     * @param timestamp - time of the removal
+     * @param from - first key removed
+     * @param to - key to stop before
+     * @return mark to wait for with {@link #sync(Mark)}
+     */
+    @NotNull
+    Mark appendRange(
+            final int generation,
+            final long timestamp,
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        final int payloadSize = Long.BYTES + Integer.BYTES * 3 + from.remaining() + to.remaining();
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.putLong(timestamp);
+        record.putInt(from.remaining()).put(from.duplicate());
+        record.putInt(RANGE_TOMBSTONE);
+        record.putInt(to.remaining()).put(to.duplicate());
+        return append(generation, record, payloadSize);
+    }
+
+    private static int entrySize(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        return Integer.BYTES * 2 + key.remaining() + (value == null ? 0 : value.remaining());
+    }
+
+    private static void putEntry(
+            @NotNull final ByteBuffer record,
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        record.putInt(key.remaining()).put(key.duplicate());
+        if (value == null) {
+            record.putInt(TOMBSTONE);
+        } else {
+            record.putInt(value.remaining()).put(value.duplicate());
+        }
+    }
+
+    @NotNull
+    private Mark append(
+            final int generation,
+            @NotNull final ByteBuffer record,
+            final int payloadSize) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(record.flip().position(HEADER_SIZE));
+        record.rewind();
+        record.putInt(payloadSize).putInt((int) crc.getValue()).rewind();
+        final Segment segment = segments.get(generation);
+        if (segment == null) {
+            throw new IllegalStateException("No write-ahead log segment of generation " + generation);
+        }
+        return new Mark(segment, segment.append(record));
+    }
+
+    /**
+     * Waits until the write is on the disk, unless the durability is periodic.
+     * It is called after the write is applied, so the force is not made under the locks of the caller.
+     */
+    void sync(@NotNull final Mark mark) throws IOException {
+        if (durability == LsmConfig.Durability.SYNC) {
+            mark.segment.force();
+        } else if (durability == LsmConfig.Durability.GROUP_COMMIT) {
+            mark.segment.sync(mark.position);
+        }
+    }
+
+    /**
+     * Starts the segment of a new memtable, the previous one is kept until {@link #remove(int)}.
+     */
+    void rotate(final int generation) throws IOException {
+        open(generation);
+    }
+
+    /**
+     * Deletes the segment once its memtable has been flushed.
+     */
+    void remove(final int generation) throws IOException {
+        final Segment segment = segments.remove(generation);
+        if (segment != null) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.file.toPath());
+        }
+    }
+
+    private void syncAll() {
+        for (final Segment segment : segments.values()) {
+            try {
+                segment.sync(segment.written);
+            } catch (IOException e) {
+                log.error("Can't sync write-ahead log segment {}", segment.file, e);
+            }
+        }
+    }
+
+    /**
+     * Syncs and closes the segments left, the ones of unflushed memtables stay for the next replay.
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        for (final Segment segment : segments.values()) {
+            segment.sync(segment.written);
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Segments left in the storage, oldest first.
+     */
+    @NotNull
+    static List<File> segments(@NotNull final File storage) throws IOException {
+        try (Stream<Path> files = Files.list(storage.toPath())) {
+            return files.map(Path::toFile)
+                    .filter(file -> file.isFile() && NAME.matcher(file.getName()).matches())
+                    .sorted(Comparator.comparingLong(WriteAheadLog::generation))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static long generation(@NotNull final File segment) {
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - FILE_POSTFIX.length()));
+    }
+
+    /**
+     * Applies the writes of the segment to the table in their order and with their timestamps.
+     *
+     * @param segment - segment file
+     * @param table - table to write to
+     * @return number of records replayed
+     */
+    static int replay(
+            @NotNull final File segment,
+            @NotNull final RangeTombstoneMemTable table) throws IOException {
+        int count = 0;
+        //Bytes of the segment after the record read last, the size of a record is checked against it
+        long left = Files.size(segment.toPath());
+        try (InputStream file = Files.newInputStream(segment.toPath());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            while (true) {
+                final byte[] payload;
+                final int checksum;
+                try {
+                    final int payloadSize = in.readInt();
+                    checksum = in.readInt();
+                    left -= HEADER_SIZE;
+                    if (payloadSize < MIN_PAYLOAD_SIZE) {
+                        break;
+                    }
+                    if (payloadSize > left) {
+                        log.warn("Write-ahead log segment {} is torn or corrupted after {} records, "
+                                + "a record of {} bytes with {} bytes left", segment, count, payloadSize, left);
+                        break;
+                    }
+                    payload = new byte[payloadSize];
+                    in.readFully(payload);
+                    left -= payloadSize;
+                } catch (EOFException e) {
+                    break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Write-ahead log segment {} is corrupted after {} records", segment, count);
+                    break;
+                }
+                final ByteBuffer record = ByteBuffer.wrap(payload);
+                final long timestamp = record.getLong();
+                while (record.hasRemaining()) {
+                    final int keySize = record.getInt();
+                    final ByteBuffer key = record.slice().limit(keySize);
+                    record.position(record.position() + keySize);
+                    final int valueSize = record.getInt();
+                    if (valueSize == TOMBSTONE) {
+                        table.remove(key, timestamp);
+                    } else if (valueSize == RANGE_TOMBSTONE) {
+                        final int toSize = record.getInt();
+                        final ByteBuffer to = record.slice().limit(toSize);
+                        record.position(record.position() + toSize);
+                        table.removeRange(key, to, timestamp);
+                    } else {
+                        final ByteBuffer value = record.slice().limit(valueSize);
+                        record.position(record.position() + valueSize);
+                        table.upsert(key, value, timestamp);
+                    }
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Position of an appended write in its segment.
+     */
+    static final class Mark {
+        private final Segment segment;
+        private final long position;
+
+        Mark(@NotNull final Segment segment, final long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Segment file written by many writers at once: a writer reserves the place of its record
+     * by an atomic add and writes it there, with no lock held across the writes.
+     */
+    private static final class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final Object syncLock = new Object();
+        //End of the records placed so far, some of them may still be being written
+        private final AtomicLong reserved = new AtomicLong();
+        //End of the records written along with all the records before them
+        private volatile long written;
+        private volatile long synced;
+
+        Segment(@NotNull final File file, @NotNull final FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Writes the record at the position it reserves. The record is published once the records
+         * before it are, so a force up to the written position never covers a hole left by a slower writer
+         * and the replay, which stops at the first hole, keeps every acknowledged record.
+         *
+         * @return position after the record
+         */
+        long append(@NotNull final ByteBuffer record) throws IOException {
+            final long start = reserved.getAndAdd(record.remaining());
+            final long end = start + record.remaining();
+            try {
+                long position = start;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            } finally {
+                while (written != start) {
+                    Thread.yield();
+                }
+                written = end;
+            }
+            return end;
+        }
+
+        /**
+         * Forces the records written so far for a single write.
+         * A segment is closed only once its records are synced, see {@link #sync(long)}.
+         */
+        void force() throws IOException {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                //Forced before it was closed
+            }
+        }
+
+        /**
+         * Group commit: the first waiter forces everything written so far,
+         * the writers queued behind it find their records already synced.
+         * A segment is closed only once its memtable is forced to an SSTable or the log is closed
+         * after a sync, so the records of a closed segment are synced already.
+         */
+        void sync(final long position) throws IOException {
+            if (synced >= position) {
+                return;
+            }
+            synchronized (syncLock) {
+                if (synced >= position) {
+                    return;
+                }
+                final long target = written;
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    return;
+                }
+                synced = target;
+            }
+        }
+    }
+}
@@ -11,13 +11,21 @@ import one.nio.http.RequestMethod;
 import one.nio.http.Response;
 import one.nio.server.AcceptorConfig;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
 import ru.mail.polis.service.Service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -193,6 +201,189 @@ public class HttpService extends HttpServer implements Service {
         });
     }
 
+    /**
+     * Getting entities with ids in range, the body holds each of them as the length of the id in 4 bytes,
+     * the id, the length of the value in 4 bytes and the value, the lengths in big-endian order.
+     *
+     * @param start - first id
+     * @param end - id to stop before, no bound if absent
+     * @param reverse - "true" to go from the greatest id down
+     * @param limit - maximum number of entities, no limit if absent
+     *           200 - ok
+     *           400 - Empty start or bad limit in param
+     *           500 - Internal error
+     */
+    @Path("/v0/entities")
+    @RequestMethod(Request.METHOD_GET)
+    public void entities(@Param(required = true, value = "start") @NotNull final String start,
+                         @Param(value = "end") final String end,
+                         @Param(value = "reverse") final String reverse,
+                         @Param(value = "limit") final String limit,
+                         @NotNull final HttpSession session) {
+        executor.execute(() -> {
+            final int maxCount;
+            try {
+                maxCount = limit == null ? Integer.MAX_VALUE : Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                sendBadRequest(session);
+                return;
+            }
+            if (start.strip().isEmpty() || maxCount < 0) {
+                sendBadRequest(session);
+                return;
+            }
+            final ByteBuffer from = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
+            final ByteBuffer to = end == null || end.isEmpty() ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8));
+            try {
+                final Iterator<Record> records = Boolean.parseBoolean(reverse)
+                        ? dao.descendingRange(from, to)
+                        : dao.range(from, to);
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try {
+                    for (int count = 0; count < maxCount && records.hasNext(); count++) {
+                        final Record record = records.next();
+                        writeEntity(body, record.getKey(), record.getValue());
+                    }
+                } finally {
+                    //Releases the tables of a scan stopped by the limit
+                    close(records);
+                }
+                session.sendResponse(Response.ok(body.toByteArray()));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error when getting range", e);
+                try {
+                    session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                } catch (IOException ioException) {
+                    logger.error("Error when getting range && response is dropped", ioException);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deleting entities with ids in range by a single range tombstone.
+     *
+     * @param start - first id
+     * @param end - id to stop before
+     *           202 - Delete entities
+     *           400 - Empty start or end in param
+     *           500 - Internal error
+     */
+    @Path("/v0/entities")
+    @RequestMethod(Request.METHOD_DELETE)
+    public void deleteEntities(@Param(required = true, value = "start") @NotNull final String start,
+                               @Param(required = true, value = "end") @NotNull final String end,
+                               @NotNull final HttpSession session) {
+        executor.execute(() -> {
+            if (start.strip().isEmpty() || end.isEmpty()) {
+                sendBadRequest(session);
+                return;
+            }
+            try {
+                dao.removeRange(
+                        ByteBuffer.wrap(start.getBytes(Charsets.UTF_8)),
+                        ByteBuffer.wrap(end.getBytes(Charsets.UTF_8)));
+                session.sendResponse(new Response(Response.ACCEPTED, Response.EMPTY));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error when deleting range", e);
+                try {
+                    session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                } catch (IOException ioException) {
+                    logger.error("Error when deleting range && response is dropped", ioException);
+                }
+            }
+        });
+    }
+
+    /**
+     * Getting entities by ids, the body of the request holds each id as its length in 4 bytes and the id
+     * and the body of the response holds the entities found as in {@link #entities}, in ascending order of ids.
+     *
+     * @param request - request with the ids
+     *           200 - ok
+     *           400 - No ids, an empty id or a malformed body
+     *           500 - Internal error
+     */
+    @Path("/v0/entities/batch")
+    @RequestMethod(Request.METHOD_POST)
+    public void entitiesBatch(@NotNull final Request request, @NotNull final HttpSession session) {
+        executor.execute(() -> {
+            final List<ByteBuffer> ids = readIds(request.getBody());
+            if (ids == null || ids.isEmpty()) {
+                sendBadRequest(session);
+                return;
+            }
+            try {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entity : dao.getAll(ids).entrySet()) {
+                    writeEntity(body, entity.getKey().duplicate(), entity.getValue());
+                }
+                session.sendResponse(Response.ok(body.toByteArray()));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error when getting records", e);
+                try {
+                    session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                } catch (IOException ioException) {
+                    logger.error("Error when getting records && response is dropped", ioException);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ids of the body, each of them as its length in 4 bytes and the id.
+     *
+     * @return ids or null if the body is malformed or holds an empty id
+     */
+    @Nullable
+    private static List<ByteBuffer> readIds(@Nullable final byte[] body) {
+        final List<ByteBuffer> ids = new ArrayList<>();
+        if (body == null) {
+            return ids;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < Integer.BYTES) {
+                return null;
+            }
+            final int size = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining()) {
+                return null;
+            }
+            final ByteBuffer id = buffer.slice();
+            id.limit(size);
+            ids.add(id);
+            buffer.position(buffer.position() + size);
+        }
+        return ids;
+    }
+
+    private void writeEntity(@NotNull final ByteArrayOutputStream body,
+                             @NotNull final ByteBuffer id,
+                             @NotNull final ByteBuffer value) {
+        writeSized(body, converterFromByteBuffer(id));
+        writeSized(body, converterFromByteBuffer(value));
+    }
+
+    private static void writeSized(@NotNull final ByteArrayOutputStream body, @NotNull final byte[] bytes) {
+        body.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        body.writeBytes(bytes);
+    }
+
+    private static void close(@NotNull final Iterator<Record> records) throws IOException {
+        if (records instanceof Closeable) {
+            ((Closeable) records).close();
+        }
+    }
+
+    private void sendBadRequest(@NotNull final HttpSession session) {
+        try {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+        } catch (IOException e) {
+            logger.error(UNIVERSAL_MESSAGE, e);
+        }
+    }
+
     @Override
     public void handleDefault(@NotNull final Request request, @NotNull final HttpSession session) throws IOException {
         executor.execute(() -> {
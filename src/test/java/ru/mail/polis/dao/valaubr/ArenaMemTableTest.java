@@ -0,0 +1,241 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the off-heap {@link ArenaMemTable}.
+ */
+class ArenaMemTableTest {
+    private static final int KEYS = 10_000;
+    private static final int THREADS = 8;
+
+    @NotNull
+    private static ByteBuffer value(
+            final int i,
+            final int round) {
+        return ByteBuffer.wrap(("value" + i + "_" + round).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int count(@NotNull final Iterator<Cell> cells) {
+        int count = 0;
+        while (cells.hasNext()) {
+            cells.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    void concurrentInserts() throws Exception {
+        final ArenaMemTable table = new ArenaMemTable();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // Every key is written by two threads racing to insert its node
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = thread / 2; i < KEYS; i += THREADS / 2) {
+                        table.upsert(SSTableTest.key(i), value(i, 1));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(KEYS, table.size());
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < KEYS; i++) {
+            final Cell cell = cells.next();
+            assertEquals(SSTableTest.key(i), cell.getKey());
+            assertEquals(value(i, 1), cell.getValue().getData());
+        }
+        assertFalse(cells.hasNext());
+        for (int i = 0; i < KEYS; i += 7) {
+            final Value value = table.get(SSTableTest.key(i));
+            assertNotNull(value);
+            assertEquals(value(i, 1), value.getData());
+        }
+    }
+
+    @Test
+    void snapshotReads() throws Exception {
+        final Sequencer sequencer = new Sequencer();
+        final ArenaMemTable table = new ArenaMemTable(sequencer, new ArenaMemTable.ChunkPool(0));
+        for (int i = 0; i < KEYS; i += 2) {
+            table.upsert(SSTableTest.key(i), value(i, 1));
+        }
+        final long snapshot = sequencer.open();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // Writers overwrite, remove and add keys while the readers check the snapshot
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS / 2; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = thread; i < KEYS; i += THREADS / 2) {
+                        if (i % 10 == 0) {
+                            table.remove(SSTableTest.key(i));
+                        } else {
+                            table.upsert(SSTableTest.key(i), value(i, 2));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (int t = 0; t < THREADS / 2; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int round = 0; round < 3; round++) {
+                        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0), snapshot);
+                        for (int i = 0; i < KEYS; i += 2) {
+                            final Cell cell = cells.next();
+                            assertEquals(SSTableTest.key(i), cell.getKey());
+                            assertEquals(value(i, 1), cell.getValue().getData());
+                        }
+                        assertFalse(cells.hasNext());
+                        assertEquals(KEYS / 2, count(table.descendingIterator(ByteBuffer.allocate(0), null, snapshot)));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            sequencer.close(snapshot);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            final Value old = table.get(SSTableTest.key(i), snapshot);
+            final Value newest = table.get(SSTableTest.key(i));
+            assertNotNull(newest);
+            if (i % 2 == 0) {
+                assertNotNull(old);
+                assertEquals(value(i, 1), old.getData());
+            } else {
+                assertNull(old);
+            }
+            if (i % 10 == 0) {
+                assertTrue(newest.isTombstone());
+            } else {
+                assertEquals(value(i, 2), newest.getData());
+            }
+        }
+    }
+
+    @Test
+    void sizeCountsLinkedVersions() {
+        final Sequencer sequencer = new Sequencer();
+        final ArenaMemTable table = new ArenaMemTable(sequencer, new ArenaMemTable.ChunkPool(0));
+        final ByteBuffer key = SSTableTest.key(1);
+        final ByteBuffer value = ByteBuffer.allocate(1000);
+        table.upsert(key, value);
+        final long single = table.getSizeInBytes();
+
+        // The versions no snapshot reads are not counted, but stay in the arena
+        for (int i = 0; i < 1000; i++) {
+            table.upsert(key, value);
+        }
+        assertEquals(single, table.getSizeInBytes());
+        assertTrue(table.getAllocatedBytes() > 1000 * value.capacity());
+
+        // The version a snapshot reads is
+        final long snapshot = sequencer.open();
+        table.upsert(key, value);
+        table.upsert(key, value);
+        final long pinned = table.getSizeInBytes();
+        assertTrue(pinned > single);
+        sequencer.close(snapshot);
+        table.upsert(key, value);
+        assertEquals(single, table.getSizeInBytes());
+    }
+
+    @Test
+    void closeReturnsChunks() {
+        final ArenaMemTable.ChunkPool pool = new ArenaMemTable.ChunkPool(64L * 1024 * 1024);
+        final ArenaMemTable table = new ArenaMemTable(new Sequencer(), pool);
+        for (int i = 0; i < KEYS; i++) {
+            table.upsert(SSTableTest.key(i), ByteBuffer.allocate(500));
+        }
+        final Value value = table.get(SSTableTest.key(0));
+        assertNotNull(value);
+        final Iterator<Cell> reader = table.iterator(ByteBuffer.allocate(0));
+
+        // A reader holds the chunks after the owner is done
+        assertTrue(table.acquire());
+        table.close();
+        table.close();
+        assertEquals(0, pool.size());
+        assertEquals(SSTableTest.key(0), reader.next().getKey());
+        table.release();
+        final int chunks = pool.size();
+        assertTrue(chunks > 1, chunks + " chunks");
+        assertFalse(table.acquire());
+
+        // The next table starts from the chunks of the released one, empty
+        final ArenaMemTable next = new ArenaMemTable(new Sequencer(), pool);
+        assertEquals(chunks - 1, pool.size());
+        assertEquals(0, count(next.iterator(ByteBuffer.allocate(0))));
+        assertNull(next.get(SSTableTest.key(0)));
+        for (int i = 0; i < KEYS; i++) {
+            next.upsert(SSTableTest.key(i), value(i, 1));
+        }
+        assertEquals(KEYS, count(next.iterator(ByteBuffer.allocate(0))));
+        // The values read before are copies
+        assertEquals(ByteBuffer.allocate(500), value.getData());
+    }
+
+    @Test
+    void snapshotHoldsFlushedArena(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmCompactionTest.config(1024 * 1024);
+        config.offHeapMemTable = true;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(SSTableTest.key(i), value(i, 1));
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                // Enough rounds to flush and release the memtables the snapshot holds and reuse their chunks
+                for (int round = 2; round < 12; round++) {
+                    for (int i = 0; i < KEYS; i++) {
+                        dao.upsert(SSTableTest.key(i), ByteBuffer.allocate(100));
+                    }
+                }
+                assertTrue(LsmCompactionTest.tables(data) > 1);
+                final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                for (int i = 0; i < KEYS; i++) {
+                    final Record record = records.next();
+                    assertEquals(SSTableTest.key(i), record.getKey());
+                    assertEquals(value(i, 1), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+            for (int i = 0; i < KEYS; i += 7) {
+                assertEquals(ByteBuffer.allocate(100), dao.get(SSTableTest.key(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the {@link BlockCache} slab.
+ */
+class BlockCacheTest {
+    private static final int SLOTS = 10;
+
+    @NotNull
+    private static ByteBuffer block(
+            final int length,
+            final int fill) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    void hitAfterPut() {
+        final BlockCache cache = new BlockCache(SLOTS * BlockCache.SLOT_SIZE);
+        final ByteBuffer block = block(5000, 1);
+        try (BlockCache.Handle handle = cache.put(1, 0, block)) {
+            assertTrue(handle.isCached());
+            assertEquals(block, handle.data());
+        }
+        try (BlockCache.Handle handle = cache.get(1, 0)) {
+            assertNotNull(handle);
+            assertEquals(block, handle.data());
+        }
+        assertNull(cache.get(1, 5000));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(5000, cache.getSizeInBytes());
+    }
+
+    @Test
+    void boundedSlab() {
+        final BlockCache cache = new BlockCache(SLOTS * BlockCache.SLOT_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(1, i, block(BlockCache.SLOT_SIZE, i)).close();
+        }
+        assertEquals(SLOTS * BlockCache.SLOT_SIZE, cache.getAllocatedBytes());
+        assertEquals(1000 - SLOTS, cache.getEvictions());
+        // Reused slots hold the newest blocks
+        for (int i = 1000 - SLOTS; i < 1000; i++) {
+            try (BlockCache.Handle handle = cache.get(1, i)) {
+                assertNotNull(handle);
+                assertEquals(block(BlockCache.SLOT_SIZE, i), handle.data());
+            }
+        }
+    }
+
+    @Test
+    void pinnedSlotIsNotReused() {
+        final BlockCache cache = new BlockCache(SLOTS * BlockCache.SLOT_SIZE);
+        try (BlockCache.Handle pinned = cache.put(1, 0, block(100, 42))) {
+            for (int i = 1; i < 1000; i++) {
+                cache.put(1, i, block(100, i)).close();
+            }
+            assertEquals(block(100, 42), pinned.data());
+        }
+        try (BlockCache.Handle handle = cache.get(1, 0)) {
+            assertNotNull(handle);
+        }
+    }
+
+    @Test
+    void allPinned() {
+        final BlockCache cache = new BlockCache(BlockCache.SLOT_SIZE);
+        try (BlockCache.Handle pinned = cache.put(1, 0, block(100, 1))) {
+            assertTrue(pinned.isCached());
+            final ByteBuffer block = block(100, 2);
+            try (BlockCache.Handle handle = cache.put(1, 1, block)) {
+                assertFalse(handle.isCached());
+                assertSame(block, handle.data());
+            }
+        }
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void largeBlock() {
+        final BlockCache cache = new BlockCache(SLOTS * BlockCache.SLOT_SIZE);
+        final ByteBuffer block = block(BlockCache.SLOT_SIZE + 1, 1);
+        try (BlockCache.Handle handle = cache.put(1, 0, block)) {
+            assertFalse(handle.isCached());
+        }
+        assertNull(cache.get(1, 0));
+        assertEquals(0, cache.getAllocatedBytes());
+    }
+
+    @Test
+    void disabled() {
+        final BlockCache cache = new BlockCache(0);
+        try (BlockCache.Handle handle = cache.put(1, 0, block(100, 1))) {
+            assertFalse(handle.isCached());
+        }
+        assertNull(cache.get(1, 0));
+        assertEquals(0, cache.getAllocatedBytes());
+    }
+}
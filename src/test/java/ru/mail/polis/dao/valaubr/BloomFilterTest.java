@@ -0,0 +1,110 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BloomFilter} alone and inside {@link SSTable} point lookups.
+ */
+class BloomFilterTest {
+    private static final int KEYS = 100_000;
+
+    @NotNull
+    private static List<ByteBuffer> randomKeys(
+            final int count,
+            final long seed) {
+        final Random random = new Random(seed);
+        final List<ByteBuffer> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] key = new byte[16];
+            random.nextBytes(key);
+            keys.add(ByteBuffer.wrap(key));
+        }
+        return keys;
+    }
+
+    @NotNull
+    private static BloomFilter filter(
+            @NotNull final List<ByteBuffer> keys,
+            final int bitsPerKey) {
+        final long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = BloomFilter.hash(keys.get(i));
+        }
+        final long[] words = BloomFilter.build(hashes, hashes.length, bitsPerKey);
+        final ByteBuffer bits = ByteBuffer.allocate(words.length * Long.BYTES);
+        for (final long word : words) {
+            bits.putLong(word);
+        }
+        return new BloomFilter(bits.flip(), BloomFilter.hashCount(bitsPerKey));
+    }
+
+    @Test
+    void noFalseNegatives() {
+        for (final int bitsPerKey : new int[]{1, 4, 10, 20}) {
+            final List<ByteBuffer> keys = randomKeys(KEYS, bitsPerKey);
+            final BloomFilter filter = filter(keys, bitsPerKey);
+            for (final ByteBuffer key : keys) {
+                assertTrue(filter.mightContain(key), "False negative with " + bitsPerKey + " bits per key");
+            }
+        }
+    }
+
+    @Test
+    void falsePositives() {
+        final BloomFilter filter = filter(randomKeys(KEYS, 1), 10);
+        int positives = 0;
+        for (final ByteBuffer key : randomKeys(KEYS, 2)) {
+            if (filter.mightContain(key)) {
+                positives++;
+            }
+        }
+        // About one percent with ten bits per key
+        assertTrue(positives < KEYS / 50, positives + " false positives");
+    }
+
+    @Test
+    void disabled() {
+        final BloomFilter filter = filter(randomKeys(KEYS, 1), 0);
+        for (final ByteBuffer key : randomKeys(1000, 2)) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    void skipsBlocks(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            cells.add(new Cell(SSTableTest.key(i * 2), new Value(1L, ByteBuffer.allocate(100))));
+        }
+        final File file = new File(data, "1.dat");
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 10, 0, Long.MAX_VALUE);
+        final BlockCache cache = new BlockCache(1024 * 1024);
+        final SSTable table = new SSTable(file, 1, cache);
+        for (int i = 0; i < 10_000; i++) {
+            assertNotNull(table.get(SSTableTest.key(i * 2)));
+        }
+        final long reads = cache.getHits() + cache.getMisses();
+        assertEquals(10_000, reads);
+        for (int i = 0; i < 10_000; i++) {
+            assertNull(table.get(SSTableTest.key(i * 2 + 1)));
+        }
+        // Only the false positives read a block
+        assertTrue(cache.getHits() + cache.getMisses() - reads < 200);
+    }
+}
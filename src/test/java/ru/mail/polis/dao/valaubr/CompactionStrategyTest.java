@@ -0,0 +1,201 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests of the tables the {@link CompactionStrategy}s pick.
+ */
+class CompactionStrategyTest {
+    private static final int KEYS = 100;
+
+    /**
+     * Table of the keys from first to first + KEYS - 1, the tables of the same value size are of the same size.
+     */
+    @NotNull
+    private static SSTable table(
+            @NotNull final File storage,
+            final int generation,
+            final int first,
+            final int level,
+            final int valueSize) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = first; i < first + KEYS; i++) {
+            cells.add(new Cell(SSTableTest.key(i), new Value(generation, ByteBuffer.allocate(valueSize))));
+        }
+        final File file = new File(storage, generation + ".dat");
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 0, level, Long.MAX_VALUE);
+        return new SSTable(file, generation, new BlockCache(0));
+    }
+
+    private static void assertCompaction(
+            @NotNull final List<SSTable> inputs,
+            final int outputLevel,
+            final Compaction compaction) {
+        assertNotNull(compaction);
+        assertEquals(inputs, compaction.getInputs());
+        assertEquals(outputLevel, compaction.getOutputLevel());
+    }
+
+    @NotNull
+    private static LsmConfig leveled(final long levelBaseSize) {
+        final LsmConfig config = new LsmConfig();
+        config.compactionStyle = LsmConfig.CompactionStyle.LEVELED;
+        config.level0CompactionTrigger = 4;
+        config.levelBaseSize = levelBaseSize;
+        config.levelSizeRatio = 2;
+        return config;
+    }
+
+    @Test
+    void leveledLevel0(@TempDir File data) throws IOException {
+        final List<SSTable> level1 = List.of(
+                table(data, 1, 0, 1, 10),
+                table(data, 2, 2 * KEYS, 1, 10),
+                table(data, 3, 10 * KEYS, 1, 10));
+        final List<SSTable> level0 = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            level0.add(0, table(data, 4 + i, KEYS / 2 + i * KEYS / 2, 0, 10));
+        }
+        final CompactionStrategy strategy = CompactionStrategy.of(leveled(Long.MAX_VALUE));
+        final List<SSTable> tables = new ArrayList<>(level0);
+        tables.addAll(level1);
+        assertNull(strategy.pick(Levels.of(tables)));
+
+        // At the trigger level 0 goes into the level 1 tables its keys overlap, from 50 to 249
+        level0.add(0, table(data, 7, KEYS, 0, 10));
+        tables.add(0, level0.get(0));
+        final List<SSTable> inputs = new ArrayList<>(level0);
+        inputs.addAll(level1.subList(0, 2));
+        assertCompaction(inputs, 1, strategy.pick(Levels.of(tables)));
+    }
+
+    @Test
+    void leveledSizeBudgets(@TempDir File data) throws IOException {
+        final List<SSTable> tables = new ArrayList<>();
+        // Level 2 of four adjacent tables, level 1 of two tables each over the keys of two of them
+        for (int i = 0; i < 4; i++) {
+            tables.add(table(data, i + 1, i * KEYS, 2, 10));
+        }
+        tables.add(table(data, 5, KEYS / 2, 1, 10));
+        tables.add(table(data, 6, 2 * KEYS + KEYS / 2, 1, 10));
+        final long size = tables.get(0).getSizeInBytes();
+
+        // Both levels within their budgets of two and four tables
+        final Levels levels = Levels.of(tables);
+        assertNull(CompactionStrategy.of(leveled(2 * size)).pick(levels));
+
+        // Level 1 over its budget of a table and a half merges one table with the overlapping ones of level 2
+        final CompactionStrategy strategy = CompactionStrategy.of(leveled(size + size / 2));
+        assertCompaction(List.of(tables.get(4), tables.get(0), tables.get(1)), 2, strategy.pick(levels));
+        // Next time the table after it, then round again
+        assertCompaction(List.of(tables.get(5), tables.get(2), tables.get(3)), 2, strategy.pick(levels));
+        assertCompaction(List.of(tables.get(4), tables.get(0), tables.get(1)), 2, strategy.pick(levels));
+
+        // Level 2 over its budget of three tables, with level 1 of a single table within its budget
+        final Levels deeper = Levels.of(tables.subList(0, 5));
+        assertCompaction(List.of(tables.get(0)), 3, strategy.pick(deeper));
+        deeper.release();
+        levels.release();
+    }
+
+    @Test
+    void leveledFull(@TempDir File data) throws IOException {
+        final CompactionStrategy strategy = CompactionStrategy.of(leveled(Long.MAX_VALUE));
+        final List<SSTable> tables = new ArrayList<>();
+        tables.add(table(data, 1, 0, 0, 10));
+        tables.add(table(data, 2, 0, 0, 10));
+        // Level 0 alone goes to level 1
+        assertCompaction(List.of(tables.get(1), tables.get(0)), 1, strategy.full(Levels.of(tables)));
+
+        // Anything else goes to the bottommost level
+        tables.add(table(data, 3, 0, 1, 10));
+        tables.add(table(data, 4, 0, 3, 10));
+        final Levels levels = Levels.of(tables);
+        assertEquals(4, levels.depth());
+        final Compaction full = strategy.full(levels);
+        assertEquals(levels.all(), full.getInputs());
+        assertEquals(tables.size(), full.getInputs().size());
+        assertEquals(3, full.getOutputLevel());
+    }
+
+    @NotNull
+    private static CompactionStrategy sizeTiered(
+            final int maxTables,
+            final long minTableSize) {
+        final LsmConfig config = new LsmConfig();
+        config.compactionStyle = LsmConfig.CompactionStyle.SIZE_TIERED;
+        config.tierCompactionThreshold = 4;
+        config.tierMaxTables = maxTables;
+        config.tierMinTableSize = minTableSize;
+        return CompactionStrategy.of(config);
+    }
+
+    /**
+     * Level 0 tables with the given value sizes from the newest to the oldest one.
+     */
+    @NotNull
+    private static List<SSTable> level0(
+            @NotNull final File storage,
+            final int... valueSizes) throws IOException {
+        final File dir = Files.createTempDirectory(storage.toPath(), "tables").toFile();
+        final List<SSTable> tables = new ArrayList<>();
+        for (int i = 0; i < valueSizes.length; i++) {
+            tables.add(table(dir, valueSizes.length - i, 0, 0, valueSizes[i]));
+        }
+        return tables;
+    }
+
+    @Test
+    void sizeTieredBand(@TempDir File data) throws IOException {
+        final CompactionStrategy strategy = sizeTiered(32, 1);
+        assertNull(strategy.pick(Levels.of(level0(data, 1000, 1000, 1000))));
+        final List<SSTable> similar = level0(data, 1000, 1000, 1000, 1000, 700, 1300);
+        assertCompaction(similar, 0, strategy.pick(Levels.of(similar)));
+
+        // A table over half as large again or under half as small ends the tier
+        final List<SSTable> larger = level0(data, 1000, 1000, 1000, 1000, 2000, 1000, 1000, 1000);
+        assertCompaction(larger.subList(0, 4), 0, strategy.pick(Levels.of(larger)));
+        final List<SSTable> smaller = level0(data, 1000, 1000, 1000, 400, 1000, 1000, 1000);
+        assertNull(strategy.pick(Levels.of(smaller)));
+    }
+
+    @Test
+    void sizeTieredAdjacent(@TempDir File data) throws IOException {
+        // The similar tables on both sides of a large one are not merged past it
+        final CompactionStrategy strategy = sizeTiered(32, 1);
+        final List<SSTable> split = level0(data, 1000, 1000, 4000, 1000, 1000);
+        assertNull(strategy.pick(Levels.of(split)));
+        final List<SSTable> tiers = level0(data, 1000, 1000, 4000, 4000, 4000, 4000, 1000, 1000);
+        assertCompaction(tiers.subList(2, 6), 0, strategy.pick(Levels.of(tiers)));
+    }
+
+    @Test
+    void sizeTieredFloor(@TempDir File data) throws IOException {
+        // Tables under the floor are all of the smallest tier however different their sizes
+        final List<SSTable> small = level0(data, 10, 1000, 100, 4000);
+        assertNull(sizeTiered(32, 1).pick(Levels.of(small)));
+        assertCompaction(small, 0, sizeTiered(32, 1024 * 1024).pick(Levels.of(small)));
+    }
+
+    @Test
+    void sizeTieredCap(@TempDir File data) throws IOException {
+        // A tier of more tables than the cap merges the newest ones
+        final List<SSTable> many = level0(data, 1000, 1000, 1000, 1000, 1000, 1000, 1000);
+        assertCompaction(many.subList(0, 5), 0, sizeTiered(5, 1).pick(Levels.of(many)));
+        assertCompaction(many, 0, sizeTiered(32, 1).pick(Levels.of(many)));
+    }
+}
@@ -0,0 +1,126 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the descending range scans of {@link LsmDAO}.
+ */
+class DescendingRangeTest {
+    private static final int KEYS = 3000;
+
+    /**
+     * Writes the keys in rounds, each round overwriting a part of the previous one and removing some keys,
+     * so a small flush threshold spreads the versions of a key over the memtable and several tables.
+     */
+    private static void write(@NotNull final LsmDAO dao) throws IOException {
+        for (int round = 1; round <= 3; round++) {
+            for (int i = round - 1; i < KEYS; i += round) {
+                dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, round));
+            }
+            for (int i = round; i < KEYS; i += 7 * round) {
+                dao.remove(SSTableTest.key(i));
+            }
+        }
+    }
+
+    @NotNull
+    private static List<Record> list(@NotNull final Iterator<Record> records) {
+        final List<Record> list = new ArrayList<>();
+        records.forEachRemaining(list::add);
+        return list;
+    }
+
+    /**
+     * Key right between the keys i and i + 1.
+     */
+    @NotNull
+    private static ByteBuffer between(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d_", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertReversed(
+            @NotNull final LsmDAO dao,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final List<Record> expected = list(dao.range(from, to));
+        Collections.reverse(expected);
+        assertEquals(expected, list(dao.descendingRange(from, to)));
+    }
+
+    private static void assertScans(@NotNull final LsmDAO dao) throws IOException {
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        assertReversed(dao, empty, null);
+        assertReversed(dao, SSTableTest.key(KEYS / 2), null);
+        assertReversed(dao, SSTableTest.key(100), SSTableTest.key(2900));
+        assertReversed(dao, between(100), between(2900));
+        assertReversed(dao, SSTableTest.key(1), SSTableTest.key(2));
+        assertReversed(dao, between(KEYS), null);
+        assertFalse(dao.descendingRange(SSTableTest.key(10), SSTableTest.key(10)).hasNext());
+        assertFalse(dao.descendingRange(SSTableTest.key(20), SSTableTest.key(10)).hasNext());
+
+        // The first records read are the greatest keys, and the scan stopped early can be closed
+        final Iterator<Record> last = dao.descendingRange(empty, null);
+        final Record greatest = last.next();
+        assertEquals(SSTableTest.key(KEYS - 1), greatest.getKey());
+        assertEquals(dao.get(SSTableTest.key(KEYS - 1)), greatest.getValue());
+        assertTrue(last.next().getKey().compareTo(greatest.getKey()) < 0);
+        ((Closeable) last).close();
+    }
+
+    @Test
+    void reversedRange(@TempDir File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            for (final int shards : new int[]{1, 4}) {
+                final File storage = new File(data, (offHeap ? "offheap" : "heap") + shards);
+                Files.createDirectories(storage.toPath());
+                final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+                config.offHeapMemTable = offHeap;
+                config.memTableShards = shards;
+                try (LsmDAO dao = new LsmDAO(storage, config)) {
+                    write(dao);
+                    assertTrue(LsmCompactionTest.tables(storage) > 1);
+                    assertScans(dao);
+                    dao.compact();
+                    assertScans(dao);
+                }
+            }
+        }
+    }
+
+    @Test
+    void reversedRangeOfLevels(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+        config.compactionStyle = LsmConfig.CompactionStyle.LEVELED;
+        config.targetTableSize = 16 * 1024;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            write(dao);
+            assertScans(dao);
+            dao.compact();
+            // Several disjoint tables in a level are walked from the last one down
+            assertTrue(LsmCompactionTest.tables(data) > 1);
+            assertScans(dao);
+        }
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            assertScans(dao);
+        }
+    }
+}
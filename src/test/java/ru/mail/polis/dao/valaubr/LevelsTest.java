@@ -0,0 +1,163 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests of the stats of {@link SSTable} and of the tables {@link Levels} skips by them.
+ */
+class LevelsTest {
+    private static final int KEYS = 1000;
+    private static final int TABLES = 5;
+
+    /**
+     * Table of the keys from first to first + KEYS - 1 without a bloom filter,
+     * so every probe of the table reads a block.
+     */
+    @NotNull
+    static SSTable table(
+            @NotNull final File storage,
+            final int number,
+            final int first,
+            final int level,
+            @NotNull final BlockCache cache) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = first; i < first + KEYS; i++) {
+            cells.add(new Cell(SSTableTest.key(i), new Value(number, ByteBuffer.allocate(10))));
+        }
+        final File file = new File(storage, number + ".dat");
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 0, level, Long.MAX_VALUE);
+        return new SSTable(file, number, cache);
+    }
+
+    private static long reads(@NotNull final BlockCache cache) {
+        return cache.getHits() + cache.getMisses();
+    }
+
+    @Test
+    void stats(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 10; i < 20; i++) {
+            final Value value = i % 5 == 0 ? new Value(100L + i) : new Value(100L + i, ByteBuffer.allocate(1));
+            cells.add(new Cell(SSTableTest.key(i), value));
+        }
+        final RangeTombstones ranges = RangeTombstones.of(List.of(
+                new RangeTombstone(SSTableTest.key(5), SSTableTest.key(12), 50L),
+                new RangeTombstone(SSTableTest.key(18), SSTableTest.key(30), 500L)));
+        final File file = new File(data, "1.dat");
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), ranges, 10, 0, Long.MAX_VALUE);
+        final SSTable table = new SSTable(file, 1, new BlockCache(0));
+
+        // The key range and the timestamps take in the range tombstones
+        assertEquals(SSTableTest.key(5), table.getFirstKey());
+        assertEquals(SSTableTest.key(30), table.getLastKey());
+        assertEquals(50L, table.getMinTimestamp());
+        assertEquals(500L, table.getMaxTimestamp());
+        assertEquals(2 + ranges.size(), table.getTombstoneCount());
+    }
+
+    @Test
+    void pointLookups(@TempDir File data) throws IOException {
+        for (final int level : new int[]{0, 1}) {
+            final File storage = new File(data, "level" + level);
+            Files.createDirectories(storage.toPath());
+            final BlockCache cache = new BlockCache(1024 * 1024);
+            final List<SSTable> tables = new ArrayList<>();
+            for (int i = 0; i < TABLES; i++) {
+                tables.add(table(storage, i + 1, i * 2 * KEYS, level, cache));
+            }
+            final Levels levels = Levels.of(tables);
+            assertEquals(level + 1, levels.depth());
+
+            // Only the table holding the key is probed
+            for (int i = 0; i < TABLES * 2 * KEYS; i += 7) {
+                final long before = reads(cache);
+                final Value value = levels.get(SSTableTest.key(i));
+                if (i % (2 * KEYS) < KEYS) {
+                    assertNotNull(value);
+                    assertEquals(i / (2 * KEYS) + 1, value.getTimestamp());
+                    assertEquals(1, reads(cache) - before);
+                } else {
+                    assertNull(value);
+                    assertEquals(0, reads(cache) - before);
+                }
+            }
+            levels.release();
+        }
+    }
+
+    @Test
+    void newestTableWins(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(1024 * 1024);
+        final List<SSTable> tables = new ArrayList<>();
+        tables.add(table(data, 1, 0, 1, cache));
+        tables.add(table(data, 2, 0, 0, cache));
+        // The newest table removes the even keys and rewrites the odd ones, all of its keys in the others too
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            final Value value = i % 2 == 0 ? new Value(3) : new Value(3, ByteBuffer.allocate(10));
+            cells.add(new Cell(SSTableTest.key(i), value));
+        }
+        final File file = new File(data, "3.dat");
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 0, 0, Long.MAX_VALUE);
+        tables.add(new SSTable(file, 3, cache));
+        final Levels levels = Levels.of(tables);
+
+        // The lookup stops at the newest table, the tombstone hides the older values
+        for (int i = 0; i < KEYS; i += 7) {
+            final long before = reads(cache);
+            final Value value = levels.get(SSTableTest.key(i));
+            assertNotNull(value);
+            assertEquals(3, value.getTimestamp());
+            assertEquals(i % 2 == 0, value.isTombstone());
+            assertEquals(1, reads(cache) - before);
+        }
+        levels.release();
+    }
+
+    @Test
+    void scans(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(0);
+        final List<SSTable> tables = new ArrayList<>();
+        for (int i = 0; i < TABLES; i++) {
+            tables.add(table(data, i + 1, i * 2 * KEYS, 0, cache));
+        }
+        for (int i = 0; i < TABLES; i++) {
+            tables.add(table(data, TABLES + i + 1, i * 2 * KEYS + KEYS, 1, cache));
+        }
+        final Levels levels = Levels.of(tables);
+
+        // A range over the end of the third table of level 0 and the start of a level 1 table
+        final ByteBuffer from = SSTableTest.key(4 * KEYS + 10);
+        final ByteBuffer to = SSTableTest.key(5 * KEYS + 10);
+        assertEquals(2, levels.iterators(from, to).size());
+        assertEquals(2, levels.descendingIterators(from, to).size());
+        assertEquals(2, levels.rangeTombstones(from, to).size());
+
+        // A range inside a level 1 table only
+        final ByteBuffer inside = SSTableTest.key(5 * KEYS + 10);
+        assertEquals(1, levels.iterators(inside, SSTableTest.key(5 * KEYS + 20)).size());
+
+        // All of them
+        assertEquals(TABLES + 1, levels.iterators(ByteBuffer.allocate(0), null).size());
+
+        // Past all of them
+        assertEquals(0, levels.iterators(SSTableTest.key(100 * KEYS), null).size());
+        levels.release();
+    }
+}
@@ -0,0 +1,387 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the compactions of {@link LsmDAO}.
+ */
+class LsmCompactionTest {
+    private static final int KEYS = 1000;
+
+    @NotNull
+    static LsmConfig config(final long flushThreshold) {
+        final LsmConfig config = new LsmConfig();
+        config.flushThreshold = flushThreshold;
+        return config;
+    }
+
+    @NotNull
+    static ByteBuffer value(
+            final int i,
+            final int round) {
+        return ByteBuffer.wrap(("value" + i + "_" + round).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static long tables(@NotNull final File data) {
+        return Stream.of(Objects.requireNonNull(data.listFiles()))
+                .filter(file -> file.getName().endsWith(".dat"))
+                .count();
+    }
+
+    private static void assertContents(
+            @NotNull final LsmDAO dao,
+            final int round) {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = SSTableTest.key(i);
+            if (i % 10 == 0) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i, round), dao.get(key));
+            }
+        }
+    }
+
+    private static void write(
+            @NotNull final LsmDAO dao,
+            final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(SSTableTest.key(i), value(i, round));
+        }
+        for (int i = 0; i < KEYS; i += 10) {
+            dao.remove(SSTableTest.key(i));
+        }
+    }
+
+    @Test
+    void compactIncludesMemTable(@TempDir File data) throws IOException {
+        try (LsmDAO dao = new LsmDAO(data, config(1024 * 1024 * 1024))) {
+            write(dao, 1);
+            assertEquals(0, tables(data));
+            dao.compact();
+            assertEquals(1, tables(data));
+            assertContents(dao, 1);
+
+            write(dao, 2);
+            dao.compact();
+            assertEquals(1, tables(data));
+            assertContents(dao, 2);
+        }
+        try (LsmDAO dao = new LsmDAO(data, config(1024 * 1024 * 1024))) {
+            assertContents(dao, 2);
+        }
+    }
+
+    @Test
+    void manualByDefault(@TempDir File data) throws IOException {
+        assertEquals(LsmConfig.CompactionStyle.MANUAL, new LsmConfig().compactionStyle);
+        try (LsmDAO dao = new LsmDAO(data, config(16 * 1024))) {
+            for (int round = 1; round <= 3; round++) {
+                write(dao, round);
+            }
+        }
+        // Every flush left its own table
+        assertTrue(tables(data) > 3, tables(data) + " tables");
+        try (LsmDAO dao = new LsmDAO(data, config(16 * 1024))) {
+            assertContents(dao, 3);
+            dao.compact();
+            assertContents(dao, 3);
+        }
+        assertEquals(1, tables(data));
+    }
+
+    @Test
+    void sizeTieredBoundsTables(@TempDir File data) throws IOException {
+        final LsmConfig config = config(16 * 1024);
+        config.compactionStyle = LsmConfig.CompactionStyle.SIZE_TIERED;
+        config.tierMinTableSize = 16 * 1024;
+        final int rounds = 40;
+        long most = 0;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int round = 1; round <= rounds; round++) {
+                write(dao, round);
+                most = Math.max(most, tables(data));
+            }
+            assertContents(dao, rounds);
+        }
+        // Each round flushes a few tables, the tiers keep their count logarithmic in the number of flushes
+        assertTrue(most <= 20, most + " tables");
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            assertContents(dao, rounds);
+        }
+    }
+
+    /**
+     * Table of the keys from 0 to count - 1 equal to the remainder modulo the step.
+     */
+    @NotNull
+    private static SSTable table(
+            @NotNull final File file,
+            final int count,
+            final int step,
+            final int remainder) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = remainder; i < count; i += step) {
+            cells.add(new Cell(SSTableTest.key(i), new Value(1L, ByteBuffer.allocate(100))));
+        }
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 10, 1, Long.MAX_VALUE);
+        return new SSTable(file, 1, new BlockCache(0));
+    }
+
+    private static int count(
+            @NotNull final List<SSTable> tables,
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        int count = 0;
+        for (final SSTable table : tables) {
+            final Iterator<Cell> cells = table.iterator(from.duplicate());
+            while (cells.hasNext() && cells.next().getKey().compareTo(to) < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void splitKeys(@TempDir File data) throws IOException {
+        final int count = 30_000;
+        final List<SSTable> inputs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            inputs.add(table(new File(data, i + ".dat"), count, 3, i));
+        }
+        final long size = inputs.get(0).getSizeInBytes() * 3;
+
+        final List<ByteBuffer> bounds = LsmDAO.splitKeys(inputs, 4, size / 8);
+        assertEquals(3, bounds.size());
+        final List<ByteBuffer> starts = new ArrayList<>();
+        starts.add(ByteBuffer.allocate(0));
+        for (final ByteBuffer bound : bounds) {
+            // Right after a key of the inputs, so no key is split from its versions
+            assertEquals(Byte.MIN_VALUE, bound.get(bound.limit() - 1));
+            final ByteBuffer key = bound.duplicate().limit(bound.limit() - 1);
+            assertTrue(inputs.stream().anyMatch(table -> table.get(key) != null));
+            assertTrue(bound.compareTo(starts.get(starts.size() - 1)) > 0);
+            starts.add(bound);
+        }
+        starts.add(SSTableTest.key(count));
+        // Ranges of about the same size
+        for (int i = 0; i + 1 < starts.size(); i++) {
+            final int cells = count(inputs, starts.get(i), starts.get(i + 1));
+            assertTrue(cells > count / 8 && cells < count / 2, cells + " cells in range " + i);
+        }
+
+        assertEquals(List.of(), LsmDAO.splitKeys(inputs, 4, size));
+        assertEquals(List.of(), LsmDAO.splitKeys(inputs, 1, 1));
+    }
+
+    /**
+     * Size in bytes of the largest temporary file in the directory, zero if there is none.
+     */
+    private static long largestTemp(@NotNull final File data) {
+        return Stream.of(Objects.requireNonNull(data.listFiles()))
+                .filter(file -> file.getName().endsWith(".tmp"))
+                .mapToLong(File::length)
+                .max()
+                .orElse(0);
+    }
+
+    @NotNull
+    private static ByteBuffer large(
+            final int i,
+            final int round) {
+        final ByteBuffer value = ByteBuffer.allocate(100);
+        value.put(value(i, round)).rewind();
+        return value;
+    }
+
+    @Test
+    void readsAndWritesDuringMerge(@TempDir File data) throws Exception {
+        final int keys = 300_000;
+        final long flushThreshold = 1024 * 1024;
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LsmDAO dao = new LsmDAO(data, config(flushThreshold))) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(SSTableTest.key(i), large(i, 1));
+            }
+            final Future<?> compaction = executor.submit(() -> {
+                dao.compact();
+                return null;
+            });
+            // Only the output of the merge outgrows a memtable
+            while (largestTemp(data) <= 4 * flushThreshold) {
+                assertFalse(compaction.isDone(), "Compaction finished before it was seen merging");
+                Thread.yield();
+            }
+            int during = 0;
+            for (int i = 0; !compaction.isDone(); i = (i + 7919) % keys) {
+                assertEquals(large(i, 1), dao.get(SSTableTest.key(i)));
+                dao.upsert(SSTableTest.key(keys + during), large(during, 2));
+                during++;
+            }
+            compaction.get();
+            assertTrue(during > 0);
+            for (int i = 0; i < during; i++) {
+                assertEquals(large(i, 2), dao.get(SSTableTest.key(keys + i)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void subcompactions(@TempDir File data) throws IOException {
+        final LsmConfig config = config(256 * 1024);
+        config.compactionStyle = LsmConfig.CompactionStyle.LEVELED;
+        config.targetTableSize = 256 * 1024;
+        config.subcompactions = 3;
+        final int count = 3000;
+        final ByteBuffer value = ByteBuffer.allocate(1024);
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < count; i++) {
+                dao.upsert(SSTableTest.key(i), value.duplicate());
+            }
+            dao.removeRange(SSTableTest.key(1000), SSTableTest.key(2000));
+            dao.compact();
+        }
+
+        // Disjoint tables of one level, even where the range tombstone was cut
+        final List<SSTable> tables = new ArrayList<>();
+        for (final File file : Objects.requireNonNull(data.listFiles())) {
+            if (file.getName().endsWith(".dat")) {
+                tables.add(new SSTable(file, 1, new BlockCache(0)));
+            }
+        }
+        assertTrue(tables.size() >= 3, tables.size() + " tables");
+        tables.sort(Comparator.comparing(SSTable::getFirstKey));
+        for (int i = 0; i < tables.size(); i++) {
+            assertEquals(1, tables.get(i).getLevel());
+            if (i > 0) {
+                assertTrue(tables.get(i - 1).getLastKey().compareTo(tables.get(i).getFirstKey()) < 0);
+            }
+        }
+
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer key = SSTableTest.key(i);
+                if (i >= 1000 && i < 2000) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+        }
+    }
+
+    private static int tombstones(@NotNull final File data) throws IOException {
+        int tombstones = 0;
+        for (final File file : Objects.requireNonNull(data.listFiles())) {
+            if (file.getName().endsWith(".dat")) {
+                tombstones += new SSTable(file, 1, new BlockCache(0)).getTombstoneCount();
+            }
+        }
+        return tombstones;
+    }
+
+    private static void removeAndCompact(@NotNull final LsmDAO dao) throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(SSTableTest.key(i), value(i, 1));
+        }
+        dao.compact();
+        for (int i = 0; i < KEYS; i += 10) {
+            dao.remove(SSTableTest.key(i));
+        }
+        Thread.sleep(10);
+        dao.compact();
+    }
+
+    @Test
+    void purgeExpiredTombstones(@TempDir File data) throws Exception {
+        final LsmConfig config = config(1024 * 1024 * 1024);
+        config.tombstoneGracePeriodMs = 0;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            removeAndCompact(dao);
+            // Each tombstone goes away with the value it shadowed
+            assertEquals(KEYS / 10, dao.getPurgedTombstones());
+            assertEquals(KEYS / 10, dao.getPurgedVersions());
+            assertEquals(0, tombstones(data));
+
+            dao.removeRange(SSTableTest.key(500), SSTableTest.key(600));
+            Thread.sleep(10);
+            dao.compact();
+            assertEquals(KEYS / 10 + 1, dao.getPurgedTombstones());
+            assertEquals(KEYS / 10 + 90, dao.getPurgedVersions());
+            assertEquals(0, tombstones(data));
+        }
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = SSTableTest.key(i);
+                if (i % 10 == 0 || i >= 500 && i < 600) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value(i, 1), dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepTombstonesWithinGracePeriod(@TempDir File data) throws Exception {
+        try (LsmDAO dao = new LsmDAO(data, config(1024 * 1024 * 1024))) {
+            removeAndCompact(dao);
+            assertEquals(0, dao.getPurgedTombstones());
+            assertEquals(KEYS / 10, dao.getPurgedVersions());
+            assertEquals(KEYS / 10, tombstones(data));
+            assertContents(dao, 1);
+        }
+    }
+
+    @Test
+    void keepTombstonesOverOlderData(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(0);
+        final SSTable level1 = LevelsTest.table(data, 2, 0, 1, cache);
+        final SSTable level2 = LevelsTest.table(data, 1, 500, 2, cache);
+        final SSTable disjoint = LevelsTest.table(data, 3, 5000, 2, cache);
+        final SSTable older = LevelsTest.table(data, 4, 0, 0, cache);
+        final SSTable newer = LevelsTest.table(data, 6, 0, 0, cache);
+        final SSTable input = LevelsTest.table(data, 5, 500, 0, cache);
+
+        final Levels deep = Levels.of(List.of(level1, level2));
+        assertTrue(deep.mayHaveOlder(List.of(level1), 1));
+        assertFalse(deep.mayHaveOlder(List.of(level1, level2), 2));
+        deep.release();
+
+        final Levels apart = Levels.of(List.of(level1, disjoint));
+        assertFalse(apart.mayHaveOlder(List.of(level1), 1));
+        apart.release();
+
+        // A level 0 result is newer than the newer tables of level 0 only
+        final Levels level0 = Levels.of(List.of(older, input, newer));
+        assertTrue(level0.mayHaveOlder(List.of(input), 0));
+        assertFalse(level0.mayHaveOlder(List.of(input, older), 0));
+        assertFalse(level0.mayHaveOlder(List.of(older, input, newer), 0));
+        level0.release();
+    }
+}
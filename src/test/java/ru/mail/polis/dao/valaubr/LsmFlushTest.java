@@ -0,0 +1,133 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the memtable flushes of {@link LsmDAO}.
+ */
+class LsmFlushTest {
+    private static final int KEYS = 1000;
+    //Generations a new DAO gives its first flushes
+    private static final int GENERATIONS = 20;
+
+    private static void write(
+            @NotNull final LsmDAO dao,
+            final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, round));
+        }
+    }
+
+    private static void assertContents(
+            @NotNull final LsmDAO dao,
+            final int round) {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(LsmCompactionTest.value(i, round), dao.get(SSTableTest.key(i)));
+        }
+    }
+
+    /**
+     * Takes the names of the temporary files of the flushes, so writing them fails.
+     */
+    @NotNull
+    private static List<File> block(@NotNull final File storage) throws IOException {
+        final List<File> blocked = new ArrayList<>();
+        for (int generation = 1; generation <= GENERATIONS; generation++) {
+            final File directory = new File(storage, generation + ".tmp");
+            Files.createDirectories(directory.toPath());
+            Files.createFile(new File(directory, "taken").toPath());
+            blocked.add(directory);
+        }
+        return blocked;
+    }
+
+    private static void unblock(@NotNull final List<File> blocked) throws IOException {
+        for (final File directory : blocked) {
+            Files.delete(new File(directory, "taken").toPath());
+            Files.delete(directory.toPath());
+        }
+    }
+
+    @Test
+    void writesStopAfterFailedFlush(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmCompactionTest.config(1024 * 1024 * 1024);
+        final List<File> blocked = block(data);
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            write(dao, 1);
+            final IOException flush = assertThrows(IOException.class, dao::compact);
+            assertNotNull(flush.getCause());
+
+            // The error surfaces on the writes, the memtable stays readable
+            final IOException write = assertThrows(
+                    IOException.class,
+                    () -> dao.upsert(SSTableTest.key(0), LsmCompactionTest.value(0, 2)));
+            assertNotNull(write.getCause());
+            assertThrows(IOException.class, () -> dao.remove(SSTableTest.key(0)));
+            assertThrows(IOException.class, dao::compact);
+            assertContents(dao, 1);
+        }
+        unblock(blocked);
+        assertEquals(0, LsmCompactionTest.tables(data));
+
+        // The log of the memtable is replayed
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            assertContents(dao, 1);
+            write(dao, 2);
+            dao.compact();
+            assertContents(dao, 2);
+        }
+    }
+
+    @Test
+    void parallelFlushesInstalledInOrder(@TempDir File data) throws Exception {
+        final LsmConfig config = LsmCompactionTest.config(8 * 1024);
+        final int rounds = 20;
+        final int threads = 4;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int round = 1; round <= rounds; round++) {
+                final int current = round;
+                final ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    final List<Future<?>> futures = new ArrayList<>();
+                    for (int t = 0; t < threads; t++) {
+                        final int thread = t;
+                        futures.add(executor.submit(() -> {
+                            for (int i = thread; i < KEYS; i += threads) {
+                                dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, current));
+                            }
+                            return null;
+                        }));
+                    }
+                    for (final Future<?> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+            }
+            assertContents(dao, rounds);
+        }
+        // Many small tables, the newest ones shadow the older ones
+        assertTrue(LsmCompactionTest.tables(data) > rounds);
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            assertContents(dao, rounds);
+        }
+    }
+}
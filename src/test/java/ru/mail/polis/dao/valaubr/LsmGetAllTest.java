@@ -0,0 +1,144 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the multi-get of {@link LsmDAO}.
+ */
+class LsmGetAllTest {
+    private static final int KEYS = 3000;
+
+    /**
+     * Writes the keys in rounds, so a small flush threshold spreads the versions of a key over the tables,
+     * and removes the ones divisible by 7.
+     */
+    private static void write(@NotNull final LsmDAO dao) throws IOException {
+        for (int round = 1; round <= 3; round++) {
+            for (int i = round - 1; i < KEYS; i += round) {
+                dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, round));
+            }
+        }
+        for (int i = 0; i < KEYS; i += 7) {
+            dao.remove(SSTableTest.key(i));
+        }
+    }
+
+    /**
+     * Round of {@link #write(LsmDAO)} which wrote the key last.
+     */
+    private static int lastRound(final int i) {
+        if (i % 3 == 2) {
+            return 3;
+        }
+        return i % 2 == 1 ? 2 : 1;
+    }
+
+    /**
+     * Copy of the key at a non-zero position of a larger buffer.
+     */
+    @NotNull
+    private static ByteBuffer shifted(@NotNull final ByteBuffer key) {
+        final ByteBuffer buffer = ByteBuffer.allocate(key.remaining() + 3);
+        buffer.position(3);
+        buffer.put(key.duplicate());
+        buffer.position(3);
+        return buffer;
+    }
+
+    /**
+     * Keys present, removed and absent, each some times over, in a random order.
+     */
+    @NotNull
+    private static List<ByteBuffer> keys() {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS + 100; i += 3) {
+            keys.add(SSTableTest.key(i));
+            if (i % 2 == 0) {
+                keys.add(shifted(SSTableTest.key(i)));
+            }
+            keys.add(ByteBuffer.wrap(String.format("key%08d_", i).getBytes(StandardCharsets.UTF_8)));
+        }
+        keys.add(ByteBuffer.allocate(0));
+        Collections.shuffle(keys, new Random(1));
+        return keys;
+    }
+
+    private static void assertGetAll(@NotNull final LsmDAO dao) {
+        final List<ByteBuffer> keys = keys();
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                expected.put(key, dao.get(key));
+            } catch (NoSuchElementException e) {
+                //Absent
+            }
+        }
+        final SortedMap<ByteBuffer, ByteBuffer> values = dao.getAll(keys);
+        assertEquals(expected, values);
+
+        // One entry per distinct key, in ascending order, each with the value of its own key
+        ByteBuffer previous = null;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            final ByteBuffer key = entry.getKey();
+            if (previous != null) {
+                assertTrue(previous.compareTo(key) < 0);
+            }
+            previous = key;
+            final int i = Integer.parseInt(StandardCharsets.UTF_8.decode(key.duplicate()).toString().substring(3));
+            assertTrue(i % 7 != 0);
+            assertEquals(LsmCompactionTest.value(i, lastRound(i)), entry.getValue());
+        }
+        assertEquals(0, dao.getAll(List.of()).size());
+    }
+
+    @Test
+    void alignedAndDeduplicated(@TempDir File data) throws IOException {
+        for (final long rowCacheSize : new long[]{0, 1024 * 1024}) {
+            final File storage = new File(data, "cache" + rowCacheSize);
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+            config.rowCacheSize = rowCacheSize;
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                write(dao);
+                assertTrue(LsmCompactionTest.tables(storage) > 1);
+                assertGetAll(dao);
+                // Again, from the row cache if any
+                assertGetAll(dao);
+                dao.compact();
+                assertGetAll(dao);
+            }
+        }
+    }
+
+    @Test
+    void alignedAcrossLevels(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+        config.compactionStyle = LsmConfig.CompactionStyle.LEVELED;
+        config.targetTableSize = 16 * 1024;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            write(dao);
+            dao.compact();
+            assertTrue(LsmCompactionTest.tables(data) > 1);
+            assertGetAll(dao);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Atomicity tests of the {@link WriteBatch}es of {@link LsmDAO}.
+ */
+class LsmWriteBatchTest {
+    private static final int KEYS = 100;
+    //Large enough to keep the writes of a test in a single memtable
+    private static final long NO_FLUSH = 1024L * 1024 * 1024;
+
+    /**
+     * Batch setting every key to the value of the round, or removing every key if the round is a multiple of 5.
+     */
+    @NotNull
+    private static WriteBatch batch(final int round) {
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < KEYS; i++) {
+            if (round % 5 == 0) {
+                batch.remove(SSTableTest.key(i));
+            } else {
+                batch.upsert(SSTableTest.key(i), LsmCompactionTest.value(round, round));
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Checks the records hold every key with the value of a single round or no key at all.
+     */
+    private static void assertWhole(@NotNull final Iterator<Record> records) {
+        final List<Record> list = new ArrayList<>();
+        records.forEachRemaining(list::add);
+        if (list.isEmpty()) {
+            return;
+        }
+        assertEquals(KEYS, list.size());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(SSTableTest.key(i), list.get(i).getKey());
+            assertEquals(list.get(0).getValue(), list.get(i).getValue());
+        }
+    }
+
+    private static void assertWhole(@NotNull final Snapshot snapshot) {
+        assertWhole(snapshot.iterator(ByteBuffer.allocate(0)));
+        // The point reads of the snapshot agree with its scan
+        ByteBuffer first = null;
+        for (int i = 0; i < KEYS; i++) {
+            ByteBuffer value;
+            try {
+                value = snapshot.get(SSTableTest.key(i));
+            } catch (NoSuchElementException e) {
+                value = null;
+            }
+            if (i == 0) {
+                first = value;
+            } else {
+                assertEquals(first, value);
+            }
+        }
+    }
+
+    @Test
+    void snapshotsSeeWholeBatches(@TempDir File data) throws Exception {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final File storage = new File(data, offHeap ? "offheap" : "heap");
+            Files.createDirectories(storage.toPath());
+            // Small memtables, so the batches land in memtables flushed while the readers hold them
+            final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+            config.offHeapMemTable = offHeap;
+            config.memTableShards = 4;
+            final int writers = 4;
+            final int readers = 4;
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < writers; t++) {
+                    final int writer = t;
+                    futures.add(executor.submit(() -> {
+                        for (int round = writer + 1; round < 1000; round += writers) {
+                            dao.write(batch(round));
+                        }
+                        return null;
+                    }));
+                }
+                final List<Future<?>> reads = new ArrayList<>();
+                for (int t = 0; t < readers; t++) {
+                    reads.add(executor.submit(() -> {
+                        while (!done.get()) {
+                            try (Snapshot snapshot = dao.snapshot()) {
+                                assertWhole(snapshot);
+                            }
+                            assertWhole(dao.iterator(ByteBuffer.allocate(0)));
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+                done.set(true);
+                for (final Future<?> future : reads) {
+                    future.get();
+                }
+                assertTrue(LsmCompactionTest.tables(storage) > 1);
+                dao.compact();
+                try (Snapshot snapshot = dao.snapshot()) {
+                    assertWhole(snapshot);
+                }
+            } finally {
+                done.set(true);
+                executor.shutdown();
+            }
+        }
+    }
+
+    @NotNull
+    private static File crash(
+            @NotNull final File storage,
+            @NotNull final File copy) throws IOException {
+        Files.createDirectories(copy.toPath());
+        for (final File file : Objects.requireNonNull(storage.listFiles())) {
+            if (file.isFile()) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+        }
+        return copy;
+    }
+
+    @NotNull
+    private static File segment(@NotNull final File storage) {
+        final List<File> segments = new ArrayList<>();
+        for (final File file : Objects.requireNonNull(storage.listFiles())) {
+            if (file.getName().endsWith(".wal") && file.length() > 0) {
+                segments.add(file);
+            }
+        }
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    @Test
+    void batchReplayedWhole(@TempDir File data) throws IOException {
+        for (final LsmConfig.Durability durability : LsmConfig.Durability.values()) {
+            final File storage = new File(data, durability.name());
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = LsmCompactionTest.config(NO_FLUSH);
+            config.durability = durability;
+            final File copy;
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                dao.write(batch(1));
+                // Later writes of a key in a batch win over the earlier ones
+                dao.write(batch(2)
+                        .remove(SSTableTest.key(0))
+                        .upsert(SSTableTest.key(1), LsmCompactionTest.value(1, 3))
+                        .remove(SSTableTest.key(1))
+                        .remove(SSTableTest.key(2))
+                        .upsert(SSTableTest.key(2), LsmCompactionTest.value(2, 3)));
+                copy = crash(storage, new File(data, durability.name() + "-crash"));
+            }
+            for (final File reopened : new File[]{copy, storage}) {
+                try (LsmDAO dao = new LsmDAO(reopened, config)) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(SSTableTest.key(0)));
+                    assertThrows(NoSuchElementException.class, () -> dao.get(SSTableTest.key(1)));
+                    assertEquals(LsmCompactionTest.value(2, 3), dao.get(SSTableTest.key(2)));
+                    for (int i = 3; i < KEYS; i++) {
+                        assertEquals(LsmCompactionTest.value(2, 2), dao.get(SSTableTest.key(i)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void tornBatchReplayedNone(@TempDir File data) throws IOException {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = LsmCompactionTest.config(NO_FLUSH);
+        final File copy;
+        try (LsmDAO dao = new LsmDAO(storage, config)) {
+            dao.write(batch(1));
+            dao.write(batch(2));
+            copy = crash(storage, new File(data, "crash"));
+        }
+        // Cut the last byte of the record of the last batch
+        final File segment = segment(copy);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(segment.length() - 1);
+        }
+        try (LsmDAO dao = new LsmDAO(copy, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(LsmCompactionTest.value(1, 1), dao.get(SSTableTest.key(i)));
+            }
+        }
+    }
+}
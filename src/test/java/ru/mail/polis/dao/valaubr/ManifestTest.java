@@ -0,0 +1,202 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery tests of the {@link Manifest} alone and of the storage of {@link LsmDAO} it describes.
+ */
+class ManifestTest {
+    @NotNull
+    private static SSTable table(
+            @NotNull final File storage,
+            final int number,
+            final int level) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            cells.add(new Cell(SSTableTest.key(number * 1000 + i), new Value(1L, ByteBuffer.allocate(10))));
+        }
+        final File file = new File(storage, number + ".dat");
+        Files.createFile(file.toPath());
+        SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 10, level, Long.MAX_VALUE);
+        return new SSTable(file, number, new BlockCache(0));
+    }
+
+    private static void assertTables(
+            @NotNull final List<SSTable> expected,
+            @NotNull final List<SSTable> loaded) {
+        assertEquals(expected.size(), loaded.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final SSTable table = expected.get(i);
+            final SSTable actual = loaded.get(i);
+            assertEquals(table.getFile(), actual.getFile());
+            assertEquals(table.getGeneration(), actual.getGeneration());
+            assertEquals(table.getLevel(), actual.getLevel());
+            assertEquals(table.getSizeInBytes(), actual.getSizeInBytes());
+            assertEquals(table.getFirstKey(), actual.getFirstKey());
+            assertEquals(table.getLastKey(), actual.getLastKey());
+            assertEquals(table.size(), actual.size());
+        }
+    }
+
+    @NotNull
+    private static File manifest(@NotNull final File storage) {
+        return new File(storage, Manifest.FILE_NAME);
+    }
+
+    @Test
+    void edits(@TempDir File data) throws IOException {
+        assertNull(Manifest.load(data, new BlockCache(0)));
+        final SSTable a = table(data, 1, 0);
+        final SSTable b = table(data, 2, 0);
+        final SSTable c = table(data, 3, 1);
+        try (Manifest manifest = new Manifest(data, List.of(a, b))) {
+            assertTables(List.of(a, b), Manifest.load(data, new BlockCache(0)));
+            manifest.log(List.of(a), List.of(c), List.of(b, c));
+        }
+        assertTables(List.of(b, c), Manifest.load(data, new BlockCache(0)));
+    }
+
+    @Test
+    void tornEdit(@TempDir File data) throws IOException {
+        final SSTable a = table(data, 1, 0);
+        final SSTable b = table(data, 2, 0);
+        final SSTable c = table(data, 3, 1);
+        final long before;
+        try (Manifest manifest = new Manifest(data, List.of(a, b))) {
+            before = manifest(data).length();
+            manifest.log(List.of(a, b), List.of(c), List.of(c));
+        }
+        // Each cut of the last edit drops it whole
+        final long after = manifest(data).length();
+        for (long length = after - 1; length >= before; length -= 7) {
+            try (RandomAccessFile file = new RandomAccessFile(manifest(data), "rw")) {
+                file.setLength(length);
+            }
+            assertTables(List.of(a, b), Manifest.load(data, new BlockCache(0)));
+        }
+    }
+
+    @Test
+    void corruptedEdit(@TempDir File data) throws IOException {
+        final SSTable a = table(data, 1, 0);
+        final SSTable b = table(data, 2, 0);
+        final SSTable c = table(data, 3, 1);
+        try (Manifest manifest = new Manifest(data, List.of(a, b))) {
+            manifest.log(List.of(a, b), List.of(c), List.of(c));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(manifest(data), "rw")) {
+            final long position = file.length() - 1;
+            file.seek(position);
+            final int last = file.read();
+            file.seek(position);
+            file.write(last ^ 0xFF);
+        }
+        assertTables(List.of(a, b), Manifest.load(data, new BlockCache(0)));
+    }
+
+    @Test
+    void rewrittenWhenLong(@TempDir File data) throws IOException {
+        final SSTable a = table(data, 1, 0);
+        final SSTable b = table(data, 2, 0);
+        try (Manifest manifest = new Manifest(data, List.of(a))) {
+            final long single = manifest(data).length();
+            for (int i = 0; i < 3000; i++) {
+                final boolean even = i % 2 == 0;
+                manifest.log(
+                        List.of(even ? a : b),
+                        List.of(even ? b : a),
+                        List.of(even ? b : a));
+            }
+            assertTrue(manifest(data).length() < single * 2000);
+        }
+        assertTables(List.of(a), Manifest.load(data, new BlockCache(0)));
+    }
+
+    @NotNull
+    private static Set<String> tableFiles(@NotNull final File storage) {
+        final Set<String> names = new HashSet<>();
+        for (final File file : Objects.requireNonNull(storage.listFiles())) {
+            if (file.getName().endsWith(".dat") || file.getName().endsWith(".tmp")) {
+                names.add(file.getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void unloggedCompactionOutputs(@TempDir File data) throws IOException {
+        // A crash after the outputs of a compaction are written and before they are logged
+        final File storage = new File(data, "storage");
+        final File crashed = new File(data, "crashed");
+        Files.createDirectories(storage.toPath());
+        Files.createDirectories(crashed.toPath());
+        final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+        try (LsmDAO dao = new LsmDAO(storage, config)) {
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+            }
+        }
+        final Set<String> inputs = tableFiles(storage);
+        assertTrue(inputs.size() > 1);
+        for (final File file : Objects.requireNonNull(storage.listFiles())) {
+            Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+        }
+        try (LsmDAO dao = new LsmDAO(storage, config)) {
+            dao.compact();
+        }
+        final Set<String> outputs = tableFiles(storage);
+        outputs.removeAll(inputs);
+        assertFalse(outputs.isEmpty());
+        for (final String name : outputs) {
+            Files.copy(new File(storage, name).toPath(), new File(crashed, name).toPath());
+        }
+        Files.createFile(new File(crashed, "12345.tmp").toPath());
+
+        try (LsmDAO dao = new LsmDAO(crashed, config)) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(LsmCompactionTest.value(i, 1), dao.get(SSTableTest.key(i)));
+            }
+        }
+        // The manifest had the inputs only, the rest was garbage
+        assertEquals(inputs, tableFiles(crashed));
+    }
+
+    @Test
+    void lostManifest(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+            }
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 2));
+            }
+        }
+        // Without the manifest the tables are found by a scan, ordered by their generations
+        Files.delete(manifest(data).toPath());
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(LsmCompactionTest.value(i, 2), dao.get(SSTableTest.key(i)));
+            }
+        }
+        assertTrue(manifest(data).isFile());
+    }
+}
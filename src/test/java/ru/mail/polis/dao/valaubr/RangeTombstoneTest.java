@@ -0,0 +1,248 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the range tombstones alone and as written by {@link LsmDAO#removeRange(ByteBuffer, ByteBuffer)}.
+ */
+class RangeTombstoneTest {
+    private static final int KEYS = 1000;
+
+    @NotNull
+    private static RangeTombstone range(
+            final int from,
+            final int to,
+            final long timestamp) {
+        return new RangeTombstone(SSTableTest.key(from), SSTableTest.key(to), timestamp);
+    }
+
+    private static long timestamp(
+            @NotNull final RangeTombstones ranges,
+            final int key) {
+        final RangeTombstone range = ranges.covering(SSTableTest.key(key));
+        assertNotNull(range, "Key " + key);
+        return range.getTimestamp();
+    }
+
+    @Test
+    void overlappingFragments() {
+        final RangeTombstones ranges = RangeTombstones.of(List.of(
+                range(0, 50, 1),
+                range(20, 80, 3),
+                range(30, 40, 2),
+                range(70, 90, 4),
+                range(90, 95, 4),
+                range(100, 100, 5)));
+        // The latest tombstone wins where they overlap, the touching ones of the same time are joined
+        assertEquals(1, timestamp(ranges, 0));
+        assertEquals(1, timestamp(ranges, 19));
+        assertEquals(3, timestamp(ranges, 20));
+        assertEquals(3, timestamp(ranges, 35));
+        assertEquals(3, timestamp(ranges, 69));
+        assertEquals(4, timestamp(ranges, 70));
+        assertEquals(4, timestamp(ranges, 94));
+        assertNull(ranges.covering(SSTableTest.key(95)));
+        assertNull(ranges.covering(SSTableTest.key(100)));
+        assertEquals(3, ranges.size());
+        assertEquals(SSTableTest.key(0), ranges.first());
+        assertEquals(SSTableTest.key(95), ranges.end());
+
+        final RangeTombstones clipped = ranges.clip(SSTableTest.key(10), SSTableTest.key(75));
+        assertNull(clipped.covering(SSTableTest.key(9)));
+        assertEquals(1, timestamp(clipped, 10));
+        assertEquals(4, timestamp(clipped, 74));
+        assertNull(clipped.covering(SSTableTest.key(75)));
+
+        final RangeTombstones union = RangeTombstones.union(List.of(ranges, RangeTombstones.of(List.of(
+                range(60, 100, 5)))));
+        assertEquals(3, timestamp(union, 59));
+        assertEquals(5, timestamp(union, 60));
+        assertEquals(5, timestamp(union, 99));
+        assertEquals(2, union.purge(3).size());
+        assertEquals(1, union.purge(5).size());
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(
+            final long timestamp,
+            final int... keys) {
+        final List<Cell> cells = new ArrayList<>();
+        for (final int key : keys) {
+            cells.add(new Cell(SSTableTest.key(key), new Value(timestamp, LsmCompactionTest.value(key, 1))));
+        }
+        return cells.iterator();
+    }
+
+    @NotNull
+    private static List<ByteBuffer> keys(@NotNull final Iterator<Cell> cells) {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        cells.forEachRemaining(cell -> keys.add(cell.getKey()));
+        return keys;
+    }
+
+    @Test
+    void equalTimestampsOrderedByTable() {
+        final long timestamp = 1000;
+        final RangeTombstones ranges = RangeTombstones.of(List.of(range(0, 10, timestamp)));
+
+        // The range of the newer table hides the cells of the same time of the older one, but not the later ones
+        final List<Iterator<Cell>> older = List.of(
+                cells(timestamp),
+                cells(timestamp, 5, 15),
+                cells(timestamp + 1, 3));
+        assertEquals(
+                List.of(SSTableTest.key(3), SSTableTest.key(15)),
+                keys(Cells.merge(older, List.of(ranges, RangeTombstones.EMPTY, RangeTombstones.EMPTY))));
+        assertEquals(
+                List.of(SSTableTest.key(15), SSTableTest.key(3)),
+                keys(Cells.mergeDescending(
+                        List.of(cells(timestamp), cells(timestamp, 15, 5), cells(timestamp + 1, 3)),
+                        List.of(ranges, RangeTombstones.EMPTY, RangeTombstones.EMPTY))));
+
+        // The range of the older table hides none of the cells of the same time of the newer one
+        final List<Iterator<Cell>> newer = List.of(
+                cells(timestamp, 5, 15),
+                cells(timestamp));
+        assertEquals(
+                List.of(SSTableTest.key(5), SSTableTest.key(15)),
+                keys(Cells.merge(newer, List.of(RangeTombstones.EMPTY, ranges))));
+    }
+
+    private static void assertContents(
+            @NotNull final LsmDAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = SSTableTest.key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key), "Key " + i);
+            } else {
+                assertEquals(value, dao.get(key), "Key " + i);
+            }
+        }
+        assertRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+        assertRecords(expected.descendingMap(), dao.descendingRange(ByteBuffer.allocate(0), null));
+        final ByteBuffer from = SSTableTest.key(120);
+        final ByteBuffer to = SSTableTest.key(680);
+        assertRecords(expected.subMap(from, true, to, false), dao.range(from, to));
+        assertRecords(expected.subMap(from, true, to, false).descendingMap(), dao.descendingRange(from, to));
+    }
+
+    private static void assertRecords(
+            @NotNull final Map<ByteBuffer, ByteBuffer> expected,
+            @NotNull final Iterator<Record> records) {
+        final List<Record> list = new ArrayList<>();
+        records.forEachRemaining(list::add);
+        final List<Record> expectedList = new ArrayList<>();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            expectedList.add(Record.of(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expectedList, list);
+    }
+
+    private static void upsert(
+            @NotNull final LsmDAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final int from,
+            final int to,
+            final int round) throws IOException {
+        for (int i = from; i < to; i++) {
+            dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, round));
+            expected.put(SSTableTest.key(i), LsmCompactionTest.value(i, round));
+        }
+    }
+
+    private static void removeRange(
+            @NotNull final LsmDAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final int from,
+            final int to) throws IOException {
+        dao.removeRange(SSTableTest.key(from), SSTableTest.key(to));
+        expected.subMap(SSTableTest.key(from), SSTableTest.key(to)).clear();
+    }
+
+    @Test
+    void overlappingAcrossFlushesAndCompaction(@TempDir File data) throws IOException {
+        for (final LsmConfig.CompactionStyle style : new LsmConfig.CompactionStyle[]{
+                LsmConfig.CompactionStyle.MANUAL, LsmConfig.CompactionStyle.LEVELED}) {
+            final File storage = new File(data, style.name());
+            Files.createDirectories(storage.toPath());
+            // Small memtables and tables, so the ranges and the data they hide fall into different tables
+            final LsmConfig config = LsmCompactionTest.config(8 * 1024);
+            config.compactionStyle = style;
+            config.targetTableSize = 8 * 1024;
+            config.rowCacheSize = 1024 * 1024;
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                upsert(dao, expected, 0, KEYS, 1);
+                assertContents(dao, expected);
+                removeRange(dao, expected, 100, 500);
+                upsert(dao, expected, 300, 400, 2);
+                removeRange(dao, expected, 350, 700);
+                removeRange(dao, expected, 200, 360);
+                upsert(dao, expected, 600, 650, 3);
+                removeRange(dao, expected, 640, 660);
+                removeRange(dao, expected, 900, KEYS + 10);
+                assertTrue(LsmCompactionTest.tables(storage) > 1);
+                assertContents(dao, expected);
+                dao.compact();
+                assertContents(dao, expected);
+                removeRange(dao, expected, 0, 50);
+                upsert(dao, expected, 10, 20, 4);
+                assertContents(dao, expected);
+            }
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                assertContents(dao, expected);
+                dao.compact();
+                assertContents(dao, expected);
+            }
+        }
+    }
+
+    @Test
+    void equalTimestampsInMemTable(@TempDir File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final File storage = new File(data, offHeap ? "offheap" : "heap");
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = LsmCompactionTest.config(1024 * 1024 * 1024);
+            config.offHeapMemTable = offHeap;
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            // Many of the writes share a millisecond, the order of the writes decides between them
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                for (int i = 0; i + 3 <= KEYS; i += 3) {
+                    upsert(dao, expected, i, i + 2, 1);
+                    removeRange(dao, expected, i, i + 3);
+                    upsert(dao, expected, i + 1, i + 3, 2);
+                }
+                assertContents(dao, expected);
+                dao.compact();
+                assertContents(dao, expected);
+            }
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                assertContents(dao, expected);
+            }
+            assertEquals(KEYS / 3 * 2, expected.size());
+        }
+    }
+}
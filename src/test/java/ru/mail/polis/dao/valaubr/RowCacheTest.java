@@ -0,0 +1,154 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the eviction and the invalidation of {@link RowCache}.
+ */
+class RowCacheTest {
+    private static final int VALUE_SIZE = 100;
+    private static final int ENTRIES = 10;
+    private static final long ENTRY_SIZE = RowCache.ENTRY_OVERHEAD + SSTableTest.key(0).remaining() + VALUE_SIZE;
+
+    @NotNull
+    private static Value value(final long timestamp) {
+        return new Value(timestamp, ByteBuffer.allocate(VALUE_SIZE));
+    }
+
+    private static void put(
+            @NotNull final RowCache cache,
+            final int i) {
+        final ByteBuffer key = SSTableTest.key(i);
+        cache.put(key, value(i + 1), cache.version());
+    }
+
+    private static int cached(
+            @NotNull final RowCache cache,
+            final int count) {
+        int cached = 0;
+        for (int i = 0; i < count; i++) {
+            if (cache.get(SSTableTest.key(i)) != null) {
+                cached++;
+            }
+        }
+        return cached;
+    }
+
+    @Test
+    void clockEviction() {
+        final RowCache cache = new RowCache(ENTRIES * ENTRY_SIZE);
+        for (int i = 0; i < ENTRIES; i++) {
+            put(cache, i);
+        }
+        assertEquals(ENTRIES, cached(cache, ENTRIES));
+
+        // Every entry was read, so the clock clears them all once and evicts the oldest
+        put(cache, ENTRIES);
+        assertNull(cache.get(SSTableTest.key(0)));
+        assertNotNull(cache.get(SSTableTest.key(ENTRIES)));
+
+        // The entry read since the last sweep gets a second chance, the next one does not
+        assertNotNull(cache.get(SSTableTest.key(1)));
+        put(cache, ENTRIES + 1);
+        assertNotNull(cache.get(SSTableTest.key(1)));
+        assertNull(cache.get(SSTableTest.key(2)));
+
+        // The size stays under the capacity however many keys pass through
+        for (int i = 0; i < 100 * ENTRIES; i++) {
+            put(cache, i);
+        }
+        assertTrue(cached(cache, 100 * ENTRIES) <= ENTRIES);
+        assertNotNull(cache.get(SSTableTest.key(100 * ENTRIES - 1)));
+
+        // An entry larger than the whole cache is not taken
+        final ByteBuffer key = SSTableTest.key(0);
+        cache.put(key, new Value(1, ByteBuffer.allocate((int) (ENTRIES * ENTRY_SIZE))), cache.version());
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void staleVersionRejected() {
+        final RowCache cache = new RowCache(ENTRIES * ENTRY_SIZE);
+        final ByteBuffer key = SSTableTest.key(1);
+        put(cache, 1);
+
+        // A value resolved before the write is not put after it
+        final long version = cache.version();
+        cache.invalidate(key);
+        assertNull(cache.get(key));
+        cache.put(key, value(1), version);
+        assertNull(cache.get(key));
+
+        // One resolved after it is
+        cache.put(key, value(2), cache.version());
+        assertEquals(2, cache.get(key).getTimestamp());
+    }
+
+    @Test
+    void rangeInvalidation() {
+        final RowCache cache = new RowCache(ENTRIES * ENTRY_SIZE);
+        for (int i = 0; i < 6; i++) {
+            put(cache, i);
+        }
+
+        // Only the keys of the range are dropped
+        final long beforeRange = cache.version();
+        cache.invalidateRange(SSTableTest.key(2), SSTableTest.key(4));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 2 || i >= 4, cache.get(SSTableTest.key(i)) != null);
+        }
+
+        // A value resolved before the range was removed is not put inside it, but is outside it
+        cache.put(SSTableTest.key(3), value(1), beforeRange);
+        assertNull(cache.get(SSTableTest.key(3)));
+        cache.put(SSTableTest.key(7), value(1), beforeRange);
+        assertNotNull(cache.get(SSTableTest.key(7)));
+        put(cache, 3);
+        assertNotNull(cache.get(SSTableTest.key(3)));
+
+        // Once the range is gone from the list of recent ones, such a value is not put anywhere
+        for (int i = 0; i < RowCache.RANGES; i++) {
+            cache.invalidateRange(SSTableTest.key(100 + i), SSTableTest.key(101 + i));
+        }
+        cache.put(SSTableTest.key(8), value(1), beforeRange);
+        assertNull(cache.get(SSTableTest.key(8)));
+        put(cache, 8);
+        assertNotNull(cache.get(SSTableTest.key(8)));
+    }
+
+    @Test
+    void tombstonesAndCopies() {
+        final RowCache cache = new RowCache(ENTRIES * ENTRY_SIZE);
+        final ByteBuffer key = SSTableTest.key(1);
+        cache.put(key, new Value(5), cache.version());
+        final Value tombstone = cache.get(key);
+        assertNotNull(tombstone);
+        assertTrue(tombstone.isTombstone());
+        assertEquals(5, tombstone.getTimestamp());
+
+        // The cache keeps copies, the buffers read from the tables may go away
+        final ByteBuffer other = SSTableTest.key(2);
+        final ByteBuffer data = ByteBuffer.allocate(VALUE_SIZE);
+        cache.put(other, new Value(6, data), cache.version());
+        data.put(0, (byte) 1);
+        other.put(0, (byte) 0);
+        assertEquals(ByteBuffer.allocate(VALUE_SIZE), cache.get(SSTableTest.key(2)).getData());
+    }
+
+    @Test
+    void disabled() {
+        final RowCache cache = new RowCache(0);
+        assertFalse(cache.isEnabled());
+        put(cache, 1);
+        assertNull(cache.get(SSTableTest.key(1)));
+    }
+}
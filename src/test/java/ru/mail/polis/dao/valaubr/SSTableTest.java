@@ -0,0 +1,411 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Format tests for {@link SSTable}: the blocks and the sparse index of the current version,
+ * and the files written by the older versions.
+ */
+class SSTableTest {
+    private static final int CELLS = 5_000;
+    private static final long TIMESTAMP = 1_600_000_000_000L;
+
+    @NotNull
+    static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i + "-".repeat(i % 97)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Even keys from 0 to 2 * (count - 1), every seventh of them a tombstone.
+     */
+    @NotNull
+    private static List<Cell> cells(final int count) {
+        final List<Cell> cells = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int k = i * 2;
+            final Value value = k % 7 == 0 ? new Value(TIMESTAMP + k) : new Value(TIMESTAMP + k, value(k));
+            cells.add(new Cell(key(k), value));
+        }
+        return cells;
+    }
+
+    @NotNull
+    private static SSTable write(
+            @NotNull final File file,
+            @NotNull final List<Cell> cells) throws IOException {
+        Files.createFile(file.toPath());
+        assertEquals(cells.size(), SSTable.serialize(file, cells.iterator(), RangeTombstones.EMPTY, 10, 0, Long.MAX_VALUE));
+        return new SSTable(file, 1, new BlockCache(0));
+    }
+
+    private static void assertCell(
+            final int k,
+            @NotNull final Cell cell) {
+        assertEquals(key(k), cell.getKey());
+        assertValue(k, cell.getValue());
+    }
+
+    private static void assertValue(
+            final int k,
+            final Value value) {
+        assertEquals(TIMESTAMP + k, value.getTimestamp());
+        if (k % 7 == 0) {
+            assertTrue(value.isTombstone());
+        } else {
+            assertEquals(value(k), value.getData());
+        }
+    }
+
+    /**
+     * Checks every cell of {@link #cells(int)} is found by a point lookup, a scan from its key and from the key before it.
+     */
+    private static void assertContents(
+            @NotNull final SSTable table,
+            final int count) {
+        assertEquals(count, table.size());
+        final Iterator<Cell> all = table.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < count; i++) {
+            assertCell(i * 2, all.next());
+        }
+        assertFalse(all.hasNext());
+        assertThrows(NoSuchElementException.class, all::next);
+        for (int i = 0; i < count; i += 97) {
+            final int k = i * 2;
+            assertValue(k, table.get(key(k)));
+            assertNull(table.get(key(k + 1)));
+            assertCell(k, table.iterator(key(k)).next());
+            assertCell(k, table.iterator(key(k - 1)).next());
+        }
+        assertFalse(table.iterator(key(count * 2)).hasNext());
+    }
+
+    @Test
+    void roundTrip(@TempDir File data) throws IOException {
+        final SSTable table = write(new File(data, "1.dat"), cells(CELLS));
+        assertContents(table, CELLS);
+        assertTrue(table.getBlockKeys().size() > 1);
+        assertEquals(key(0), table.getFirstKey());
+        assertEquals(key((CELLS - 1) * 2), table.getLastKey());
+    }
+
+    @Test
+    void hugeCell(@TempDir File data) throws IOException {
+        // A cell larger than a block and the write buffer takes a block of its own
+        final List<Cell> cells = new ArrayList<>();
+        cells.add(new Cell(key(1), new Value(TIMESTAMP, ByteBuffer.allocate(3 * 1024 * 1024))));
+        cells.add(new Cell(key(2), new Value(TIMESTAMP, value(2))));
+        final SSTable table = write(new File(data, "1.dat"), cells);
+        assertEquals(3 * 1024 * 1024, table.get(key(1)).getData().remaining());
+        assertEquals(value(2), table.get(key(2)).getData());
+        assertEquals(2, table.getBlockKeys().size());
+    }
+
+    @Test
+    void mappedViews(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        final SSTable table = write(file, cells(CELLS));
+        // Without the block cache the keys and the values are read-only views of the mapping, not copies
+        final List<Cell> read = new ArrayList<>();
+        table.iterator(ByteBuffer.allocate(0)).forEachRemaining(read::add);
+        final Value value = table.get(key(2));
+        for (final Cell cell : List.of(read.get(1), read.get(CELLS - 1), new Cell(read.get(1).getKey(), value))) {
+            assertTrue(cell.getKey().isReadOnly());
+            assertTrue(cell.getKey().isDirect());
+            assertTrue(cell.getValue().getData().isReadOnly());
+            assertTrue(cell.getValue().getData().isDirect());
+        }
+
+        // The mapping outlives the file
+        Files.delete(file.toPath());
+        for (int i = 0; i < CELLS; i++) {
+            assertCell(i * 2, read.get(i));
+        }
+        assertValue(2, value);
+    }
+
+    @Test
+    void mappedValuesOutliveCompaction(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmCompactionTest.config(1024 * 1024 * 1024);
+        config.blockCacheSize = 0;
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < CELLS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.compact();
+            final List<File> compacted = new ArrayList<>();
+            for (final File file : Objects.requireNonNull(data.listFiles())) {
+                if (file.getName().endsWith(".dat")) {
+                    compacted.add(file);
+                }
+            }
+            assertEquals(1, compacted.size());
+            final List<Record> records = new ArrayList<>();
+            dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(records::add);
+            final ByteBuffer got = dao.get(key(1));
+            assertTrue(got.isReadOnly());
+
+            // The table is merged away and deleted with no reader left holding it
+            for (int i = 0; i < CELLS; i += 2) {
+                dao.upsert(key(i), value(i + 1));
+            }
+            dao.compact();
+            assertFalse(compacted.get(0).exists());
+            assertEquals(1, LsmCompactionTest.tables(data));
+
+            assertEquals(value(1), got);
+            assertEquals(CELLS, records.size());
+            for (int i = 0; i < CELLS; i++) {
+                assertEquals(key(i), records.get(i).getKey());
+                assertEquals(value(i), records.get(i).getValue());
+            }
+        }
+    }
+
+    @Test
+    void empty(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        Files.createFile(file.toPath());
+        assertEquals(0, SSTable.serialize(file, List.<Cell>of().iterator(), RangeTombstones.EMPTY, 10, 0, Long.MAX_VALUE));
+        final SSTable table = new SSTable(file, 1, new BlockCache(0));
+        assertEquals(0, table.size());
+        assertNull(table.getFirstKey());
+        assertNull(table.get(key(0)));
+        assertFalse(table.iterator(ByteBuffer.allocate(0)).hasNext());
+    }
+
+    @Test
+    void cutAtMaxSize(@TempDir File data) throws IOException {
+        final Iterator<Cell> cells = cells(CELLS).iterator();
+        final List<SSTable> tables = new ArrayList<>();
+        int written = 0;
+        while (cells.hasNext()) {
+            final File file = new File(data, tables.size() + ".dat");
+            Files.createFile(file.toPath());
+            written += SSTable.serialize(file, cells, RangeTombstones.EMPTY, 10, 1, 64 * 1024);
+            final SSTable table = new SSTable(file, tables.size(), new BlockCache(0));
+            assertEquals(1, table.getLevel());
+            tables.add(table);
+        }
+        assertEquals(CELLS, written);
+        assertTrue(tables.size() > 1);
+        int k = 0;
+        for (final SSTable table : tables) {
+            assertTrue(table.getSizeInBytes() < 64 * 1024 + SSTable.BLOCK_SIZE * 2);
+            for (final Iterator<Cell> it = table.iterator(ByteBuffer.allocate(0)); it.hasNext(); k += 2) {
+                assertCell(k, it.next());
+            }
+        }
+        assertEquals(CELLS * 2, k);
+    }
+
+    /**
+     * Writes the cells in the version 1 layout: the cells, their offsets and their count.
+     */
+    private static void writeLegacy(
+            @NotNull final File file,
+            @NotNull final List<Cell> cells) throws IOException {
+        final List<Integer> offsets = new ArrayList<>();
+        final ByteBuffer bytes = ByteBuffer.allocate(1024 * 1024);
+        for (final Cell cell : cells) {
+            offsets.add(bytes.position());
+            bytes.putInt(cell.getKey().remaining()).put(cell.getKey());
+            bytes.putLong(cell.getValue().getTimestamp());
+            if (cell.getValue().isTombstone()) {
+                bytes.putInt(-1);
+            } else {
+                bytes.putInt(cell.getValue().getData().remaining()).put(cell.getValue().getData());
+            }
+        }
+        for (final int offset : offsets) {
+            bytes.putInt(offset);
+        }
+        bytes.putInt(offsets.size());
+        Files.write(file.toPath(), bytes(bytes.flip()));
+    }
+
+    @Test
+    void legacySingleBlock(@TempDir File data) throws IOException {
+        final File legacy = new File(data, "1.dat");
+        writeLegacy(legacy, cells(500));
+        final SSTable table = new SSTable(legacy, 1, new BlockCache(1024 * 1024));
+        assertContents(table, 500);
+        assertEquals(0, table.getLevel());
+        assertEquals(key(0), table.getFirstKey());
+        assertEquals(key(998), table.getLastKey());
+    }
+
+    @Test
+    void legacyStorage(@TempDir File data) throws IOException {
+        // Storage written before the manifest and the write-ahead log: numbered table files only
+        writeLegacy(new File(data, "1.dat"), cells(500));
+        final List<Cell> newer = new ArrayList<>();
+        newer.add(new Cell(key(2), new Value(TIMESTAMP + 1000, value(1000))));
+        newer.add(new Cell(key(4), new Value(TIMESTAMP + 1000)));
+        writeLegacy(new File(data, "2.dat"), newer);
+        final LsmConfig config = new LsmConfig();
+        config.flushThreshold = 1024 * 1024;
+        for (int round = 0; round < 2; round++) {
+            try (LsmDAO dao = new LsmDAO(data, config)) {
+                assertEquals(value(1000), dao.get(key(2)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(4)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(14)));
+                assertEquals(value(998), dao.get(key(998)));
+                int count = 0;
+                for (final Iterator<Record> it = dao.iterator(ByteBuffer.allocate(0)); it.hasNext(); it.next()) {
+                    count++;
+                }
+                // Tombstones of every seventh key and the removed key 4
+                assertEquals(500 - 72 - 1, count);
+                if (round == 0) {
+                    dao.compact();
+                }
+            }
+        }
+    }
+
+    @Test
+    void olderVersions(@TempDir File data) throws IOException {
+        final File current = new File(data, "current.dat");
+        write(current, cells(CELLS));
+        final ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(current.toPath()));
+        for (int version = 2; version <= 5; version++) {
+            final File older = new File(data, version + ".dat");
+            Files.write(older.toPath(), downgrade(file, version));
+            final SSTable table = new SSTable(older, version, new BlockCache(0));
+            assertContents(table, CELLS);
+            assertEquals(key(0), table.getFirstKey());
+            assertEquals(key((CELLS - 1) * 2), table.getLastKey());
+        }
+    }
+
+    @Test
+    void unknownVersion(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        write(file, cells(10));
+        final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        bytes.putInt(bytes.limit() - Long.BYTES - Integer.BYTES, 100);
+        Files.write(file.toPath(), bytes.array());
+        assertThrows(IOException.class, () -> new SSTable(file, 1, new BlockCache(0)));
+    }
+
+    @Test
+    void overTwoGigabytes(@TempDir File data) throws IOException {
+        // Blocks of a gigabyte each, the cell at the start and the trailer at the end with a sparse hole between
+        final long blockSize = 1L << 30;
+        final int blocks = 3;
+        final File file = new File(data, "1.dat");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < blocks; i++) {
+                final ByteBuffer cell = ByteBuffer.allocate(1024);
+                cell.putInt(key(i).remaining()).put(key(i)).putLong(TIMESTAMP + i).putInt(value(i).remaining()).put(value(i));
+                writeFully(channel, cell.flip(), i * blockSize);
+                final ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES * 2).putInt(0).putInt(1);
+                writeFully(channel, trailer.flip(), (i + 1) * blockSize - Integer.BYTES * 2);
+            }
+            final long indexOffset = blocks * blockSize;
+            final ByteBuffer tail = ByteBuffer.allocate(1024);
+            for (int i = 0; i < blocks; i++) {
+                tail.putLong(i * blockSize).putInt(key(i).remaining()).put(key(i));
+            }
+            final long bloomOffset = indexOffset + tail.position();
+            final long statsOffset = bloomOffset;
+            tail.putInt(key(0).remaining()).put(key(0)).putInt(key(blocks - 1).remaining()).put(key(blocks - 1));
+            tail.putLong(TIMESTAMP).putLong(TIMESTAMP + blocks - 1).putInt(0);
+            final long rangesOffset = indexOffset + tail.position();
+            tail.putInt(0);
+            tail.putLong(rangesOffset).putLong(statsOffset).putInt(0).putLong(bloomOffset).putInt(1);
+            tail.putLong(indexOffset).putInt(blocks).putInt(blocks).putInt(6).putLong(0x4C534D5353544142L);
+            writeFully(channel, tail.flip(), indexOffset);
+        }
+        assertTrue(file.length() > SSTable.MAX_SEGMENT_SIZE);
+        final SSTable table = new SSTable(file, 1, new BlockCache(1024 * 1024));
+        assertEquals(blocks, table.size());
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        final Iterator<Cell> descending = table.descendingIterator(ByteBuffer.allocate(0), null);
+        for (int i = 0; i < blocks; i++) {
+            assertEquals(value(i), table.get(key(i)).getData());
+            assertEquals(key(i), cells.next().getKey());
+            assertEquals(key(blocks - 1 - i), descending.next().getKey());
+        }
+        assertFalse(cells.hasNext());
+        assertFalse(descending.hasNext());
+        assertEquals(key(blocks - 1), table.iterator(key(blocks - 1)).next().getKey());
+    }
+
+    private static void writeFully(
+            @NotNull final FileChannel channel,
+            @NotNull final ByteBuffer buffer,
+            final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Rewrites a file of the current version as the given older one by dropping the sections
+     * and the footer fields the older version did not have.
+     */
+    @NotNull
+    private static byte[] downgrade(
+            @NotNull final ByteBuffer file,
+            final int version) {
+        final int end = file.limit();
+        final long magic = file.getLong(end - Long.BYTES);
+        final int cellCount = file.getInt(end - Long.BYTES - Integer.BYTES * 2);
+        final int blockCount = file.getInt(end - Long.BYTES - Integer.BYTES * 3);
+        final long indexOffset = file.getLong(end - Long.BYTES * 2 - Integer.BYTES * 3);
+        final int hashCount = file.getInt(end - Long.BYTES * 2 - Integer.BYTES * 4);
+        final long bloomOffset = file.getLong(end - Long.BYTES * 3 - Integer.BYTES * 4);
+        final int level = file.getInt(end - Long.BYTES * 3 - Integer.BYTES * 5);
+        final long statsOffset = file.getLong(end - Long.BYTES * 4 - Integer.BYTES * 5);
+        final long rangesOffset = file.getLong(end - Long.BYTES * 5 - Integer.BYTES * 5);
+        final long bodyEnd = version >= 5 ? rangesOffset : version >= 3 ? statsOffset : bloomOffset;
+        final ByteBuffer older = ByteBuffer.allocate(end);
+        older.put(file.duplicate().position(0).limit((int) bodyEnd));
+        if (version >= 5) {
+            older.putLong(statsOffset);
+        }
+        if (version >= 4) {
+            older.putInt(level);
+        }
+        if (version >= 3) {
+            older.putLong(bloomOffset).putInt(hashCount);
+        }
+        older.putLong(indexOffset).putInt(blockCount).putInt(cellCount).putInt(version).putLong(magic);
+        return bytes(older.flip());
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
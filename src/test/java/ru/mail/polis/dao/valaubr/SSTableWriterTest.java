@@ -0,0 +1,88 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the {@link SSTableWriter} output around the boundary of its reusable buffer.
+ */
+class SSTableWriterTest {
+    private static final int SIZE = SSTableWriter.BUFFER_SIZE;
+
+    @NotNull
+    private static ByteBuffer bytes(
+            @NotNull final Random random,
+            final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Writes the same fields to the file and to the expected bytes, the sizes of the values picked
+     * to straddle the end of the buffer, to fill it up exactly and to be larger than it.
+     */
+    private static void write(
+            @NotNull final File file,
+            @NotNull final DataOutputStream expected,
+            final long seed) throws IOException {
+        final Random random = new Random(seed);
+        final int[] sizes = {10, SIZE - 20, 3, SIZE - 7, 0, SIZE, SIZE + 1, 5, 3 * SIZE + 17, SIZE - 1, 1};
+        Files.createFile(file.toPath());
+        try (SSTableWriter writer = new SSTableWriter(file)) {
+            for (final int size : sizes) {
+                writer.putInt(size);
+                expected.writeInt(size);
+                final long value = random.nextLong();
+                writer.putLong(value);
+                expected.writeLong(value);
+                final ByteBuffer data = bytes(random, size);
+                expected.write(data.array());
+                writer.put(data);
+                assertEquals(0, data.remaining());
+                assertEquals(expected.size(), writer.position());
+            }
+        }
+    }
+
+    @Test
+    void acrossBufferBoundary(@TempDir File data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final File file = new File(data, "1.dat");
+        write(file, new DataOutputStream(bytes), 1);
+        assertEquals(bytes.size(), file.length());
+        assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(file.toPath()));
+
+        // The next writer on the thread reuses the buffer, none of the bytes left in it reach the new file
+        final File small = new File(data, "2.dat");
+        Files.createFile(small.toPath());
+        try (SSTableWriter writer = new SSTableWriter(small)) {
+            writer.putLong(42);
+            writer.put(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        final ByteBuffer expected = ByteBuffer.allocate(Long.BYTES + 3).putLong(42).put(new byte[]{1, 2, 3});
+        assertArrayEquals(expected.array(), Files.readAllBytes(small.toPath()));
+
+        // Nor the tail of an older file of the same name
+        final ByteArrayOutputStream again = new ByteArrayOutputStream();
+        Files.delete(small.toPath());
+        Files.copy(file.toPath(), small.toPath());
+        try (SSTableWriter writer = new SSTableWriter(small)) {
+            writer.putInt(7);
+        }
+        new DataOutputStream(again).writeInt(7);
+        assertArrayEquals(again.toByteArray(), Files.readAllBytes(small.toPath()));
+    }
+}
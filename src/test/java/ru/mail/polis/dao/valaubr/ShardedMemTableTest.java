@@ -0,0 +1,223 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the {@link ShardedMemTable} alone and as the memtable of {@link LsmDAO}.
+ */
+class ShardedMemTableTest {
+    private static final int KEYS = 10_000;
+    private static final int SHARDS = 4;
+
+    @NotNull
+    private static ShardedMemTable table(@NotNull final Sequencer sequencer) {
+        return new ShardedMemTable(SHARDS, () -> new MemTable(sequencer));
+    }
+
+    @Test
+    void mergedInKeyOrder() throws IOException {
+        final ShardedMemTable table = table(new Sequencer());
+        for (int i = KEYS - 1; i >= 0; i--) {
+            table.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+        }
+        for (int i = 0; i < KEYS; i += 10) {
+            table.remove(SSTableTest.key(i));
+        }
+        assertEquals(KEYS, table.size());
+
+        // Tombstones are cells too
+        final Iterator<Cell> cells = table.iterator(SSTableTest.key(100));
+        for (int i = 100; i < KEYS; i++) {
+            final Cell cell = cells.next();
+            assertEquals(SSTableTest.key(i), cell.getKey());
+            assertEquals(i % 10 == 0, cell.getValue().isTombstone());
+        }
+        assertFalse(cells.hasNext());
+
+        final Iterator<Cell> descending = table.descendingIterator(SSTableTest.key(100), SSTableTest.key(200));
+        for (int i = 199; i >= 100; i--) {
+            assertEquals(SSTableTest.key(i), descending.next().getKey());
+        }
+        assertFalse(descending.hasNext());
+
+        final Value value = table.get(SSTableTest.key(1));
+        assertNotNull(value);
+        assertEquals(LsmCompactionTest.value(1, 1), value.getData());
+        assertNull(table.get(SSTableTest.key(KEYS)));
+    }
+
+    @Test
+    void concurrentWriters() throws Exception {
+        final ShardedMemTable table = table(new Sequencer());
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = thread; i < KEYS; i += threads) {
+                        table.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // The shards split the keys and their sizes add up to the one of a single table
+        final MemTable single = new MemTable();
+        for (int i = 0; i < KEYS; i++) {
+            single.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+        }
+        assertEquals(KEYS, table.size());
+        assertEquals(single.getSizeInBytes(), table.getSizeInBytes());
+        int count = 0;
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        while (cells.hasNext()) {
+            assertEquals(SSTableTest.key(count), cells.next().getKey());
+            count++;
+        }
+        assertEquals(KEYS, count);
+    }
+
+    @Test
+    void snapshotReads() throws IOException {
+        final Sequencer sequencer = new Sequencer();
+        final ShardedMemTable table = table(sequencer);
+        for (int i = 0; i < KEYS; i++) {
+            table.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+        }
+        final long snapshot = sequencer.open();
+        for (int i = 0; i < KEYS; i++) {
+            table.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 2));
+        }
+        table.upsert(SSTableTest.key(KEYS), LsmCompactionTest.value(KEYS, 2));
+
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0), snapshot);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(LsmCompactionTest.value(i, 1), cells.next().getValue().getData());
+        }
+        assertFalse(cells.hasNext());
+        assertNull(table.get(SSTableTest.key(KEYS), snapshot));
+        final Value value = table.get(SSTableTest.key(1));
+        assertNotNull(value);
+        assertEquals(LsmCompactionTest.value(1, 2), value.getData());
+        sequencer.close(snapshot);
+    }
+
+    @Test
+    void releasedWithAllShards() {
+        final ArenaMemTable.ChunkPool pool = new ArenaMemTable.ChunkPool(64L * 1024 * 1024);
+        final ShardedMemTable table = new ShardedMemTable(SHARDS, () -> new ArenaMemTable(new Sequencer(), pool));
+        assertTrue(table.acquire());
+        table.close();
+        assertEquals(0, pool.size());
+        table.release();
+        assertEquals(SHARDS, pool.size());
+        assertFalse(table.acquire());
+    }
+
+    @Test
+    void flushedIntoOneTable(@TempDir File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final File storage = new File(data, offHeap ? "offheap" : "heap");
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = LsmCompactionTest.config(1024 * 1024 * 1024);
+            config.memTableShards = SHARDS;
+            config.offHeapMemTable = offHeap;
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+                }
+                for (int i = 0; i < KEYS; i += 10) {
+                    dao.remove(SSTableTest.key(i));
+                }
+            }
+            assertEquals(1, LsmCompactionTest.tables(storage));
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                for (int i = 0; i < KEYS; i++) {
+                    final ByteBuffer key = SSTableTest.key(i);
+                    if (i % 10 == 0) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(LsmCompactionTest.value(i, 1), dao.get(key));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes per second of the threads writing their own keys at once to a new DAO.
+     */
+    private static double throughput(
+            @NotNull final File storage,
+            @NotNull final LsmConfig config,
+            final int threads) throws Exception {
+        Files.createDirectories(storage.toPath());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (LsmDAO dao = new LsmDAO(storage, config)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = thread; i < 10 * KEYS; i += threads) {
+                        dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, 1));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            return 10 * KEYS * 1e9 / (System.nanoTime() - start);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void shardsUnderConcurrentWriters(@TempDir File data) throws Exception {
+        // The log and the write numbers take no lock, so the writers meet only in the memtable
+        final int threads = 8;
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final LsmConfig config = LsmCompactionTest.config(1024 * 1024 * 1024);
+            config.offHeapMemTable = offHeap;
+            throughput(new File(data, "warmup" + offHeap), config, threads);
+            final double plain = throughput(new File(data, "plain" + offHeap), config, threads);
+            config.memTableShards = threads;
+            final double sharded = throughput(new File(data, "sharded" + offHeap), config, threads);
+            // A single core runs one writer at a time, there is nothing to compare
+            if (Runtime.getRuntime().availableProcessors() >= 4) {
+                assertTrue(sharded > 0.9 * plain, sharded + " writes per second sharded, " + plain + " plain");
+            }
+        }
+    }
+}
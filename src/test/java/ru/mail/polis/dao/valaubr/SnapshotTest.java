@@ -0,0 +1,200 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Isolation tests of the {@link Snapshot}s of {@link LsmDAO} and of the iterators holding them.
+ */
+class SnapshotTest {
+    private static final int KEYS = 1000;
+
+    private static void write(
+            @NotNull final LsmDAO dao,
+            final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(SSTableTest.key(i), LsmCompactionTest.value(i, round));
+        }
+    }
+
+    /**
+     * Changes every kind of write could make to the keys written by {@link #write(LsmDAO, int)}.
+     */
+    private static void change(@NotNull final LsmDAO dao) throws IOException {
+        write(dao, 2);
+        for (int i = 0; i < KEYS; i += 10) {
+            dao.remove(SSTableTest.key(i));
+        }
+        dao.removeRange(SSTableTest.key(100), SSTableTest.key(200));
+        dao.upsert(SSTableTest.key(KEYS), LsmCompactionTest.value(KEYS, 2));
+    }
+
+    private static void assertRound1(@NotNull final Snapshot snapshot) {
+        final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < KEYS; i++) {
+            final Record record = records.next();
+            assertEquals(SSTableTest.key(i), record.getKey());
+            assertEquals(LsmCompactionTest.value(i, 1), record.getValue());
+            assertEquals(LsmCompactionTest.value(i, 1), snapshot.get(SSTableTest.key(i)));
+        }
+        assertFalse(records.hasNext());
+        assertThrows(NoSuchElementException.class, () -> snapshot.get(SSTableTest.key(KEYS)));
+
+        final Iterator<Record> descending = snapshot.descendingRange(SSTableTest.key(100), SSTableTest.key(200));
+        for (int i = 199; i >= 100; i--) {
+            assertEquals(LsmCompactionTest.value(i, 1), descending.next().getValue());
+        }
+        assertFalse(descending.hasNext());
+    }
+
+    private static void assertRound2(@NotNull final LsmDAO dao) {
+        for (int i = 0; i <= KEYS; i++) {
+            final ByteBuffer key = SSTableTest.key(i);
+            if (i % 10 == 0 && i < KEYS || i >= 100 && i < 200) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(LsmCompactionTest.value(i, 2), dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void laterWritesUnseen(@TempDir File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final File storage = new File(data, offHeap ? "offheap" : "heap");
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = LsmCompactionTest.config(1024 * 1024 * 1024);
+            config.offHeapMemTable = offHeap;
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                write(dao, 1);
+                try (Snapshot snapshot = dao.snapshot()) {
+                    change(dao);
+                    assertRound1(snapshot);
+                    assertRound2(dao);
+                }
+            }
+        }
+    }
+
+    @Test
+    void flushesAndCompactionsUnseen(@TempDir File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final File storage = new File(data, offHeap ? "offheap" : "heap");
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = LsmCompactionTest.config(16 * 1024);
+            config.offHeapMemTable = offHeap;
+            try (LsmDAO dao = new LsmDAO(storage, config)) {
+                // The round in a table, then again part in the memtables and part in the tables flushed meanwhile
+                write(dao, 1);
+                dao.compact();
+                write(dao, 1);
+                try (Snapshot snapshot = dao.snapshot()) {
+                    // All of it compacted away
+                    change(dao);
+                    assertRound1(snapshot);
+                    dao.compact();
+                    assertTrue(LsmCompactionTest.tables(storage) > 1);
+                    assertRound1(snapshot);
+                    assertRound2(dao);
+                }
+                // The inputs of the compaction go away with the snapshot
+                assertEquals(1, LsmCompactionTest.tables(storage));
+            }
+        }
+    }
+
+    @Test
+    void closedSnapshot(@TempDir File data) throws IOException {
+        try (LsmDAO dao = new LsmDAO(data, LsmCompactionTest.config(1024 * 1024 * 1024))) {
+            write(dao, 1);
+            final Snapshot snapshot = dao.snapshot();
+            final Iterator<Record> open = snapshot.iterator(ByteBuffer.allocate(0));
+            snapshot.close();
+            assertThrows(IllegalStateException.class, () -> snapshot.get(SSTableTest.key(0)));
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(ByteBuffer.allocate(0)));
+
+            // The iterator opened before holds the tables
+            change(dao);
+            dao.compact();
+            int count = 0;
+            while (open.hasNext()) {
+                assertEquals(LsmCompactionTest.value(count, 1), open.next().getValue());
+                count++;
+            }
+            assertEquals(KEYS, count);
+        }
+    }
+
+    @Test
+    void iteratorReleasesTables(@TempDir File data) throws IOException {
+        try (LsmDAO dao = new LsmDAO(data, LsmCompactionTest.config(1024 * 1024 * 1024))) {
+            write(dao, 1);
+            dao.compact();
+            assertEquals(1, LsmCompactionTest.tables(data));
+
+            // The table compacted away stays on the disk while an iterator reads it
+            final Iterator<Record> closed = dao.iterator(ByteBuffer.allocate(0));
+            final Iterator<Record> exhausted = dao.range(SSTableTest.key(0), SSTableTest.key(10));
+            closed.next();
+            exhausted.next();
+            write(dao, 2);
+            dao.compact();
+            assertEquals(2, LsmCompactionTest.tables(data));
+
+            assertTrue(closed instanceof Closeable);
+            ((Closeable) closed).close();
+            assertEquals(2, LsmCompactionTest.tables(data));
+            int count = 1;
+            while (exhausted.hasNext()) {
+                assertEquals(LsmCompactionTest.value(count, 1), exhausted.next().getValue());
+                count++;
+            }
+            assertEquals(10, count);
+            assertEquals(1, LsmCompactionTest.tables(data));
+        }
+    }
+
+    @Test
+    void memTableCountsRetainedVersions() {
+        final Sequencer sequencer = new Sequencer();
+        final MemTable table = new MemTable(sequencer);
+        final ByteBuffer key = SSTableTest.key(1);
+        final ByteBuffer value = ByteBuffer.allocate(1000);
+        table.upsert(key, value);
+        final long single = table.getSizeInBytes();
+
+        // The versions no snapshot reads are not counted
+        for (int i = 0; i < 1000; i++) {
+            table.upsert(key, value);
+        }
+        assertEquals(single, table.getSizeInBytes());
+
+        // The ones a snapshot reads are, until it is closed
+        final long snapshot = sequencer.open();
+        table.upsert(key, value);
+        table.upsert(key, value);
+        assertTrue(table.getSizeInBytes() >= single + value.capacity());
+        sequencer.close(snapshot);
+        table.upsert(key, value);
+        assertEquals(single, table.getSizeInBytes());
+
+        // A tombstone replacing them counts without the data
+        table.remove(key);
+        assertTrue(table.getSizeInBytes() < single - value.capacity() / 2);
+    }
+}
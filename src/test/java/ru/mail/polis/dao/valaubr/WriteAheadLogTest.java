@@ -0,0 +1,433 @@
+package ru.mail.polis.dao.valaubr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.dao.DAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery tests of the write-ahead log of {@link LsmDAO}.
+ * A crash is simulated by copying the storage of an open DAO and opening the copy,
+ * the writes are in the OS cache by then in every durability mode.
+ */
+class WriteAheadLogTest {
+    private static final int COUNT = 1000;
+    //Large enough to keep the writes of a test in a single memtable
+    private static final long NO_FLUSH = 1024L * 1024 * 1024;
+
+    @NotNull
+    private static LsmConfig config(
+            @NotNull final LsmConfig.Durability durability,
+            final long flushThreshold) {
+        final LsmConfig config = new LsmConfig();
+        config.durability = durability;
+        config.flushThreshold = flushThreshold;
+        return config;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(String.format("value%027d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static RangeTombstoneMemTable memTable() {
+        final Sequencer sequencer = new Sequencer();
+        return new RangeTombstoneMemTable(new MemTable(sequencer), sequencer);
+    }
+
+    @NotNull
+    private static File crash(
+            @NotNull final File storage,
+            @NotNull final File copy) throws IOException {
+        Files.createDirectories(copy.toPath());
+        for (final File file : Objects.requireNonNull(storage.listFiles())) {
+            if (file.isFile()) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+        }
+        return copy;
+    }
+
+    @NotNull
+    private static File segment(@NotNull final File storage) {
+        final List<File> segments = new ArrayList<>();
+        for (final File file : Objects.requireNonNull(storage.listFiles())) {
+            if (file.getName().endsWith(".wal") && file.length() > 0) {
+                segments.add(file);
+            }
+        }
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private static void writeAll(@NotNull final DAO dao) throws IOException {
+        for (int i = 0; i < COUNT; i++) {
+            dao.upsert(key(i), value(i));
+        }
+    }
+
+    /**
+     * Checks the first count writes of {@link #writeAll(DAO)} are there and the rest are not.
+     */
+    private static void assertPrefix(
+            @NotNull final DAO dao,
+            final int count) throws IOException {
+        for (int i = 0; i < COUNT; i++) {
+            final ByteBuffer key = key(i);
+            if (i < count) {
+                assertEquals(value(i), dao.get(key));
+            } else {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer get(
+            @NotNull final DAO dao,
+            @NotNull final ByteBuffer key) throws IOException {
+        try {
+            return dao.get(key);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Test
+    void replayWithoutClose(@TempDir File data) throws IOException {
+        for (final LsmConfig.Durability durability : LsmConfig.Durability.values()) {
+            final File storage = new File(data, durability.name());
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = config(durability, NO_FLUSH);
+            final File copy;
+            try (DAO dao = new LsmDAO(storage, config)) {
+                writeAll(dao);
+                for (int i = 0; i < COUNT; i += 10) {
+                    dao.remove(key(i));
+                }
+                dao.removeRange(key(100), key(200));
+                copy = crash(storage, new File(data, durability.name() + "-crash"));
+            }
+            try (DAO dao = new LsmDAO(copy, config)) {
+                for (int i = 0; i < COUNT; i++) {
+                    final ByteBuffer key = key(i);
+                    if (i % 10 == 0 || i >= 100 && i < 200) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(value(i), dao.get(key));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = config(LsmConfig.Durability.PERIODIC, NO_FLUSH);
+        final File copy;
+        try (DAO dao = new LsmDAO(storage, config)) {
+            writeAll(dao);
+            copy = crash(storage, new File(data, "crash"));
+        }
+        // Cut the last record in the middle
+        final File segment = segment(copy);
+        final long recordSize = segment.length() / COUNT;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(segment.length() - recordSize / 2);
+        }
+        try (DAO dao = new LsmDAO(copy, config)) {
+            assertPrefix(dao, COUNT - 1);
+            dao.upsert(key(COUNT - 1), value(COUNT - 1));
+        }
+        try (DAO dao = new LsmDAO(copy, config)) {
+            assertPrefix(dao, COUNT);
+        }
+    }
+
+    @Test
+    void corruption(@TempDir File data) throws IOException {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = config(LsmConfig.Durability.PERIODIC, NO_FLUSH);
+        final File copy;
+        try (DAO dao = new LsmDAO(storage, config)) {
+            writeAll(dao);
+            copy = crash(storage, new File(data, "crash"));
+        }
+        // Flip a byte of the value of a record in the middle, the replay stops before it
+        final File segment = segment(copy);
+        final long recordSize = segment.length() / COUNT;
+        final int corrupted = COUNT / 2;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            final long position = recordSize * (corrupted + 1) - 1;
+            file.seek(position);
+            final int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        }
+        try (DAO dao = new LsmDAO(copy, config)) {
+            assertPrefix(dao, corrupted);
+        }
+    }
+
+    @Test
+    void oversizedLength(@TempDir File data) throws IOException {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = config(LsmConfig.Durability.PERIODIC, NO_FLUSH);
+        final File copy;
+        try (DAO dao = new LsmDAO(storage, config)) {
+            writeAll(dao);
+            copy = crash(storage, new File(data, "crash"));
+        }
+        // A length in the header of a record in the middle past the end of the segment, or past any array
+        final File segment = segment(copy);
+        final long recordSize = segment.length() / COUNT;
+        final int corrupted = COUNT / 2;
+        for (final int length : new int[]{(int) segment.length(), Integer.MAX_VALUE}) {
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.seek(recordSize * corrupted);
+                file.writeInt(length);
+            }
+            assertEquals(corrupted, WriteAheadLog.replay(segment, memTable()));
+        }
+        try (DAO dao = new LsmDAO(copy, config)) {
+            assertPrefix(dao, corrupted);
+        }
+    }
+
+    @Test
+    void durabilityModes(@TempDir File data) throws Exception {
+        // Small memtables, so the writers sync segments which rotate and get removed under them
+        final int threads = 4;
+        for (final LsmConfig.Durability durability : LsmConfig.Durability.values()) {
+            final File storage = new File(data, durability.name());
+            Files.createDirectories(storage.toPath());
+            final LsmConfig config = config(durability, 32 * 1024);
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try (DAO dao = new LsmDAO(storage, config)) {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    final int thread = t;
+                    futures.add(executor.submit(() -> {
+                        for (int i = thread; i < COUNT; i += threads) {
+                            dao.upsert(key(i), value(i));
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            try (DAO dao = new LsmDAO(storage, config)) {
+                assertPrefix(dao, COUNT);
+            }
+        }
+    }
+
+    @Test
+    void concurrentAppends(@TempDir File data) throws Exception {
+        final int threads = 8;
+        final int writes = 500;
+        final WriteAheadLog wal = new WriteAheadLog(data, config(LsmConfig.Durability.SYNC, NO_FLUSH), 1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < writes; i++) {
+                        wal.sync(wal.append(1, i + 1, key(thread), value(thread * writes + i)));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            wal.close();
+        }
+        // The records written at once fill the segment without holes, those of a thread in its order
+        final RangeTombstoneMemTable table = memTable();
+        final File segment = segment(data);
+        assertEquals(threads * writes, WriteAheadLog.replay(segment, table));
+        for (int t = 0; t < threads; t++) {
+            final Value value = table.get(key(t));
+            assertNotNull(value);
+            assertEquals(writes, value.getTimestamp());
+            assertEquals(value(t * writes + writes - 1), value.getData());
+        }
+    }
+
+    /**
+     * Writes per second of the threads writing their own keys at once.
+     */
+    private static double throughput(
+            @NotNull final DAO dao,
+            final int threads,
+            final int writes) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < writes; i++) {
+                        dao.upsert(key(thread * writes + i), value(i));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            return threads * writes * 1e9 / (System.nanoTime() - start);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void concurrentWritersScale(@TempDir File data) throws Exception {
+        // The writers force the log each on its own, a single core shows no gain
+        if (Runtime.getRuntime().availableProcessors() < 4) {
+            return;
+        }
+        try (DAO dao = new LsmDAO(data, config(LsmConfig.Durability.SYNC, NO_FLUSH))) {
+            throughput(dao, 8, 100);
+            final double single = throughput(dao, 1, 500);
+            final double concurrent = throughput(dao, 8, 500);
+            assertTrue(concurrent > 1.5 * single, concurrent + " writes per second, " + single + " by one thread");
+        }
+    }
+
+    @Test
+    void concurrentWritesReplayInOrder(@TempDir File data) throws Exception {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = config(LsmConfig.Durability.PERIODIC, NO_FLUSH);
+        final int keys = 16;
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        final File copy;
+        final List<ByteBuffer> expected = new ArrayList<>();
+        try (DAO dao = new LsmDAO(storage, config)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        final int k = ThreadLocalRandom.current().nextInt(keys);
+                        if (i % 100 == 0) {
+                            dao.remove(key(k));
+                        } else {
+                            dao.upsert(key(k), value(thread * 100_000 + i));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    dao.removeRange(key(keys / 4), key(keys / 2));
+                }
+                return null;
+            }));
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            for (int k = 0; k < keys; k++) {
+                expected.add(get(dao, key(k)));
+            }
+            copy = crash(storage, new File(data, "crash"));
+        } finally {
+            executor.shutdown();
+        }
+        try (DAO dao = new LsmDAO(copy, config)) {
+            for (int k = 0; k < keys; k++) {
+                assertEquals(expected.get(k), get(dao, key(k)), "Key " + k);
+            }
+        }
+    }
+
+    @Test
+    void replayKeepsTimestamps(@TempDir File data) throws Exception {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = config(LsmConfig.Durability.PERIODIC, NO_FLUSH);
+        config.tombstoneGracePeriodMs = 1000;
+        final File copy;
+        try (DAO dao = new LsmDAO(storage, config)) {
+            dao.upsert(key(0), value(0));
+            dao.remove(key(0));
+            copy = crash(storage, new File(data, "crash"));
+        }
+        Thread.sleep(config.tombstoneGracePeriodMs + 500);
+        // The tombstone replayed with the time of its removal is past the grace period already
+        try (LsmDAO dao = new LsmDAO(copy, config)) {
+            dao.compact();
+            assertEquals(1, dao.getPurgedTombstones());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+        }
+    }
+
+    @Test
+    void appendAfterReplay(@TempDir File data) throws IOException {
+        final File storage = new File(data, "storage");
+        Files.createDirectories(storage.toPath());
+        final LsmConfig config = config(LsmConfig.Durability.SYNC, NO_FLUSH);
+        final File copy;
+        try (DAO dao = new LsmDAO(storage, config)) {
+            writeAll(dao);
+            copy = crash(storage, new File(data, "crash"));
+        }
+        final File second;
+        try (DAO dao = new LsmDAO(copy, config)) {
+            assertPrefix(dao, COUNT);
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(key(i), value(i + 1));
+            }
+            second = crash(copy, new File(data, "crash2"));
+        }
+        try (DAO dao = new LsmDAO(second, config)) {
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(value(i + 1), dao.get(key(i)));
+            }
+        }
+    }
+}